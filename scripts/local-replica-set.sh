@@ -0,0 +1,59 @@
+#!/bin/bash
+# Starts a throwaway single-node replica set (rs0) for tests and benchmarks, on a
+# fresh dbpath every time. The Change Streams behind the landings listener need a
+# replica set. Needs mongod and mongosh (or the legacy mongo shell) on the PATH.
+#
+#   scripts/local-replica-set.sh start [dbpath] [port]   (default /tmp/logistics-rs 27117)
+#   scripts/local-replica-set.sh seed  [port] [seed]     (default 27117 1)
+#   scripts/local-replica-set.sh stop  [dbpath]
+#
+# The integration tests (mvn -P local-rs verify) load the TestDataset themselves.
+# seed loads it by hand, replacing what is there, for the benchmarks, E.G.
+#   mvn -P bench package && java -cp webService.jar org.example.mongodb.LandingBench "mongodb://localhost:27117/?replicaSet=rs0"
+
+set -e
+
+ACTION=${1:-start}
+
+# mongosh replaced the mongo shell, which no longer ships with MongoDB 6.0+
+MONGO_SHELL=$(command -v mongosh || command -v mongo || true)
+
+if [ "$ACTION" == "seed" ]; then
+    PORT=${2:-27117}
+    SEED=${3:-1}
+    cd "$(dirname "$0")/.."
+    mvn -q test-compile org.codehaus.mojo:exec-maven-plugin:3.0.0:java -Dexec.classpathScope=test \
+        -Dexec.mainClass=org.example.mongodb.TestDataset -Ddataset.replace=true \
+        -Dexec.args="mongodb://localhost:$PORT/?replicaSet=rs0 $SEED"
+    exit 0
+fi
+
+DBPATH=${2:-/tmp/logistics-rs}
+
+if [ "$ACTION" == "stop" ]; then
+    [ -f "$DBPATH/mongod.pid" ] && kill "$(cat "$DBPATH/mongod.pid")" 2>/dev/null || true
+    exit 0
+fi
+
+PORT=${3:-27117}
+if [ -z "$MONGO_SHELL" ]; then
+    echo "Neither mongosh nor mongo is on the PATH" >&2
+    exit 1
+fi
+
+# Same state on every run: never reuse what a previous run left behind
+if [ -f "$DBPATH/mongod.pid" ]; then
+    kill "$(cat "$DBPATH/mongod.pid")" 2>/dev/null || true
+    while kill -0 "$(cat "$DBPATH/mongod.pid")" 2>/dev/null; do sleep 1; done
+fi
+rm -rf "$DBPATH"
+mkdir -p "$DBPATH/data"
+
+mongod --replSet rs0 --port $PORT --bind_ip localhost --dbpath "$DBPATH/data" \
+    --fork --logpath "$DBPATH/mongod.log" --pidfilepath "$DBPATH/mongod.pid"
+
+"$MONGO_SHELL" --quiet --port $PORT --eval "rs.initiate({_id: \"rs0\", members: [{_id: 0, host: \"localhost:$PORT\"}]})"
+# isMaster, not hello: the mongo shell of 4.4 does not know hello
+until "$MONGO_SHELL" --quiet --port $PORT --eval 'db.runCommand({isMaster: 1}).ismaster' | grep -q true; do sleep 1; done
+
+echo "Replica set rs0 running on localhost:$PORT"
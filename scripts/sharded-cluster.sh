@@ -0,0 +1,53 @@
+#!/bin/bash
+# Starts a local sharded cluster for trying out the shard-aware cargo collection:
+# a config server replica set, two single-node shard replica sets and a mongos on
+# port 27017. Needs MongoDB 4.4+ (compound hashed shard keys) on the PATH.
+#
+#   scripts/sharded-cluster.sh start [dbpath]   (default /tmp/logistics-sharded)
+#   scripts/sharded-cluster.sh stop  [dbpath]
+#
+# Then import the data as described in README.md, through the mongos, and run
+#   mvn -P bench package && java -cp webService.jar org.example.mongodb.ShardTargetingBench mongodb://localhost:27017
+
+set -e
+
+ACTION=${1:-start}
+DBPATH=${2:-/tmp/logistics-sharded}
+
+if [ "$ACTION" == "stop" ]; then
+    for pidfile in "$DBPATH"/*.pid; do
+        [ -f "$pidfile" ] && kill "$(cat "$pidfile")" 2>/dev/null || true
+    done
+    exit 0
+fi
+
+mkdir -p "$DBPATH/config" "$DBPATH/shard1" "$DBPATH/shard2"
+
+mongod --configsvr --replSet config --port 27019 --dbpath "$DBPATH/config" \
+    --fork --logpath "$DBPATH/config.log" --pidfilepath "$DBPATH/config.pid"
+mongod --shardsvr --replSet shard1 --port 27018 --dbpath "$DBPATH/shard1" \
+    --fork --logpath "$DBPATH/shard1.log" --pidfilepath "$DBPATH/shard1.pid"
+mongod --shardsvr --replSet shard2 --port 27020 --dbpath "$DBPATH/shard2" \
+    --fork --logpath "$DBPATH/shard2.log" --pidfilepath "$DBPATH/shard2.pid"
+
+mongo --quiet --port 27019 --eval 'rs.initiate({_id: "config", configsvr: true, members: [{_id: 0, host: "localhost:27019"}]})'
+mongo --quiet --port 27018 --eval 'rs.initiate({_id: "shard1", members: [{_id: 0, host: "localhost:27018"}]})'
+mongo --quiet --port 27020 --eval 'rs.initiate({_id: "shard2", members: [{_id: 0, host: "localhost:27020"}]})'
+# Wait for every replica set to elect itself before mongos connects
+for port in 27019 27018 27020; do
+    until mongo --quiet --port $port --eval 'db.isMaster().ismaster' | grep -q true; do sleep 1; done
+done
+
+mongos --configdb config/localhost:27019 --port 27017 \
+    --fork --logpath "$DBPATH/mongos.log" --pidfilepath "$DBPATH/mongos.pid"
+
+mongo --quiet --port 27017 <<'JS'
+sh.addShard("shard1/localhost:27018")
+sh.addShard("shard2/localhost:27020")
+sh.enableSharding("logistics")
+// Queries by location go to the shards owning that city (or plane), hashing _id
+// spreads a busy hub over several chunks
+sh.shardCollection("logistics.cargo", { location : 1, _id : "hashed" })
+JS
+
+echo "Sharded cluster running, mongos on localhost:27017"
@@ -0,0 +1,96 @@
+package org.example.mongodb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/******
+ * Cargo creation throughput: POST /cargo/<from>/to/<to> one at a time, against
+ * POST /cargo/bulk
+ *
+ * Built with the bench profile (mvn -P bench package):
+ * java -cp webService.jar org.example.mongodb.BulkCargoBench <baseurl> <from> <to> [count] [threads]
+ * E.G. java -cp webService.jar org.example.mongodb.BulkCargoBench http://localhost:5000 London_GB Cairo_EG 10000 8
+ *
+ * Creates count cargo each way (10000 by default) through a running web
+ * service, the single item calls spread over threads (8 by default). This
+ * creates real cargo, so point it at a test database.
+ ******/
+public class BulkCargoBench {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: BulkCargoBench <baseurl> <from> <to> [count] [threads]");
+			System.exit(1);
+		}
+		String baseUrl = args[0];
+		String from = args[1];
+		String to = args[2];
+		int count = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+		// One at a time
+		AtomicInteger remaining = new AtomicInteger(count);
+		AtomicInteger failed = new AtomicInteger();
+		ExecutorService benchexec = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			benchexec.execute(() -> {
+				while (remaining.getAndDecrement() > 0) {
+					try {
+						if (post(baseUrl + "/cargo/" + from + "/to/" + to, null) != 200) {
+							failed.incrementAndGet();
+						}
+					} catch (IOException e) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+		}
+		benchexec.shutdown();
+		benchexec.awaitTermination(1, TimeUnit.HOURS);
+		report("single (" + threads + " threads)", count, failed.get(), System.nanoTime() - start);
+
+		// All of them in one request, as NDJSON
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			body.append("{\"location\":\"").append(from).append("\",\"destination\":\"").append(to).append("\"}\n");
+		}
+		start = System.nanoTime();
+		int status = post(baseUrl + "/cargo/bulk", body.toString());
+		report("bulk (1 request)", count, status == 200 ? 0 : count, System.nanoTime() - start);
+	}
+
+	private static int post(String url, String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/x-ndjson");
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		int status = connection.getResponseCode();
+		// Read the whole response, so the connection is kept alive for the next call
+		try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+			byte[] buffer = new byte[8192];
+			while (in != null && in.read(buffer) != -1) {
+			}
+		}
+		return status;
+	}
+
+	private static void report(String mode, int count, int failed, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-22s %7d cargo in %7.2fs, %9.0f cargo/s, %d failed", mode, count, seconds,
+				(count - failed) / seconds, failed));
+	}
+}
@@ -0,0 +1,133 @@
+package org.example.mongodb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.example.mongodb.model.Plane;
+import org.example.mongodb.model.PlaneCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/******
+ * CPU time and allocation of decoding a plane: the generic Document (and the
+ * casts PlaneDAL used to do on it) against PlaneCodec
+ *
+ * A JMH benchmark, built with the bench profile (mvn -P bench package):
+ * java -cp webService.jar org.openjdk.jmh.Main CodecBench -prof gc
+ * java -cp webService.jar org.openjdk.jmh.Main CodecBench -p flightLogSize=10,1000
+ *
+ * Runs in memory, no database needed. Decodes the same BSON bytes over and
+ * over, for the document PlaneDAL's aggregation returns (no Flight Log, last
+ * landing computed) and for a whole plane document with its Flight Log (what
+ * a find() without projection, or a Change Stream lookup, returns). The gc
+ * profiler reports the allocation per decode (gc.alloc.rate.norm).
+ ******/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+
+	private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+	@Param({ "1000" })
+	int flightLogSize;
+
+	private byte[] projected;
+	private byte[] whole;
+	private final DocumentCodec documentCodec = new DocumentCodec();
+	private final PlaneCodec planeCodec = new PlaneCodec();
+
+	@Setup
+	public void setUp() {
+		projected = toBson(plane().append(Constants.LAST_LANDING_EVENT, landing(0)));
+		List<Document> flightLog = new ArrayList<Document>();
+		for (int i = 0; i < flightLogSize; i++) {
+			flightLog.add(landing(i));
+		}
+		whole = toBson(plane().append(Constants.FLIGHT_LOG, flightLog));
+	}
+
+	@Benchmark
+	public double projectedDocument() {
+		return consume(documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(projected)), DECODER_CONTEXT));
+	}
+
+	@Benchmark
+	public double projectedPlaneCodec() {
+		return consume(planeCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(projected)), DECODER_CONTEXT));
+	}
+
+	@Benchmark
+	public double withFlightLogDocument() {
+		return consume(documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(whole)), DECODER_CONTEXT));
+	}
+
+	@Benchmark
+	public double withFlightLogPlaneCodec() {
+		return consume(planeCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(whole)), DECODER_CONTEXT));
+	}
+
+	private static Document plane() {
+		return new Document(Constants._ID, "CARGO10")
+				.append(Constants.CURRENT_LOCATION, Arrays.asList(-0.1275, 51.50722))
+				.append(Constants.HEADING, 240.0)
+				.append(Constants.ROUTE, Arrays.asList("Cairo_EG", "Lagos_NG", "Nairobi_KE"))
+				.append(Constants.LANDED, "London_GB")
+				.append(Constants.STATUS, "landed")
+				.append(Constants.SCHEMA_VERSION, 1)
+				.append(Constants.TOTAL_DISTANCE_FLOWN, 12345.6)
+				.append(Constants.TOTAL_FLIGHT_TIME, 7890.0)
+				.append(Constants.REQUIRES_MAINTENANCE, false);
+	}
+
+	private static Document landing(int i) {
+		return new Document(Constants.LANDING_LOCATION, "City" + i)
+				.append(Constants.LANDING_DATE, new Date(1598357245000L + i * 60000L))
+				.append(Constants.POSITION, Arrays.asList(-0.1275 + i, 51.50722));
+	}
+
+	private static byte[] toBson(Document document) {
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		new DocumentCodec().encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+		return buffer.toByteArray();
+	}
+
+	// Reads the fields PlaneDAL needs, the way it reads them; JMH consumes what is returned
+	@SuppressWarnings("unchecked")
+	private static double consume(Object decoded) {
+		if (decoded instanceof Plane) {
+			Plane plane = (Plane) decoded;
+			return plane.getLongitude() + plane.getLatitude() + plane.getTotalDistanceFlown()
+					+ plane.getLastLandingLongitude() + plane.getRoute().size();
+		}
+		Document plane = (Document) decoded;
+		ArrayList<Double> location = (ArrayList<Double>) plane.get(Constants.CURRENT_LOCATION);
+		ArrayList<String> route = (ArrayList<String>) plane.get(Constants.ROUTE);
+		Document lastLanding = (Document) plane.get(Constants.LAST_LANDING_EVENT);
+		return location.get(0) + location.get(1) + plane.getDouble(Constants.TOTAL_DISTANCE_FLOWN) + route.size()
+				+ (lastLanding == null ? 0 : ((ArrayList<Double>) lastLanding.get(Constants.POSITION)).get(0));
+	}
+}
@@ -0,0 +1,125 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.mongodb.util.LatencyHistogram;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * Concurrency stress test of CargoDAL.handOff
+ *
+ * Built with the bench profile (mvn -P bench package):
+ * java -cp webService.jar org.example.mongodb.HandoffStress <mongouri> [threads] [seconds] [cargo]
+ *
+ * Creates a handful of cargo (8 by default) and has many threads (16 by
+ * default) hand them back and forth between two cities and two planes as fast
+ * as they can. With many more threads than packages most handoffs collide with
+ * another one on the same document, so this is the worst case for write
+ * conflicts. Reports handoffs per second, latency and how many attempts were
+ * retried by withTransaction. The cargo is removed at the end.
+ *
+ * Needs a replica set, with the cities and planes imported.
+ ******/
+public class HandoffStress {
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: HandoffStress <mongouri> [threads] [seconds] [cargo]");
+			System.exit(1);
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int cargoCount = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(args[0]));
+		MongoCollection<Document> cargoCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO);
+
+		List<String> cities = firstIds(mongoClient, Constants.COLLECTION_CITIES, 3);
+		List<String> planes = firstIds(mongoClient, Constants.COLLECTION_PLANES, 2);
+		if (cities.size() < 3 || planes.size() < 2) {
+			System.err.println("Import the cities and planes first");
+			System.exit(1);
+		}
+		// Hand off between the first two cities, never reach the third (the destination)
+		List<String> hops = cities.subList(0, 2);
+
+		List<ObjectId> cargoIds = new ArrayList<ObjectId>();
+		List<Document> cargo = new ArrayList<Document>();
+		for (int i = 0; i < cargoCount; i++) {
+			ObjectId id = new ObjectId();
+			cargoIds.add(id);
+			cargo.add(new Document(Constants._ID, id).append(Constants.LOCATION, hops.get(0))
+					.append(Constants.ORIGIN, hops.get(0)).append(Constants.DESTINATION, cities.get(2))
+					.append(Constants.RECEIVED, new Date()).append(Constants.STATUS, Constants.STATUS_INPROCESS));
+		}
+		cargoCollection.insertMany(cargo);
+
+		AtomicLong succeeded = new AtomicLong();
+		AtomicLong rejected = new AtomicLong();
+		LatencyHistogram latency = new LatencyHistogram();
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+
+		ExecutorService stressexec = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			stressexec.execute(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.currentTimeMillis() < deadline) {
+					String id = cargoIds.get(random.nextInt(cargoIds.size())).toHexString();
+					CargoDAL handedOff = new CargoDAL(mongoClient, id);
+					boolean onPlane = planes.contains(handedOff.getLocation());
+					// Unload at a city (half the time naming the next courier), or load onto a plane
+					String next = onPlane ? hops.get(random.nextInt(hops.size()))
+							: planes.get(random.nextInt(planes.size()));
+					String nextCourier = (onPlane && random.nextBoolean()) ? planes.get(random.nextInt(planes.size()))
+							: null;
+
+					long start = System.nanoTime();
+					if (handedOff.handOff(next, nextCourier)) {
+						succeeded.incrementAndGet();
+					} else {
+						rejected.incrementAndGet();
+					}
+					latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				}
+			});
+		}
+		stressexec.shutdown();
+		stressexec.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+		cargoCollection.deleteMany(in(Constants._ID, cargoIds));
+
+		Document report = CargoDAL.handoffReport();
+		System.out.println(String.format("%d threads, %d cargo, %d seconds", threads, cargoCount, seconds));
+		System.out.println(String.format("handoffs:    %d ok, %d rejected, %.1f/s", succeeded.get(), rejected.get(),
+				(double) succeeded.get() / seconds));
+		System.out.println(String.format("attempts:    %d, %.1f%% retried (conflicts)", report.getLong("attempts"),
+				100.0 * report.getDouble("retryRate")));
+		System.out.println(String.format("latency:     p50 %dus, p99 %dus, max %dus", latency.getValueAtPercentile(50),
+				latency.getValueAtPercentile(99), latency.getMax()));
+		mongoClient.close();
+	}
+
+	private static List<String> firstIds(MongoClient mongoClient, String collectionName, int count) {
+		List<String> ids = new ArrayList<String>();
+		for (Document document : mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS).getCollection(collectionName)
+				.find().projection(new Document(Constants._ID, 1)).limit(count)) {
+			ids.add(document.getString(Constants._ID));
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,201 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Sorts.descending;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.example.mongodb.util.DistanceUtil;
+import org.example.mongodb.util.LatencyHistogram;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * Landings per second, logged the old way (PlaneDAL.updateFlightLog: read the
+ * plane, compute the totals, write) and the new way (PlaneDAL.logLanding: one
+ * pipeline update, totals computed on the server, from MongoDB 5.0)
+ *
+ * Built with the bench profile (mvn -P bench package):
+ * java -cp webService.jar org.example.mongodb.LandingBench <mongouri> [threads] [seconds] [planes] [flightLog]
+ *
+ * Creates a few scratch planes (8 by default) and has many threads (16 by
+ * default) land them in random cities as fast as they can, for each way in
+ * turn. Besides throughput and latency, it recomputes every plane's total
+ * distance from its Flight Log: when two landings of a plane overlap, the
+ * read-modify-write loses one of them from the totals. The scratch planes are
+ * removed at the end.
+ *
+ * On a replica set it also reports the oplog bytes per landing. It should not
+ * grow with the Flight Log, which neither way writes whole (below MongoDB 5.0
+ * logLanding uses $push instead of the pipeline, see PlaneDAL). Starting the
+ * planes with a longer Flight Log (none by default) checks it.
+ *
+ * Needs MongoDB 4.4+ with the cities imported.
+ ******/
+public class LandingBench {
+
+	private interface Landing {
+		boolean log(MongoClient mongoClient, String callSign, Document landingEvent);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: LandingBench <mongouri> [threads] [seconds] [planes] [flightLog]");
+			System.exit(1);
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int planeCount = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		int flightLogSize = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(args[0]));
+		MongoCollection<Document> planesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_PLANES);
+
+		List<String> cities = new ArrayList<String>();
+		List<Object> positions = new ArrayList<Object>();
+		for (Document city : mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CITIES).find().limit(20)) {
+			cities.add(city.getString(Constants._ID));
+			positions.add(city.get(Constants.POSITION));
+		}
+		if (cities.size() < 2) {
+			System.err.println("Import the cities first");
+			System.exit(1);
+		}
+
+		List<String> callSigns = new ArrayList<String>();
+		for (int i = 0; i < planeCount; i++) {
+			callSigns.add("LANDINGBENCH" + i);
+		}
+
+		System.out.println(String.format("%d threads, %d planes with %d landings, %d seconds each", threads,
+				planeCount, flightLogSize, seconds));
+		System.out.println(String.format("%-20s %12s %10s %10s %14s %16s", "", "landings/s", "p50 us", "p99 us",
+				"planes off", "oplog B/landing"));
+		try {
+			run("read-modify-write", (client, callSign, landingEvent) -> new PlaneDAL(client, callSign, false)
+					.updateFlightLog(landingEvent, null), mongoClient, planesCollection, callSigns, cities, positions,
+					flightLogSize, threads, seconds);
+			run("logLanding", (client, callSign, landingEvent) -> new PlaneDAL(client)
+					.logLanding(callSign, landingEvent, null), mongoClient, planesCollection, callSigns, cities,
+					positions, flightLogSize, threads, seconds);
+		} finally {
+			planesCollection.deleteMany(in(Constants._ID, callSigns));
+			mongoClient.close();
+		}
+	}
+
+	private static void run(String name, Landing landing, MongoClient mongoClient,
+			MongoCollection<Document> planesCollection, List<String> callSigns, List<String> cities,
+			List<Object> positions, int flightLogSize, int threads, int seconds) throws InterruptedException {
+		planesCollection.deleteMany(in(Constants._ID, callSigns));
+		// Earlier landings all in the first city, so they add nothing to the total distance
+		List<Document> flightLog = new ArrayList<Document>();
+		for (int i = 0; i < flightLogSize; i++) {
+			flightLog.add(new Document(Constants.LANDING_LOCATION, cities.get(0))
+					.append(Constants.LANDING_DATE, new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+					.append(Constants.POSITION, positions.get(0)));
+		}
+		List<Document> planes = new ArrayList<Document>();
+		for (String callSign : callSigns) {
+			planes.add(new Document(Constants._ID, callSign)
+					.append(Constants.CURRENT_LOCATION, Arrays.asList(0.0, 0.0)).append(Constants.HEADING, 0.0)
+					.append(Constants.ROUTE, new ArrayList<String>()).append(Constants.LANDED, cities.get(0))
+					.append(Constants.SCHEMA_VERSION, PlaneDAL.LATEST_SCHEMA_VERSION)
+					.append(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(callSign))
+					.append(Constants.FLIGHT_LOG, flightLog).append(Constants.TOTAL_DISTANCE_FLOWN, 0.0)
+					.append(Constants.TOTAL_FLIGHT_TIME, 0L));
+		}
+		planesCollection.insertMany(planes);
+		BsonTimestamp oplogStart = lastOplogEntry(mongoClient);
+
+		AtomicLong landed = new AtomicLong();
+		LatencyHistogram latency = new LatencyHistogram();
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+
+		ExecutorService benchexec = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			benchexec.execute(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.currentTimeMillis() < deadline) {
+					String callSign = callSigns.get(random.nextInt(callSigns.size()));
+					int city = random.nextInt(cities.size());
+					Document landingEvent = new Document(Constants.LANDING_LOCATION, cities.get(city))
+							.append(Constants.LANDING_DATE, new Date()).append(Constants.POSITION, positions.get(city));
+
+					long start = System.nanoTime();
+					if (landing.log(mongoClient, callSign, landingEvent)) {
+						landed.incrementAndGet();
+					}
+					latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				}
+			});
+		}
+		benchexec.shutdown();
+		benchexec.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+		System.out.println(String.format("%-20s %12.1f %10d %10d %14d %16s", name, (double) landed.get() / seconds,
+				latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+				planesWithWrongTotals(planesCollection, callSigns),
+				oplogBytesPerLanding(mongoClient, oplogStart, landed.get())));
+	}
+
+	// null on a standalone server, which has no oplog
+	private static BsonTimestamp lastOplogEntry(MongoClient mongoClient) {
+		Document last = mongoClient.getDatabase("local").getCollection("oplog.rs").find()
+				.sort(descending("$natural")).limit(1).first();
+		return (last == null) ? null : last.get("ts", BsonTimestamp.class);
+	}
+
+	// Updates of the planes logged since oplogStart, which are our landings: nothing else runs meanwhile
+	private static String oplogBytesPerLanding(MongoClient mongoClient, BsonTimestamp oplogStart, long landed) {
+		if (oplogStart == null || landed == 0) {
+			return "-";
+		}
+		Document logged = mongoClient.getDatabase("local").getCollection("oplog.rs").aggregate(Arrays.asList(
+				match(and(eq("ns", Constants.DB_NAME_LOGISTICS + "." + Constants.COLLECTION_PLANES), eq("op", "u"),
+						gt("ts", oplogStart))),
+				group(null, sum("bytes", new Document("$bsonSize", "$$ROOT"))))).first();
+		return (logged == null) ? "-" : String.valueOf(((Number) logged.get("bytes")).longValue() / landed);
+	}
+
+	// Planes whose total distance does not add up to their Flight Log
+	@SuppressWarnings("unchecked")
+	private static int planesWithWrongTotals(MongoCollection<Document> planesCollection, List<String> callSigns) {
+		int wrong = 0;
+		for (Document plane : planesCollection.find(in(Constants._ID, callSigns))) {
+			List<Document> flightLog = (List<Document>) plane.get(Constants.FLIGHT_LOG);
+			double expected = 0.0;
+			for (int i = 1; flightLog != null && i < flightLog.size(); i++) {
+				List<Double> from = (List<Double>) flightLog.get(i - 1).get(Constants.POSITION);
+				List<Double> to = (List<Double>) flightLog.get(i).get(Constants.POSITION);
+				expected += DistanceUtil.distance(from.get(0), from.get(1), to.get(0), to.get(1),
+						Constants.UNIT_MILES);
+			}
+			Double total = plane.getDouble(Constants.TOTAL_DISTANCE_FLOWN);
+			if (Math.abs((total == null ? 0.0 : total) - expected) > 1e-6 * Math.max(1.0, expected)) {
+				wrong++;
+			}
+		}
+		return wrong;
+	}
+}
@@ -0,0 +1,341 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.mongodb.util.LatencyHistogram;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * Simulates a fleet flying cargo between cities, through a running web
+ * service, and reports throughput and latency per API route
+ *
+ * Built with the bench profile (mvn -P bench package):
+ * java -cp webService.jar org.example.mongodb.LoadGenerator <baseurl> <mongouri> [planes] [seconds] [steps]
+ * E.G. java -Dload.cargoPerSecond=20 -cp webService.jar org.example.mongodb.LoadGenerator http://localhost:5000 mongodb://localhost:27017/?replicaSet=rs0 200 60 5
+ *
+ * Creates planes (50 by default, LOAD0, LOAD1...) directly in the database,
+ * parked at the first -Dload.cities cities (20). Every plane then:
+ * - reports its position and heading every -Dload.updateIntervalMs (1000)
+ * - lands after flying a leg for -Dload.legSeconds (30)
+ * - unloads the cargo for that city (handoff and delivered), loads the cargo
+ *   waiting there (handoff), and sets a random next city as its route
+ * Meanwhile -Dload.cargoPerSecond (5) cargo are created between random cities.
+ *
+ * The run is repeated steps times (1 by default), for seconds each (60), with
+ * the position updates and the cargo rate multiplied by the step number, so
+ * the report shows where throughput stops growing and latency takes off.
+ * Requests go through -Dload.threads (32) threads; when they cannot keep up,
+ * updates are late rather than dropped, and the offered rate is reported next
+ * to the achieved one.
+ *
+ * Point it at a test database: the planes and the cargo it created are
+ * removed at the end (unless -Dload.keep=true), but the landings, statistics
+ * etc. stay.
+ ******/
+public class LoadGenerator {
+
+	private final String baseUrl;
+	private final List<String> cities = new ArrayList<String>();
+	private final Map<String, List<Double>> positions = new ConcurrentHashMap<String, List<Double>>();
+	private final long legMillis;
+
+	// Cargo created by us, waiting at each city to be picked up
+	private final Map<String, Queue<String[]>> waiting = new ConcurrentHashMap<String, Queue<String[]>>();
+	private final Queue<String> createdCargo = new ConcurrentLinkedQueue<String>();
+
+	// Per API route, for the current step
+	private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final Map<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+	private LoadGenerator(String baseUrl, long legMillis) {
+		this.baseUrl = baseUrl;
+		this.legMillis = legMillis;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: LoadGenerator <baseurl> <mongouri> [planes] [seconds] [steps]");
+			System.exit(1);
+		}
+		int planeCount = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+		int steps = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		int cityCount = Integer.getInteger("load.cities", 20);
+		long updateIntervalMs = Long.getLong("load.updateIntervalMs", 1000);
+		double cargoPerSecond = Double.parseDouble(System.getProperty("load.cargoPerSecond", "5"));
+		int threads = Integer.getInteger("load.threads", 32);
+
+		LoadGenerator generator = new LoadGenerator(args[0],
+				TimeUnit.SECONDS.toMillis(Long.getLong("load.legSeconds", 30)));
+
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(args[1]));
+		MongoCollection<Document> planesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_PLANES);
+		MongoCollection<Document> cargoCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO);
+
+		for (Document city : mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CITIES).find().limit(cityCount)) {
+			@SuppressWarnings("unchecked")
+			List<Double> position = (List<Double>) city.get(Constants.POSITION);
+			generator.cities.add(city.getString(Constants._ID));
+			generator.positions.put(city.getString(Constants._ID), position);
+			generator.waiting.put(city.getString(Constants._ID), new ConcurrentLinkedQueue<String[]>());
+		}
+		if (generator.cities.size() < 2) {
+			System.err.println("Import the cities first");
+			System.exit(1);
+		}
+
+		List<String> callSigns = new ArrayList<String>();
+		List<Document> planes = new ArrayList<Document>();
+		List<SimulatedPlane> fleet = new ArrayList<SimulatedPlane>();
+		for (int i = 0; i < planeCount; i++) {
+			String callSign = "LOAD" + i;
+			String parkedAt = generator.randomCity(null);
+			callSigns.add(callSign);
+			planes.add(new Document(Constants._ID, callSign)
+					.append(Constants.CURRENT_LOCATION, generator.positions.get(parkedAt))
+					.append(Constants.HEADING, 0.0).append(Constants.ROUTE, new ArrayList<String>())
+					.append(Constants.LANDED, parkedAt)
+					.append(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(callSign)));
+			fleet.add(generator.new SimulatedPlane(callSign, parkedAt));
+		}
+		planesCollection.deleteMany(in(Constants._ID, callSigns));
+		planesCollection.insertMany(planes);
+
+		ScheduledExecutorService loadexec = Executors.newScheduledThreadPool(threads);
+		try {
+			for (int step = 1; step <= steps; step++) {
+				generator.latencies.clear();
+				generator.errors.clear();
+
+				List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+				long interval = Math.max(1, updateIntervalMs / step);
+				for (SimulatedPlane plane : fleet) {
+					tasks.add(loadexec.scheduleAtFixedRate(plane,
+							ThreadLocalRandom.current().nextLong(interval), interval, TimeUnit.MILLISECONDS));
+				}
+				double stepCargoPerSecond = cargoPerSecond * step;
+				if (stepCargoPerSecond > 0) {
+					tasks.add(loadexec.scheduleAtFixedRate(generator::createCargo, 0,
+							Math.max(1, (long) (1000000 / stepCargoPerSecond)), TimeUnit.MICROSECONDS));
+				}
+
+				Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+				for (ScheduledFuture<?> task : tasks) {
+					task.cancel(false);
+				}
+
+				double offered = planeCount * 1000.0 / interval + stepCargoPerSecond;
+				generator.report(step, seconds, offered);
+			}
+		} finally {
+			loadexec.shutdownNow();
+			loadexec.awaitTermination(30, TimeUnit.SECONDS);
+			if (!Boolean.getBoolean("load.keep")) {
+				planesCollection.deleteMany(in(Constants._ID, callSigns));
+				List<ObjectId> cargoIds = new ArrayList<ObjectId>();
+				for (String id : generator.createdCargo) {
+					cargoIds.add(new ObjectId(id));
+				}
+				if (!cargoIds.isEmpty()) {
+					cargoCollection.deleteMany(in(Constants._ID, cargoIds));
+				}
+			}
+			mongoClient.close();
+		}
+	}
+
+	private class SimulatedPlane implements Runnable {
+		private final String callSign;
+		private String from;
+		private String to;
+		private long legStart;
+		private boolean needsRoute = true;
+		// id and destination of the cargo on board
+		private final List<String[]> onBoard = new ArrayList<String[]>();
+
+		SimulatedPlane(String callSign, String parkedAt) {
+			this.callSign = callSign;
+			this.from = parkedAt;
+		}
+
+		// Synchronized for the tick of the previous step that may still be running
+		@Override
+		public synchronized void run() {
+			try {
+				if (needsRoute) {
+					to = randomCity(from);
+					request("PUT", "/planes/*/route/*", "/planes/" + callSign + "/route/" + encode(to));
+					legStart = System.currentTimeMillis();
+					needsRoute = false;
+					return;
+				}
+
+				List<Double> origin = positions.get(from);
+				List<Double> destination = positions.get(to);
+				double progress = Math.min(1.0, (double) (System.currentTimeMillis() - legStart) / legMillis);
+				double longitude = origin.get(0) + (destination.get(0) - origin.get(0)) * progress;
+				double latitude = origin.get(1) + (destination.get(1) - origin.get(1)) * progress;
+				double heading = (Math.toDegrees(Math.atan2(destination.get(0) - origin.get(0),
+						destination.get(1) - origin.get(1))) + 360) % 360;
+				String location = "/planes/" + callSign + "/location/" + longitude + "," + latitude + "/"
+						+ Math.round(heading);
+
+				if (progress < 1.0) {
+					request("PUT", "/planes/*/location/*/*", location);
+					return;
+				}
+
+				request("PUT", "/planes/*/location/*/*/*", location + "/" + encode(to));
+				land();
+				from = to;
+				needsRoute = true;
+			} catch (Exception e) {
+				// Keep flying, the failure is counted in request()
+			}
+		}
+
+		private void land() throws IOException {
+			String city = encode(to);
+			for (Iterator<String[]> cargo = onBoard.iterator(); cargo.hasNext();) {
+				String[] parcel = cargo.next();
+				if (parcel[1].equals(to)) {
+					request("PUT", "/cargo/*/handoff/*", "/cargo/" + parcel[0] + "/handoff/" + city);
+					request("PUT", "/cargo/*/delivered", "/cargo/" + parcel[0] + "/delivered");
+					cargo.remove();
+				}
+			}
+			// Load up to 10 parcels waiting here
+			Queue<String[]> here = waiting.get(to);
+			for (int i = 0; i < 10; i++) {
+				String[] parcel = here.poll();
+				if (parcel == null) {
+					break;
+				}
+				if (request("PUT", "/cargo/*/handoff/*", "/cargo/" + parcel[0] + "/handoff/" + callSign) == 200) {
+					onBoard.add(parcel);
+				}
+			}
+		}
+	}
+
+	private void createCargo() {
+		String from = randomCity(null);
+		String to = randomCity(from);
+		try {
+			String[] response = new String[1];
+			if (request("POST", "/cargo/*/to/*", "/cargo/" + encode(from) + "/to/" + encode(to), response) == 200) {
+				String id = Document.parse(response[0]).getString(Constants.CARGO_ID);
+				createdCargo.add(id);
+				waiting.get(from).add(new String[] { id, to });
+			}
+		} catch (Exception e) {
+			// Counted in request()
+		}
+	}
+
+	private String randomCity(String not) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String city;
+		do {
+			city = cities.get(random.nextInt(cities.size()));
+		} while (city.equals(not));
+		return city;
+	}
+
+	private static String encode(String pathSegment) throws UnsupportedEncodingException {
+		return URLEncoder.encode(pathSegment, "UTF-8").replace("+", "%20");
+	}
+
+	private int request(String method, String route, String path) throws IOException {
+		return request(method, route, path, null);
+	}
+
+	/**
+	 * @param route - what to report the request under, the route as in WebService
+	 * @param response - if not null, gets the response body
+	 */
+	private int request(String method, String route, String path, String[] response) throws IOException {
+		String name = method + " " + route;
+		long start = System.nanoTime();
+		int status;
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+			connection.setRequestMethod(method);
+			status = connection.getResponseCode();
+			// Read the whole response, so the connection is kept alive for the next call
+			StringBuilder body = new StringBuilder();
+			try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while (in != null && (read = in.read(buffer)) != -1) {
+					body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+				}
+			}
+			if (response != null) {
+				response[0] = body.toString();
+			}
+		} catch (IOException e) {
+			errors.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+			throw e;
+		}
+		latencies.computeIfAbsent(name, k -> new LatencyHistogram())
+				.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		if (status != 200) {
+			errors.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+		}
+		return status;
+	}
+
+	private void report(int step, int seconds, double offeredPerSecond) {
+		long total = 0;
+		for (LatencyHistogram latency : latencies.values()) {
+			total += latency.getCount();
+		}
+		System.out.println(String.format("step %d: offered %.0f req/s (position updates and cargo created), "
+				+ "achieved %.0f req/s in total", step, offeredPerSecond, (double) total / seconds));
+		System.out.println(String.format("  %-30s %10s %8s %9s %9s %9s %9s", "route", "req/s", "errors", "p50 ms",
+				"p95 ms", "p99 ms", "max ms"));
+		Set<String> routes = new TreeSet<String>(latencies.keySet());
+		routes.addAll(errors.keySet());
+		for (String route : routes) {
+			LatencyHistogram latency = latencies.getOrDefault(route, new LatencyHistogram());
+			AtomicLong failed = errors.get(route);
+			System.out.println(String.format("  %-30s %10.1f %8d %9.1f %9.1f %9.1f %9.1f", route,
+					(double) latency.getCount() / seconds, failed == null ? 0 : failed.get(),
+					latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(95) / 1000.0,
+					latency.getValueAtPercentile(99) / 1000.0, latency.getMax() / 1000.0));
+		}
+		System.out.println();
+	}
+}
@@ -0,0 +1,93 @@
+package org.example.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.mongodb.util.LatencyHistogram;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/******
+ * Shows which cargo operations mongos can route to a single shard
+ *
+ * Built with the bench profile (mvn -P bench package):
+ * java -cp webService.jar org.example.mongodb.ShardTargetingBench <mongosuri> [iterations]
+ *
+ * For each shape of cargo query or update (the way CargoDAL used to issue it,
+ * by _id only, and the way it does now, with the shard key) asks mongos to
+ * explain it, and reports how many shards it goes to (SINGLE_SHARD vs a
+ * scatter-gather over all of them), then times it.
+ *
+ * Run against the cluster started by scripts/sharded-cluster.sh, with cargo
+ * imported. Only reads, and updates that set a field to the value it has.
+ ******/
+public class ShardTargetingBench {
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: ShardTargetingBench <mongosuri> [iterations]");
+			System.exit(1);
+		}
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(args[0]));
+		MongoDatabase database = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS);
+		MongoCollection<Document> cargoCollection = database.getCollection(Constants.COLLECTION_CARGO);
+
+		Document sample = cargoCollection.find(new Document(Constants.STATUS, Constants.STATUS_INPROCESS)).first();
+		if (sample == null) {
+			System.err.println("Create some cargo first");
+			System.exit(1);
+		}
+		ObjectId id = sample.getObjectId(Constants._ID);
+		String location = sample.getString(Constants.LOCATION);
+
+		Document byId = new Document(Constants._ID, id);
+		Document byShardKey = new Document(Constants.LOCATION, location).append(Constants._ID, id);
+		Document atLocation = new Document(Constants.LOCATION, location)
+				.append(Constants.STATUS, Constants.STATUS_INPROCESS);
+		Document noop = new Document("$set", new Document(Constants.STATUS, Constants.STATUS_INPROCESS));
+
+		System.out.println(String.format("%-34s %-14s %6s %8s %8s", "operation", "plan", "shards", "p50us", "p99us"));
+		report(database, "find by _id (before)", findCommand(byId), iterations);
+		report(database, "find by location + _id", findCommand(byShardKey), iterations);
+		report(database, "cargo at location (a page)", findCommand(atLocation).append("limit", 100), iterations);
+		report(database, "update by _id (before)", updateCommand(byId, noop), iterations);
+		report(database, "update by location + _id", updateCommand(byShardKey, noop), iterations);
+		mongoClient.close();
+	}
+
+	private static Document findCommand(Document filter) {
+		return new Document("find", Constants.COLLECTION_CARGO).append("filter", filter);
+	}
+
+	private static Document updateCommand(Document filter, Document update) {
+		List<Document> updates = new ArrayList<Document>();
+		updates.add(new Document("q", filter).append("u", update));
+		return new Document("update", Constants.COLLECTION_CARGO).append("updates", updates);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void report(MongoDatabase database, String operation, Document command, int iterations) {
+		Document explained = database.runCommand(new Document("explain", command).append("verbosity", "queryPlanner"));
+		Document winningPlan = (Document) ((Document) explained.get("queryPlanner")).get("winningPlan");
+		String stage = winningPlan.getString("stage");
+		List<Document> shards = (List<Document>) winningPlan.get("shards");
+
+		LatencyHistogram latency = new LatencyHistogram();
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			database.runCommand(command);
+			latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		}
+		System.out.println(String.format("%-34s %-14s %6s %8d %8d", operation, stage,
+				shards == null ? "-" : Integer.toString(shards.size()),
+				latency.getValueAtPercentile(50), latency.getValueAtPercentile(99)));
+	}
+}
@@ -1,18 +1,31 @@
 package org.example.mongodb;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.json.JsonMode;
 import org.bson.json.JsonWriterSettings;
+import org.example.mongodb.util.RawJsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.mongodb.MongoClient;
 
 import spark.Request;
@@ -21,6 +34,14 @@ import spark.Response;
 public class APIRoutes {
 	Logger logger;
 	MongoClient mongoClient;
+	PlanePositionFeed planePositionFeed;
+	PlaneChangeLog planeChangeLog;
+	MaintenanceScheduler maintenanceScheduler;
+	StatsService statsService;
+	CargoArchiver cargoArchiver;
+	PlaneSchemaMigrator planeSchemaMigrator;
+	LandingListenerCoordinator landingListenerCoordinator;
+	AdmissionControl admissionControl;
 
 	// Define how to write JSON with types like Binary, GUID , Decimal128 and Date()
 	// output as strings by default MongoDB preserves this type information
@@ -36,6 +57,29 @@ public class APIRoutes {
 			.objectIdConverter((value, writer) -> writer.writeString(value.toHexString()))
 			.symbolConverter((value, writer) -> writer.writeString(value)).build();
 
+	// Read endpoints write the stored BSON straight out as JSON, renaming fields
+	// on the way (stored name -> name in the API)
+	static final Map<String, String> PLANE_FIELDS = new LinkedHashMap<String, String>();
+	static final Map<String, String> CITY_FIELDS = new LinkedHashMap<String, String>();
+	static final Map<String, String> CARGO_FIELDS = new LinkedHashMap<String, String>();
+	static {
+		PLANE_FIELDS.put(Constants._ID, Constants.CALLSIGN);
+		for (String field : new String[] { Constants.CURRENT_LOCATION, Constants.HEADING, Constants.ROUTE,
+				Constants.LANDED }) {
+			PLANE_FIELDS.put(field, field);
+		}
+		CITY_FIELDS.put(Constants._ID, Constants.NAME);
+		CITY_FIELDS.put(Constants.COUNTRY, Constants.COUNTRY);
+		CITY_FIELDS.put(Constants.POSITION, Constants.LOCATION);
+		CARGO_FIELDS.put(Constants._ID, Constants.CARGO_ID);
+		for (String field : new String[] { Constants.LOCATION, Constants.DESTINATION, Constants.COURIER,
+				Constants.RECEIVED, Constants.DELIVERED, Constants.STATUS }) {
+			CARGO_FIELDS.put(field, field);
+		}
+	}
+
+	RawJsonWriter rawJson = new RawJsonWriter(plainJSON);
+
 	// So we can connect any DALs we use to the database
 	APIRoutes(MongoClient mongoClient) {
 		logger = LoggerFactory.getLogger(APIRoutes.class);
@@ -44,15 +88,117 @@ public class APIRoutes {
 		mongoClient.getDatabase("any").runCommand(new Document("ping", 1));
 	}
 
+	void setPlanePositionFeed(PlanePositionFeed planePositionFeed) {
+		this.planePositionFeed = planePositionFeed;
+	}
+
+	void setPlaneChangeLog(PlaneChangeLog planeChangeLog) {
+		this.planeChangeLog = planeChangeLog;
+	}
+
+	void setMaintenanceScheduler(MaintenanceScheduler maintenanceScheduler) {
+		this.maintenanceScheduler = maintenanceScheduler;
+	}
+
+	void setStatsService(StatsService statsService) {
+		this.statsService = statsService;
+	}
+
+	void setCargoArchiver(CargoArchiver cargoArchiver) {
+		this.cargoArchiver = cargoArchiver;
+	}
+
+	void setPlaneSchemaMigrator(PlaneSchemaMigrator planeSchemaMigrator) {
+		this.planeSchemaMigrator = planeSchemaMigrator;
+	}
+
+	void setLandingListenerCoordinator(LandingListenerCoordinator landingListenerCoordinator) {
+		this.landingListenerCoordinator = landingListenerCoordinator;
+	}
+
+	void setAdmissionControl(AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+	}
+
 	// *** PLANES ***
 
 	// Fetch planes
 	// E.G. curl -X GET http://localhost:5000/planes
-	public ArrayList<String> getPlanes(Request req, Response res) {
+	public Object getPlanes(Request req, Response res) {
 
 		PlaneDAL planes = new PlaneDAL(mongoClient);
 
-		return planes.getAllPlanes();
+		if (req.queryParams("since") != null) {
+			return getPlanesSince(planes, req.queryParams("since"));
+		}
+		return rawJson.toJsonArray(planes.getAllPlanes(), PLANE_FIELDS);
+	}
+
+	// Fetch only the planes changed since the token returned by the previous call.
+	// Pass an empty token to get the whole fleet along with the first token.
+	// E.G. curl -X GET http://localhost:5000/planes?since=1598357245000.42
+	private String getPlanesSince(PlaneDAL planes, String since) {
+		Document toReturn = new Document();
+
+		// Token first, so changes made while we read are sent again next time.
+		// No Change Stream, no deltas...but the client still gets a valid answer
+		String token = (planeChangeLog == null) ? "" : planeChangeLog.currentToken();
+		List<String> changed = (planeChangeLog == null) ? null : planeChangeLog.changedSince(since);
+		ArrayList<Document> changedPlanes = planes.getPlanes(changed);
+
+		ArrayList<String> removed = new ArrayList<String>();
+		if (changed != null) {
+			removed.addAll(changed);
+			for (Document plane : changedPlanes) {
+				removed.remove(plane.getString(Constants.CALLSIGN));
+			}
+		}
+		return toReturn.append("token", token).append("full", changed == null).append("planes", changedPlanes)
+				.append("removed", removed).toJson(plainJSON);
+	}
+
+	// Server-Sent Events feed of the fields of planes that changed. Clients should
+	// GET /planes first, and reload it when they receive a "reset" event
+	// E.G. curl -N -X GET http://localhost:5000/planes/stream
+	public String streamPlanes(Request req, Response res) throws IOException {
+		PlanePositionFeed.Client client = (planePositionFeed == null) ? null : planePositionFeed.connect();
+
+		if (client == null) {
+			res.status(503);
+			return new Document("ok", false).append("error", "Too many clients on the plane stream").toJson();
+		}
+
+		HttpServletResponse raw = res.raw();
+		raw.setStatus(200);
+		raw.setContentType("text/event-stream");
+		raw.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		raw.setHeader("Cache-Control", "no-cache");
+
+		// Blocks this request thread until the client goes away
+		planePositionFeed.stream(client, new OutputStreamWriter(raw.getOutputStream(), StandardCharsets.UTF_8),
+				plainJSON);
+		return "";
+	}
+
+	// Fetch the planes closest to needing maintenance, served from memory
+	// E.G. curl -X GET http://localhost:5000/planes/maintenance?top=10
+	public String getPlanesDueForMaintenance(Request req, Response res) {
+		int top = 10;
+
+		if (maintenanceScheduler == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Maintenance scheduler is not running").toJson();
+		}
+		if (req.queryParams("top") != null) {
+			try {
+				top = Integer.parseInt(req.queryParams("top"));
+			} catch (NumberFormatException e) {
+				res.status(404);
+				return new Document("ok", false).append("error", "top needs to be an integer").toJson();
+			}
+		}
+		return new Document("planes", maintenanceScheduler.top(top))
+				.append("alerts", maintenanceScheduler.getAlertCount()).toJson(plainJSON);
 	}
 
 	// Fetch plane by ID
@@ -182,10 +328,10 @@ public class APIRoutes {
 
 	// Fetch ALL cities
 	// E.G. curl -X GET http://localhost:5000/cities
-	public ArrayList<String> getCities(Request req, Response res) {
+	public String getCities(Request req, Response res) {
 		CityDAL cities = new CityDAL(mongoClient);
 
-		return cities.getAllCities();
+		return rawJson.toJsonArray(cities.getAllCities(), CITY_FIELDS);
 	}
 
 	// Fetch City Neighbors by ID
@@ -214,21 +360,17 @@ public class APIRoutes {
 	public String getCityById(Request req, Response res) {
 		String cityId = req.splat()[0];
 
-		CityDAL city;
+		CityDAL cities;
 
-		city = new CityDAL(mongoClient, cityId);
+		cities = new CityDAL(mongoClient);
+		RawBsonDocument city = cities.getCityRaw(cityId);
 
-		if (city.isPopulated() == false) {
+		if (city == null) {
 			res.status(404);
-			return new Document("ok", false).append("error", city.getLastError()).toJson();
+			return new Document("ok", false).append("error", cities.getLastError()).toJson();
 		}
-		// Construct a JSON Document to return in our API
-		Document cityForAPI = new Document();
-		cityForAPI.append("name", city.getName());
-		cityForAPI.append("country", city.getCountry());
-		cityForAPI.append("location", city.getPosition());
-
-		return cityForAPI.toJson(plainJSON);
+		// Straight from the stored BSON to the JSON of our API
+		return rawJson.toJson(city, CITY_FIELDS);
 
 	}
 
@@ -237,16 +379,55 @@ public class APIRoutes {
 	// *** CARGO ***
 	// ************
 
-	// Fetch Cargo by ID
+	// Every /cargo/<id>/... route takes an optional ?at=<location> of the cargo,
+	// so that on a sharded cluster the lookup goes to one shard only.
+
+	// Fetch Cargo by ID, one page at a time. The next page starts after the id of
+	// the last cargo returned. Optionally only the cargo for a destination or courier.
 	// E.G. curl -X GET http://localhost:5000/cargo/location/London
-	public ArrayList<String> getCargoAtLocation(Request req, Response res) {
+	// E.G. curl -X GET "http://localhost:5000/cargo/location/London?after=5f45303156fd8ce208650caf&limit=500&destination=Cairo"
+	public Object getCargoAtLocation(Request req, Response res) {
 		String location = req.splat()[0];
+		int limit = CargoDAL.DEFAULT_PAGE_SIZE;
+
+		if (req.queryParams("limit") != null) {
+			try {
+				limit = Integer.parseInt(req.queryParams("limit"));
+			} catch (NumberFormatException e) {
+				res.status(404);
+				return new Document("ok", false).append("error", "limit needs to be an integer").toJson();
+			}
+		}
 
 		CargoDAL cargo;
 
 		cargo = new CargoDAL(mongoClient);
-		return cargo.cargoAtLocation(location);
+		return rawJson.toJsonArray(cargo.cargoAtLocation(location, req.queryParams("after"), limit,
+				req.queryParams("destination"), req.queryParams("courier")), CARGO_FIELDS);
+
+	}
+
+	// Delivery time percentiles for a route, or for all cargo if no route is given
+	// E.G. curl -X GET "http://localhost:5000/cargo/sla?origin=London&destination=Cairo"
+	public String getCargoSla(Request req, Response res) {
+		String origin = req.queryParams("origin");
+		String destination = req.queryParams("destination");
+		CargoSlaTracker slaTracker = CargoSlaTracker.installed();
 
+		if (slaTracker == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Delivery times are not being tracked").toJson();
+		}
+		if ((origin == null) != (destination == null)) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Both origin and destination are needed").toJson();
+		}
+		Document sla = slaTracker.percentiles(origin, destination);
+		if (sla == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Nothing was delivered on this route yet").toJson();
+		}
+		return sla.toJson(plainJSON);
 	}
 
 	// Create a new cargo at "location" which needs to get to "destination" - error
@@ -261,7 +442,7 @@ public class APIRoutes {
 
 		cargo = new CargoDAL(mongoClient);
 		if (cargo.createCargo(location, destination)) {
-			return new Document("ok", true).toJson();
+			return new Document("ok", true).append(Constants.CARGO_ID, cargo.getId()).toJson();
 		}else {
 			res.status(404);
 			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
@@ -269,15 +450,65 @@ public class APIRoutes {
 
 	}
 
-	// Set status field to 'Delivered' - Increment some count of delivered items
-	// too.
+	// Create many cargo at once, from a JSON array or newline delimited JSON
+	// (one object per line) of location and destination pairs. Cargo with an
+	// unknown city is reported in errors, the rest is created.
+	// E.G. curl -X POST http://localhost:5000/cargo/bulk -d '[{"location":"London","destination":"Cairo"}]'
+	// E.G. curl -X POST http://localhost:5000/cargo/bulk --data-binary @parcels.ndjson
+	public String createCargoBulk(Request req, Response res) throws IOException {
+		List<Document> requests = new ArrayList<Document>();
+
+		// Lenient, so a stream of top level objects (NDJSON) reads like an array
+		try (JsonReader reader = new JsonReader(
+				new InputStreamReader(req.raw().getInputStream(), StandardCharsets.UTF_8))) {
+			reader.setLenient(true);
+			boolean isArray = reader.peek() == JsonToken.BEGIN_ARRAY;
+			if (isArray) {
+				reader.beginArray();
+			}
+			while (reader.hasNext() && reader.peek() != JsonToken.END_DOCUMENT) {
+				if (requests.size() == CargoDAL.MAX_BULK_SIZE) {
+					res.status(413);
+					return new Document("ok", false).append("error",
+							String.format("At most %d cargo at once", CargoDAL.MAX_BULK_SIZE)).toJson();
+				}
+				requests.add(readCargoRequest(reader));
+			}
+		} catch (IllegalStateException | IOException e) {
+			res.status(400);
+			return new Document("ok", false).append("error", "Malformed JSON: " + e.getMessage()).toJson();
+		}
+
+		CargoDAL cargo = new CargoDAL(mongoClient);
+		Document created = cargo.createCargoBulk(requests);
+		return created.append("ok", ((List<?>) created.get("errors")).isEmpty()).toJson();
+	}
+
+	private Document readCargoRequest(JsonReader reader) throws IOException {
+		Document request = new Document();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ((Constants.LOCATION.equals(name) || Constants.DESTINATION.equals(name))
+					&& reader.peek() == JsonToken.STRING) {
+				request.append(name, reader.nextString());
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return request;
+	}
+
+	// Set status field to 'Delivered' - the count of delivered items is kept by
+	// the StatsService.
 	// E.G. curl -X PUT
 	// http://localhost:5000/cargo/5f45303156fd8ce208650caf/delivered
 	public String cargoDelivered(Request req, Response res) {
 		String cargoId = req.splat()[0];
 		CargoDAL cargo;
 
-		cargo = new CargoDAL(mongoClient, cargoId);
+		cargo = new CargoDAL(mongoClient, cargoId, req.queryParams("at"));
 		if (cargo.isPopulated() == false) {
 			res.status(404);
 			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
@@ -302,7 +533,7 @@ public class APIRoutes {
 		String courier = req.splat()[1];
 		CargoDAL cargo;
 
-		cargo = new CargoDAL(mongoClient, cargoId);
+		cargo = new CargoDAL(mongoClient, cargoId, req.queryParams("at"));
 		if (cargo.isPopulated() == false) {
 			res.status(404);
 			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
@@ -323,7 +554,7 @@ public class APIRoutes {
 		String cargoId = req.splat()[0];
 		CargoDAL cargo;
 
-		cargo = new CargoDAL(mongoClient, cargoId);
+		cargo = new CargoDAL(mongoClient, cargoId, req.queryParams("at"));
 		if (cargo.isPopulated() == false) {
 			res.status(404);
 			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
@@ -346,7 +577,7 @@ public class APIRoutes {
 		String location = req.splat()[1];
 		CargoDAL cargo;
 
-		cargo = new CargoDAL(mongoClient, cargoId);
+		cargo = new CargoDAL(mongoClient, cargoId, req.queryParams("at"));
 		if (cargo.isPopulated() == false) {
 			res.status(404);
 			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
@@ -360,4 +591,146 @@ public class APIRoutes {
 		}
 	}
 
+	// Hand a piece of cargo over to its next location in one transaction: move it,
+	// assign its next courier (optional, only when unloading at a city) and
+	// deliver it if the location is its destination
+	// E.G. curl -X PUT http://localhost:5000/cargo/5f4530d756fd8ce208650d83/handoff/CARGO10
+	// E.G. curl -X PUT "http://localhost:5000/cargo/5f4530d756fd8ce208650d83/handoff/London?courier=CARGO12"
+	public String cargoHandOff(Request req, Response res) {
+		String cargoId = req.splat()[0];
+		String location = req.splat()[1];
+		CargoDAL cargo;
+
+		cargo = new CargoDAL(mongoClient, cargoId, req.queryParams("at"));
+		if (cargo.isPopulated() == false) {
+			res.status(404);
+			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
+		}
+
+		if (cargo.handOff(location, req.queryParams("courier"))) {
+			return new Document("ok", true).append(Constants.STATUS, cargo.getStatus()).toJson();
+		} else {
+			res.status(404);
+			return new Document("ok", false).append("error", cargo.getLastError()).toJson();
+		}
+	}
+
+	// ************
+
+	// *** STATS ***
+
+	// Fleet and cargo statistics, served from memory
+	// E.G. curl -X GET http://localhost:5000/stats
+	public String getStats(Request req, Response res) {
+		if (statsService == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Statistics are not being collected").toJson();
+		}
+		return statsService.snapshot().toJson(plainJSON);
+	}
+
+	// ************
+
+	// *** REPORTS ***
+
+	// Delivery time per route, busiest cities and cargo per status
+	// E.G. curl -X GET http://localhost:5000/reports/cargo
+	public String getCargoReport(Request req, Response res) {
+		ReportsDAL reports = new ReportsDAL(mongoClient);
+		Document report = reports.cargoReport();
+
+		if (report == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", reports.getLastError()).toJson();
+		}
+		return report.toJson(plainJSON);
+	}
+
+	// Utilisation per plane and for the whole fleet
+	// E.G. curl -X GET http://localhost:5000/reports/planes
+	public String getPlaneReport(Request req, Response res) {
+		ReportsDAL reports = new ReportsDAL(mongoClient);
+		Document report = reports.planeReport();
+
+		if (report == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", reports.getLastError()).toJson();
+		}
+		return report.toJson(plainJSON);
+	}
+
+	// ************
+
+	// *** METRICS ***
+
+	// Write Concern and latency per class of write
+	// E.G. curl -X GET http://localhost:5000/metrics/writes
+	public String getWriteMetrics(Request req, Response res) {
+		return WriteConcernPolicy.report().toJson(plainJSON);
+	}
+
+	// Transactional cargo handoffs, and how often they had to be retried
+	// E.G. curl -X GET http://localhost:5000/metrics/handoffs
+	public String getHandoffMetrics(Request req, Response res) {
+		return CargoDAL.handoffReport().toJson(plainJSON);
+	}
+
+	// Delivered cargo moved to the archive
+	// E.G. curl -X GET http://localhost:5000/metrics/archive
+	public String getArchiveMetrics(Request req, Response res) {
+		if (cargoArchiver == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Cargo archiving is disabled").toJson();
+		}
+		return cargoArchiver.report().toJson(plainJSON);
+	}
+
+	// Progress of the background plane schema migration
+	// E.G. curl -X GET http://localhost:5000/metrics/migration
+	public String getMigrationMetrics(Request req, Response res) {
+		if (planeSchemaMigrator == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Plane schema migration is disabled").toJson();
+		}
+		return planeSchemaMigrator.report().toJson(plainJSON);
+	}
+
+	// Requests admitted and turned away, per route and per bulkhead
+	// E.G. curl -X GET http://localhost:5000/metrics/admission
+	public String getAdmissionMetrics(Request req, Response res) {
+		return admissionControl.report().toJson(plainJSON);
+	}
+
+	// Landings partitions this instance listens to
+	// E.G. curl -X GET http://localhost:5000/metrics/listener
+	public String getListenerMetrics(Request req, Response res) {
+		if (landingListenerCoordinator == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Landings are not partitioned").toJson();
+		}
+		return landingListenerCoordinator.report().toJson(plainJSON);
+	}
+
+	// Hit rate, evictions and staleness of the plane state cache
+	// E.G. curl -X GET http://localhost:5000/metrics/planecache
+	public String getPlaneCacheMetrics(Request req, Response res) {
+		PlaneStateCache cache = PlaneStateCache.installed();
+
+		if (cache == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Plane state cache is disabled").toJson();
+		}
+		return cache.report().toJson(plainJSON);
+	}
+
+	// Clients connected to the plane position feed
+	// E.G. curl -X GET http://localhost:5000/metrics/planestream
+	public String getPlaneStreamMetrics(Request req, Response res) {
+		if (planePositionFeed == null) {
+			res.status(404);
+			return new Document("ok", false).append("error", "Plane stream is not running").toJson();
+		}
+		return planePositionFeed.report().toJson(plainJSON);
+	}
+
 }
@@ -0,0 +1,231 @@
+package org.example.mongodb;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.example.mongodb.util.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/******
+ * Keeps one busy client, or one busy kind of request, from taking every
+ * MongoDB connection
+ *
+ * Every route (but the plane position feed and /metrics) is wrapped with
+ * admit(), and goes through, in order:
+ * - for write routes, a token bucket per client (by IP address, or by a
+ *   header set by a trusted load balancer) and, when configured, a token
+ *   bucket for the route
+ * - a cap on the requests in flight in the whole web service
+ * - the bulkhead of its kind of work: reads, telemetry (plane positions) and
+ *   other writes (cargo, landings, routes) each have their own cap, so a
+ *   flood of position updates can only ever hold the telemetry share of the
+ *   connections, and cargo keeps the rest
+ * A request that does not get through is answered at once with 429 and
+ * Retry-After, rather than queuing for a connection.
+ *
+ * Set at startup, E.G.
+ * -Dlogistics.admission.maxInFlight=100
+ * -Dlogistics.admission.bulkheads=read=40,telemetry=20,write=40
+ * -Dlogistics.admission.clientRate=50 -Dlogistics.admission.clientBurst=100
+ * -Dlogistics.admission.clientHeader=X-Forwarded-For
+ * -Dlogistics.admission.routeRates=plane_location=2000,cargo_create=500
+ ******/
+public class AdmissionControl {
+
+	enum Bulkhead {
+		READ, TELEMETRY, WRITE
+	}
+
+	// Clients idle long enough for their bucket to fill are forgotten past this many
+	private static final int MAX_CLIENTS = 10000;
+
+	private static class RouteCounters {
+		final AtomicLong admitted = new AtomicLong();
+		final AtomicLong clientLimited = new AtomicLong();
+		final AtomicLong routeLimited = new AtomicLong();
+		final AtomicLong busy = new AtomicLong();
+	}
+
+	Logger logger;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final Map<Bulkhead, Integer> limits = new EnumMap<Bulkhead, Integer>(Bulkhead.class);
+	private final Map<Bulkhead, Semaphore> bulkheads = new EnumMap<Bulkhead, Semaphore>(Bulkhead.class);
+	private final Map<Bulkhead, AtomicLong> bulkheadsFull = new EnumMap<Bulkhead, AtomicLong>(Bulkhead.class);
+	private final double clientRate;
+	private final double clientBurst;
+	private final String clientHeader;
+	private final Map<String, TokenBucket> clientBuckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final Map<String, TokenBucket> routeBuckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final Map<String, RouteCounters> counters = new ConcurrentHashMap<String, RouteCounters>();
+
+	/**
+	 * @param maxInFlight - requests handled at once, over all routes
+	 * @param bulkheads   - comma separated list of kind=requests, E.G.
+	 *                    read=40,telemetry=20,write=40, for the kinds to change
+	 * @param clientRate  - write requests per second per client, 0 for no limit
+	 * @param clientBurst  - write requests a client can send at once after a pause
+	 * @param clientHeader - header naming the client, set by a trusted load
+	 *                     balancer, null to go by IP address
+	 * @param routeRates   - comma separated list of route=requests per second
+	 */
+	AdmissionControl(int maxInFlight, String bulkheads, double clientRate, double clientBurst, String clientHeader,
+			String routeRates) {
+		logger = LoggerFactory.getLogger(AdmissionControl.class);
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.clientRate = clientRate;
+		this.clientBurst = Math.max(clientBurst, clientRate);
+		this.clientHeader = (clientHeader == null || clientHeader.trim().isEmpty()) ? null : clientHeader.trim();
+
+		// Add up to the default MongoClient connection pool (100)
+		limits.put(Bulkhead.READ, 40);
+		limits.put(Bulkhead.TELEMETRY, 20);
+		limits.put(Bulkhead.WRITE, 40);
+		for (Map.Entry<String, String> entry : parse(bulkheads).entrySet()) {
+			try {
+				limits.put(Bulkhead.valueOf(entry.getKey().toUpperCase()), Integer.parseInt(entry.getValue()));
+			} catch (IllegalArgumentException e) {
+				logger.warn(String.format("Ignoring bulkhead setting '%s=%s'", entry.getKey(), entry.getValue()));
+			}
+		}
+		for (Bulkhead bulkhead : Bulkhead.values()) {
+			this.bulkheads.put(bulkhead, new Semaphore(limits.get(bulkhead)));
+			bulkheadsFull.put(bulkhead, new AtomicLong());
+		}
+
+		for (Map.Entry<String, String> entry : parse(routeRates).entrySet()) {
+			try {
+				double rate = Double.parseDouble(entry.getValue());
+				routeBuckets.put(entry.getKey(), new TokenBucket(rate, rate));
+			} catch (NumberFormatException e) {
+				logger.warn(String.format("Ignoring route rate '%s=%s'", entry.getKey(), entry.getValue()));
+			}
+		}
+		logger.info(String.format("Admission: %d in flight, bulkheads %s, %.1f writes/s per client (by %s), route rates %s",
+				maxInFlight, limits, clientRate, this.clientHeader == null ? "IP address" : this.clientHeader,
+				routeBuckets.keySet()));
+	}
+
+	private static Map<String, String> parse(String spec) {
+		Map<String, String> entries = new TreeMap<String, String>();
+		if (spec == null || spec.trim().isEmpty()) {
+			return entries;
+		}
+		for (String entry : spec.split(",")) {
+			String[] keyValue = entry.split("=");
+			if (keyValue.length == 2) {
+				entries.put(keyValue[0].trim(), keyValue[1].trim());
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @param bulkhead - the kind of work the route does
+	 * @param name     - the route, as named in the route rates and /metrics/admission
+	 * @param route    - what to run once admitted
+	 */
+	Route admit(Bulkhead bulkhead, String name, Route route) {
+		RouteCounters routeCounters = counters.computeIfAbsent(name, key -> new RouteCounters());
+		TokenBucket routeBucket = routeBuckets.get(name);
+		Semaphore bulkheadPermits = bulkheads.get(bulkhead);
+
+		return (req, res) -> {
+			if (bulkhead != Bulkhead.READ) {
+				if (clientRate > 0 && !clientBucket(client(req)).tryTake()) {
+					routeCounters.clientLimited.incrementAndGet();
+					return reject(res, "Too many requests from this client");
+				}
+				if (routeBucket != null && !routeBucket.tryTake()) {
+					routeCounters.routeLimited.incrementAndGet();
+					return reject(res, "Too many requests for this route");
+				}
+			}
+			if (!inFlight.tryAcquire()) {
+				routeCounters.busy.incrementAndGet();
+				return reject(res, "Too many requests in flight");
+			}
+			try {
+				if (!bulkheadPermits.tryAcquire()) {
+					routeCounters.busy.incrementAndGet();
+					bulkheadsFull.get(bulkhead).incrementAndGet();
+					return reject(res, "Too many " + bulkhead.name().toLowerCase() + " requests in flight");
+				}
+				try {
+					routeCounters.admitted.incrementAndGet();
+					return route.handle(req, res);
+				} finally {
+					bulkheadPermits.release();
+				}
+			} finally {
+				inFlight.release();
+			}
+		};
+	}
+
+	/**
+	 * The client header if there is one, else the IP address. The load balancer
+	 * appends the address it got the request from to X-Forwarded-For, so the last
+	 * one is the one we can trust: a client can send any it likes before it.
+	 */
+	private String client(Request req) {
+		if (clientHeader != null) {
+			String client = req.headers(clientHeader);
+			if (client != null) {
+				client = client.substring(client.lastIndexOf(',') + 1).trim();
+				if (!client.isEmpty()) {
+					return client;
+				}
+			}
+		}
+		return req.ip();
+	}
+
+	private TokenBucket clientBucket(String client) {
+		if (clientBuckets.size() > MAX_CLIENTS) {
+			clientBuckets.values().removeIf(TokenBucket::isFull);
+		}
+		return clientBuckets.computeIfAbsent(client, key -> new TokenBucket(clientRate, clientBurst));
+	}
+
+	private static String reject(Response res, String error) {
+		res.status(429);
+		res.header("Retry-After", "1");
+		return new Document("ok", false).append("error", error).toJson();
+	}
+
+	Document report() {
+		Document bulkheadReport = new Document();
+		for (Bulkhead bulkhead : Bulkhead.values()) {
+			int limit = limits.get(bulkhead);
+			bulkheadReport.append(bulkhead.name().toLowerCase(), new Document("limit", limit)
+					.append("inFlight", limit - bulkheads.get(bulkhead).availablePermits())
+					.append("rejected", bulkheadsFull.get(bulkhead).get()));
+		}
+		Document routeReport = new Document();
+		for (Map.Entry<String, RouteCounters> route : new TreeMap<String, RouteCounters>(counters).entrySet()) {
+			RouteCounters routeCounters = route.getValue();
+			routeReport.append(route.getKey(), new Document("admitted", routeCounters.admitted.get())
+					.append("clientLimited", routeCounters.clientLimited.get())
+					.append("routeLimited", routeCounters.routeLimited.get())
+					.append("busy", routeCounters.busy.get()));
+		}
+		return new Document("maxInFlight", maxInFlight)
+				.append("inFlight", maxInFlight - inFlight.availablePermits())
+				.append("clientRate", clientRate)
+				.append("clients", clientBuckets.size())
+				.append("bulkheads", bulkheadReport)
+				.append("routes", routeReport);
+	}
+}
@@ -0,0 +1,408 @@
+package org.example.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+/******
+ * Exports landing events and delivered cargo to local files, partitioned by
+ * day, so analytics never have to aggregate the (enormous) embedded flight logs
+ * on the operational cluster.
+ *
+ * Runs on its own, next to the web service:
+ * java -cp webService.jar org.example.mongodb.AnalyticsExporter <mongouri> <outputDir>
+ *
+ * New landings (pushes to a plane's flightLog) and cargo marked as delivered
+ * are read from Change Streams and appended to
+ * <outputDir>/landings/date=YYYY-MM-DD/part-<run>-<file>.csv
+ * <outputDir>/cargo_delivered/date=YYYY-MM-DD/part-<run>-<file>.csv
+ *
+ * Every few seconds the files are committed and the position of both Change
+ * Streams is saved to <outputDir>/_checkpoint.json, so a rerun picks up where
+ * the last one stopped instead of exporting everything again. Committing a
+ * Parquet file closes it, so while every open Parquet file is still small and
+ * young the checkpoint waits, and the next one commits them all. Rows written
+ * after the last checkpoint of a run that crashed are exported again by the
+ * next run (at least once), so consumers should de-duplicate on the key
+ * columns (callsign + date, id). A file that got no rows between two
+ * checkpoints (yesterday's, usually) is closed; late rows for its day go to a
+ * new file. Every file is closed on shutdown.
+ *
+ * The files are Parquet (see ParquetPartitionWriter), or CSV with
+ * -Dlogistics.export.format=csv. A webService.jar built without the parquet
+ * profile (mvn -DnoParquet package) has no Parquet and Hadoop libraries, and
+ * writes CSV.
+ ******/
+public class AnalyticsExporter implements CollectionChangeWatcher.ChangeSubscriber {
+
+	static final String FORMAT_CSV = "csv";
+	static final String FORMAT_PARQUET = "parquet";
+	private static final String PARQUET_WRITER = "org.example.mongodb.ParquetPartitionWriter";
+	private static final String CHECKPOINT_FILE = "_checkpoint.json";
+
+	enum ColumnType {
+		STRING, TIMESTAMP, DOUBLE, LONG
+	}
+
+	// An exported table: its directory, and its columns in order
+	static final class Table {
+		final String name;
+		final String[] columns;
+		final ColumnType[] types;
+
+		Table(String name, String[] columns, ColumnType[] types) {
+			this.name = name;
+			this.columns = columns;
+			this.types = types;
+		}
+	}
+
+	static final Table LANDINGS = new Table("landings",
+			new String[] { "callsign", "location", "date", "longitude", "latitude" },
+			new ColumnType[] { ColumnType.STRING, ColumnType.STRING, ColumnType.TIMESTAMP, ColumnType.DOUBLE,
+					ColumnType.DOUBLE });
+	static final Table CARGO_DELIVERED = new Table("cargo_delivered",
+			new String[] { "id", "location", "destination", "courier", "received", "delivered", "transitSeconds" },
+			new ColumnType[] { ColumnType.STRING, ColumnType.STRING, ColumnType.STRING, ColumnType.STRING,
+					ColumnType.TIMESTAMP, ColumnType.TIMESTAMP, ColumnType.LONG });
+
+	Logger logger;
+	private final File outputDir;
+	private final String format;
+	private final String runId;
+	private final Map<String, PartitionWriter> partitions = new HashMap<String, PartitionWriter>();
+	// Partitions written since the last checkpoint, the others are closed at the next one
+	private final Set<String> written = new HashSet<String>();
+	private final SimpleDateFormat dayFormat;
+
+	private CollectionChangeWatcher planesWatcher;
+	private CollectionChangeWatcher cargoWatcher;
+	private BsonDocument planesResumeToken;
+	private BsonDocument cargoResumeToken;
+	private long rowsWritten;
+	private int filesOpened;
+	private volatile boolean failed;
+	private boolean stopped;
+
+	/**
+	 * @param format - FORMAT_CSV, or FORMAT_PARQUET if ParquetPartitionWriter was built
+	 */
+	AnalyticsExporter(File outputDir, String format) {
+		logger = LoggerFactory.getLogger(AnalyticsExporter.class);
+		if (FORMAT_PARQUET.equals(format)) {
+			try {
+				Class.forName(PARQUET_WRITER);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException(
+						"Parquet export is not in this build, package it without -DnoParquet");
+			}
+		} else if (!FORMAT_CSV.equals(format)) {
+			throw new IllegalArgumentException(String.format("Unknown export format %s, use %s or %s", format,
+					FORMAT_CSV, FORMAT_PARQUET));
+		}
+		this.outputDir = outputDir;
+		this.format = format;
+		this.runId = Long.toString(System.currentTimeMillis());
+		dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+		dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: AnalyticsExporter <mongouri> <outputDir>");
+			System.exit(1);
+		}
+		AnalyticsExporter exporter;
+		try {
+			exporter = new AnalyticsExporter(new File(args[1]),
+					System.getProperty("logistics.export.format", defaultFormat()));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(args[0]));
+		exporter.start(mongoClient, Integer.getInteger("logistics.export.checkpointSeconds", 10));
+
+		// Ctrl-C or SIGTERM: close the files, a Parquet file is unreadable until then
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			exporter.stop();
+			mongoClient.close();
+		}));
+	}
+
+	// Parquet, unless the build left it out
+	static String defaultFormat() {
+		try {
+			Class.forName(PARQUET_WRITER);
+			return FORMAT_PARQUET;
+		} catch (ClassNotFoundException e) {
+			return FORMAT_CSV;
+		}
+	}
+
+	void start(MongoClient mongoClient, int checkpointSeconds) throws IOException {
+		Files.createDirectories(outputDir.toPath());
+		loadCheckpoint();
+
+		// Leave out the flood of location / heading / route updates on the server
+		List<Bson> planesPipeline = Arrays.asList(Aggregates.match(Filters.and(
+				Filters.eq("operationType", "update"),
+				Filters.exists("updateDescription.updatedFields." + Constants.CURRENT_LOCATION, false),
+				Filters.exists("updateDescription.updatedFields." + Constants.HEADING, false))));
+		planesWatcher = new CollectionChangeWatcher(mongoClient, Constants.COLLECTION_PLANES,
+				FullDocument.DEFAULT, planesPipeline);
+		planesWatcher.resumeAfter(planesResumeToken);
+		planesWatcher.subscribe(this);
+
+		List<Bson> cargoPipeline = Arrays.asList(Aggregates.match(Filters.and(
+				Filters.eq("operationType", "update"),
+				Filters.eq("updateDescription.updatedFields." + Constants.STATUS, Constants.STATUS_DELIVERED))));
+		cargoWatcher = new CollectionChangeWatcher(mongoClient, Constants.COLLECTION_CARGO,
+				FullDocument.UPDATE_LOOKUP, cargoPipeline);
+		cargoWatcher.resumeAfter(cargoResumeToken);
+		cargoWatcher.subscribe(this);
+
+		ScheduledExecutorService exportexec = Executors.newScheduledThreadPool(3);
+		exportexec.execute(planesWatcher);
+		exportexec.execute(cargoWatcher);
+		exportexec.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					logger.error("Could not checkpoint the export: " + e.getMessage());
+				}
+			}
+		}, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void onChange(ChangeStreamDocument<Document> change) {
+		if (change.getNamespace() == null || change.getDocumentKey() == null) {
+			return;
+		}
+		try {
+			if (Constants.COLLECTION_PLANES.equals(change.getNamespace().getCollectionName())) {
+				exportLandings(change);
+			} else {
+				exportDeliveredCargo(change);
+			}
+		} catch (IOException e) {
+			// Never move the checkpoint past what we could not write, the next run
+			// exports it again
+			logger.error("Could not export, checkpoints are stopped: " + e.getMessage());
+			failed = true;
+		}
+	}
+
+	// $push to the flight log shows up as flightLog.<n>, or as flightLog for the very first landing
+	private synchronized void exportLandings(ChangeStreamDocument<Document> change) throws IOException {
+		if (stopped) {
+			return;
+		}
+		String callSign = change.getDocumentKey().getString(Constants._ID).getValue();
+		BsonDocument updatedFields = change.getUpdateDescription().getUpdatedFields();
+
+		for (Map.Entry<String, BsonValue> updated : updatedFields.entrySet()) {
+			if (updated.getKey().equals(Constants.FLIGHT_LOG) && updated.getValue().isArray()) {
+				for (BsonValue landing : updated.getValue().asArray()) {
+					exportLanding(callSign, landing);
+				}
+			} else if (updated.getKey().startsWith(Constants.FLIGHT_LOG + ".")) {
+				exportLanding(callSign, updated.getValue());
+			}
+		}
+		planesResumeToken = change.getResumeToken();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void exportLanding(String callSign, BsonValue value) throws IOException {
+		if (!value.isDocument()) {
+			return;
+		}
+		Document landing = new DocumentCodec().decode(new BsonDocumentReader(value.asDocument()),
+				DecoderContext.builder().build());
+		Date date = landing.getDate(Constants.LANDING_DATE);
+		List<Double> position = (List<Double>) landing.get(Constants.POSITION);
+
+		writeRow(LANDINGS, date, callSign, landing.getString(Constants.LANDING_LOCATION), date,
+				position == null ? null : position.get(0), position == null ? null : position.get(1));
+	}
+
+	private synchronized void exportDeliveredCargo(ChangeStreamDocument<Document> change) throws IOException {
+		if (stopped) {
+			return;
+		}
+		Document cargo = change.getFullDocument();
+		if (cargo != null) {
+			Date received = cargo.getDate(Constants.RECEIVED);
+			Date delivered = cargo.getDate(Constants.DELIVERED);
+
+			writeRow(CARGO_DELIVERED, delivered, cargo.getObjectId(Constants._ID).toHexString(),
+					cargo.getString(Constants.LOCATION), cargo.getString(Constants.DESTINATION),
+					cargo.getString(Constants.COURIER), received, delivered,
+					(received == null || delivered == null) ? null : (delivered.getTime() - received.getTime()) / 1000);
+		}
+		cargoResumeToken = change.getResumeToken();
+	}
+
+	private void writeRow(Table table, Date date, Object... row) throws IOException {
+		String partition = table.name + File.separator + "date=" + (date == null ? "unknown" : dayFormat.format(date));
+		PartitionWriter writer = partitions.get(partition);
+
+		if (writer == null) {
+			File directory = new File(outputDir, partition);
+			Files.createDirectories(directory.toPath());
+			// New files only, we never append to files of an earlier run or closed ones of this run
+			writer = newWriter(directory, "part-" + runId + "-" + filesOpened++, table);
+			partitions.put(partition, writer);
+		}
+		writer.write(row);
+		written.add(partition);
+		rowsWritten++;
+	}
+
+	private PartitionWriter newWriter(File directory, String prefix, Table table) throws IOException {
+		if (FORMAT_CSV.equals(format)) {
+			return new CsvPartitionWriter(directory, prefix, table);
+		}
+		try {
+			return Class.forName(PARQUET_WRITER).asSubclass(PartitionWriter.class)
+					.getDeclaredConstructor(File.class, String.class, Table.class)
+					.newInstance(directory, prefix, table);
+		} catch (InvocationTargetException e) {
+			throw new IOException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void onReset() {
+		logger.warn("Could not resume a Change Stream, some events were not exported");
+	}
+
+	/**
+	 * Commits every open file, and closes those no row went to since the last
+	 * checkpoint, then saves where the Change Streams are. Written to a temporary
+	 * file first, so a crash never leaves a half written checkpoint. Waits while
+	 * every open file would rather not be committed yet (see
+	 * PartitionWriter.waitToCommit).
+	 */
+	synchronized void checkpoint() throws IOException {
+		checkpoint(false);
+	}
+
+	private void checkpoint(boolean stopping) throws IOException {
+		if (failed) {
+			return;
+		}
+		if (!stopping && !partitions.isEmpty()) {
+			boolean due = false;
+			for (PartitionWriter writer : partitions.values()) {
+				due |= !writer.waitToCommit();
+			}
+			if (!due) {
+				return;
+			}
+		}
+		Iterator<Map.Entry<String, PartitionWriter>> open = partitions.entrySet().iterator();
+		while (open.hasNext()) {
+			Map.Entry<String, PartitionWriter> partition = open.next();
+			partition.getValue().commit();
+			if (!written.contains(partition.getKey())) {
+				partition.getValue().close();
+				open.remove();
+			}
+		}
+		written.clear();
+
+		Document checkpoint = new Document(Constants.COLLECTION_PLANES, planesResumeToken)
+				.append(Constants.COLLECTION_CARGO, cargoResumeToken)
+				.append("rowsWritten", rowsWritten)
+				.append("updated", new Date());
+		File temporary = new File(outputDir, CHECKPOINT_FILE + ".tmp");
+		Files.write(temporary.toPath(), checkpoint.toJson().getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary.toPath(), new File(outputDir, CHECKPOINT_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Stops both Change Streams, checkpoints one last time and closes every file
+	 */
+	void stop() {
+		if (planesWatcher != null) {
+			planesWatcher.stop();
+			cargoWatcher.stop();
+		}
+		synchronized (this) {
+			try {
+				checkpoint(true);
+			} catch (IOException e) {
+				logger.error("Could not checkpoint the export: " + e.getMessage());
+			}
+			for (PartitionWriter writer : partitions.values()) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					logger.error("Could not close an export file: " + e.getMessage());
+				}
+			}
+			partitions.clear();
+			// Events still being delivered are exported again by the next run
+			stopped = true;
+		}
+	}
+
+	private void loadCheckpoint() throws IOException {
+		File file = new File(outputDir, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			logger.info("No checkpoint, exporting from now on");
+			return;
+		}
+		BsonDocument checkpoint = BsonDocument.parse(new String(Files.readAllBytes(file.toPath()),
+				StandardCharsets.UTF_8));
+		if (checkpoint.isDocument(Constants.COLLECTION_PLANES)) {
+			planesResumeToken = checkpoint.getDocument(Constants.COLLECTION_PLANES);
+		}
+		if (checkpoint.isDocument(Constants.COLLECTION_CARGO)) {
+			cargoResumeToken = checkpoint.getDocument(Constants.COLLECTION_CARGO);
+		}
+		logger.info("Resuming the export from " + file);
+	}
+}
@@ -0,0 +1,155 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Sorts.ascending;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.example.mongodb.WriteConcernPolicy.OperationClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.DeleteResult;
+
+/******
+ * Moves cargo delivered more than N days ago from cargo to cargo_archive
+ *
+ * Delivered cargo is never updated again, yet it stays in the cargo collection
+ * forever, growing its indexes and the working set that every cargo query
+ * needs. Every few minutes we copy a batch of old delivered cargo to the
+ * archive (insertMany), then remove exactly that batch from cargo
+ * (deleteMany), until nothing is left to move.
+ *
+ * A crash between the two steps only leaves documents in both collections;
+ * the next run inserts them again (ignoring the duplicate key errors) and
+ * deletes them. Batches are paced to at most maxPerSecond documents, so the
+ * archiver never competes with the operational load. Both writes use the
+ * CARGO_STATE Write Concern of the WriteConcernPolicy, like any other change
+ * to a cargo.
+ *
+ * CargoDAL looks a cargo up in the archive when it is not in cargo.
+ ******/
+public class CargoArchiver implements Runnable {
+
+	private static final int DUPLICATE_KEY = 11000;
+
+	Logger logger;
+	private MongoCollection<Document> cargoCollection;
+	private MongoCollection<Document> archiveCollection;
+	private final int olderThanDays;
+	private final int batchSize;
+	private final int maxPerSecond;
+
+	private final AtomicLong archived = new AtomicLong();
+	private volatile Date lastRun;
+
+	/**
+	 * @throws IllegalArgumentException if batchSize or maxPerSecond is not positive
+	 */
+	CargoArchiver(MongoClient mongoClient, int olderThanDays, int batchSize, int maxPerSecond) {
+		if (batchSize <= 0 || maxPerSecond <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"Archive batchSize and maxPerSecond must be positive, not %d and %d", batchSize, maxPerSecond));
+		}
+		logger = LoggerFactory.getLogger(CargoArchiver.class);
+		cargoCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO);
+		archiveCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO_ARCHIVE);
+		this.olderThanDays = olderThanDays;
+		this.batchSize = batchSize;
+		this.maxPerSecond = maxPerSecond;
+	}
+
+	void start(int intervalMinutes) {
+		ScheduledExecutorService archiveexec = Executors.newSingleThreadScheduledExecutor();
+		archiveexec.scheduleWithFixedDelay(this, 1, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	@Override
+	public void run() {
+		Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(olderThanDays));
+		long archivedBefore = archived.get();
+		try {
+			int count;
+			do {
+				long start = System.currentTimeMillis();
+				count = archiveBatch(cutoff);
+
+				// Pace the batches to maxPerSecond
+				long minimumMillis = (1000L * count) / maxPerSecond;
+				long elapsed = System.currentTimeMillis() - start;
+				if (elapsed < minimumMillis) {
+					Thread.sleep(minimumMillis - elapsed);
+				}
+			} while (count == batchSize);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			// Try again next time
+			logger.error("Could not archive cargo: " + e.getMessage());
+		}
+		lastRun = new Date();
+		long moved = archived.get() - archivedBefore;
+		if (moved > 0) {
+			logger.info(String.format("Archived %d cargo delivered before %s", moved, cutoff));
+		}
+	}
+
+	/**
+	 * @return how many cargo were found to move, the batch size unless we are done
+	 */
+	private int archiveBatch(Date cutoff) {
+		WriteConcern writeConcern = WriteConcernPolicy.forClass(OperationClass.CARGO_STATE);
+		List<Document> batch = new ArrayList<Document>();
+		// Served by the partial index on delivered
+		cargoCollection.find(and(eq(Constants.STATUS, Constants.STATUS_DELIVERED), lt(Constants.DELIVERED, cutoff)))
+				.sort(ascending(Constants.DELIVERED)).limit(batchSize).into(batch);
+		if (batch.isEmpty()) {
+			return 0;
+		}
+
+		try {
+			archiveCollection.withWriteConcern(writeConcern).insertMany(batch, new InsertManyOptions().ordered(false));
+		} catch (MongoBulkWriteException e) {
+			// Already archived by a run that did not get to delete them
+			for (BulkWriteError error : e.getWriteErrors()) {
+				if (error.getCode() != DUPLICATE_KEY) {
+					throw e;
+				}
+			}
+		}
+
+		List<Object> ids = new ArrayList<Object>();
+		for (Document cargo : batch) {
+			ids.add(cargo.get(Constants._ID));
+		}
+		// Only what we removed counts, another instance may have archived some of the batch first
+		DeleteResult deleted = cargoCollection.withWriteConcern(writeConcern)
+				.deleteMany(and(in(Constants._ID, ids), eq(Constants.STATUS, Constants.STATUS_DELIVERED)));
+		archived.addAndGet(deleted.getDeletedCount());
+		return batch.size();
+	}
+
+	Document report() {
+		return new Document("archived", archived.get())
+				.append("olderThanDays", olderThanDays)
+				.append("lastRun", lastRun);
+	}
+}
@@ -2,28 +2,85 @@ package org.example.mongodb;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
 import static com.mongodb.client.model.Updates.combine;
 import static com.mongodb.client.model.Updates.set;
 import static com.mongodb.client.model.Updates.unset;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
+import org.example.mongodb.WriteConcernPolicy.OperationClass;
+import org.example.mongodb.model.Cargo;
+import org.example.mongodb.model.ModelCodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.TransactionOptions;
 import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.InsertManyOptions;
 
 public class CargoDAL {
 
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 1000;
+	static final int MAX_BULK_SIZE = 100000;
+	private static final int BULK_BATCH_SIZE = 1000;
+	private static final long CITIES_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	// Cities hardly ever change, bulk creation validates against this copy
+	private static volatile Set<String> knownCities;
+	private static volatile long knownCitiesLoaded;
+
+	/*
+	 * Lifecycle of cargo:
+	 * 
+	 * in process (at a city) -> in transit (on a plane) -> in process (unloaded at
+	 * a city on the way) ... -> delivered
+	 * 
+	 * Every status change is only applied if the cargo is currently in one of the
+	 * states it may come from (the condition is part of the update filter), so
+	 * concurrent or replayed requests can never take cargo back out of delivered.
+	 */
+	private static final Map<String, List<String>> ALLOWED_FROM = new HashMap<String, List<String>>();
+	static {
+		ALLOWED_FROM.put(Constants.STATUS_INPROCESS,
+				Arrays.asList(Constants.STATUS_INPROCESS, Constants.STATUS_INTRANSIT));
+		ALLOWED_FROM.put(Constants.STATUS_INTRANSIT,
+				Arrays.asList(Constants.STATUS_INPROCESS, Constants.STATUS_INTRANSIT));
+		ALLOWED_FROM.put(Constants.STATUS_DELIVERED,
+				Arrays.asList(Constants.STATUS_INPROCESS, Constants.STATUS_INTRANSIT));
+	}
+
+	// Shared by every CargoDAL, for GET /metrics/handoffs
+	private static final AtomicLong handoffs = new AtomicLong();
+	private static final AtomicLong handoffAttempts = new AtomicLong();
+	private static final AtomicLong handoffsRejected = new AtomicLong();
+	private static final AtomicLong handoffsFailed = new AtomicLong();
+
 	Logger logger;
 	private MongoClient mongoClient;
 	private MongoCollection<Document> cargoCollection;
@@ -32,6 +89,7 @@ public class CargoDAL {
 	private String lastError;
 
 	private String id;
+	private String origin;
 	private String destination;
 	private String location;
 	private Date received;
@@ -44,14 +102,38 @@ public class CargoDAL {
 		this.mongoClient = mongoClient;
 		cargoCollection = this.mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
 				.getCollection(Constants.COLLECTION_CARGO)
+				.withCodecRegistry(ModelCodecs.REGISTRY)
 				.withWriteConcern(WriteConcern.MAJORITY)
 				.withReadConcern(ReadConcern.MAJORITY);
 		lastError = "";
 	}
 
 	public CargoDAL(MongoClient mongoClient, String cargoId) {
+		this(mongoClient, cargoId, null);
+	}
+
+	/**
+	 * @param atLocation - where the cargo is, if the caller knows. With the cargo
+	 *                   collection sharded on location + hashed _id, this lets the
+	 *                   lookup go to a single shard instead of all of them.
+	 */
+	public CargoDAL(MongoClient mongoClient, String cargoId, String atLocation) {
 		this(mongoClient);
-		Document dbdata = cargoCollection.find(eq(Constants._ID, new ObjectId(cargoId))).first();
+		Bson lookup = (atLocation == null) ? eq(Constants._ID, new ObjectId(cargoId))
+				: and(eq(Constants.LOCATION, atLocation), eq(Constants._ID, new ObjectId(cargoId)));
+		Cargo dbdata = cargoCollection.find(lookup, Cargo.class).first();
+		if (dbdata == null && atLocation != null) {
+			// It moved on since the caller saw it
+			dbdata = cargoCollection.find(eq(Constants._ID, new ObjectId(cargoId)), Cargo.class).first();
+		}
+		if (dbdata == null) {
+			// Delivered long ago, moved by the CargoArchiver
+			dbdata = this.mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+					.getCollection(Constants.COLLECTION_CARGO_ARCHIVE, Cargo.class)
+					.withCodecRegistry(ModelCodecs.REGISTRY)
+					.withReadConcern(ReadConcern.MAJORITY)
+					.find(eq(Constants._ID, new ObjectId(cargoId))).first();
+		}
 		if (dbdata != null) {
 			parseDocument(dbdata);
 		} else {
@@ -59,29 +141,34 @@ public class CargoDAL {
 		}
 	}
 
-	private void parseDocument(Document doc) {
+	private void parseDocument(Cargo doc) {
 		populated = false;
-		try {
-			id = doc.getObjectId(Constants._ID).toString();
-			destination = doc.getString(Constants.DESTINATION);
-			location = doc.getString(Constants.LOCATION);
-			received = doc.getDate(Constants.RECEIVED);
-			courier = doc.getString(Constants.COURIER);
-			delivered = doc.getDate(Constants.DELIVERED);
-			status = doc.getString(Constants.STATUS);
-		} catch (Exception e) {
-			lastError = e.getMessage();
-			populated = false;
+		if (doc.getId() == null) {
+			lastError = "Cargo has no id";
 			return;
 		}
+		id = doc.getId().toHexString();
+		destination = doc.getDestination();
+		// null for cargo created before we kept the origin
+		origin = doc.getOrigin();
+		location = doc.getLocation();
+		received = doc.getReceived();
+		courier = doc.getCourier();
+		delivered = doc.getDelivered();
+		status = doc.getStatus();
 		populated = true;
 	}
     /**
      * Sharding consideration:
      * 
      * The _id field of Cargo is autogenerated and is Monotonically increasing.
-     * To ensure appropriate sharding in the future, the shard key can be 
-     * based on Location and HASHED _id value.
+     * To ensure appropriate sharding, the shard key is based on Location and
+     * HASHED _id value: { location : 1, _id : "hashed" }.
+     * 
+     * Every query and update below carries location (and _id where there is one),
+     * so that mongos can route it to a single shard. Moving cargo changes its
+     * shard key, which needs the full shard key in the filter and a retryable
+     * write (or a transaction).
      * 
      * The sharding strategy of Cargo collection is critical to the scaling of the application
      */
@@ -100,11 +187,16 @@ public class CargoDAL {
 		try {
 			Document cargo = new Document();
 			cargo.append(Constants.LOCATION, location);
+			// location changes as the cargo moves, keep where it came from for reporting
+			cargo.append(Constants.ORIGIN, location);
 			cargo.append(Constants.DESTINATION, destination);
 			cargo.append(Constants.RECEIVED, new Date());
 			cargo.append(Constants.STATUS, Constants.STATUS_INPROCESS);
 			//Relying on retryable writes here.
-			cargoCollection.insertOne(cargo);
+			long start = System.nanoTime();
+			cargoCollectionForWrite().insertOne(cargo);
+			WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+			id = cargo.getObjectId(Constants._ID).toHexString();
 
 		} catch (Exception e) {
 			lastError = e.getMessage();
@@ -113,41 +205,152 @@ public class CargoDAL {
 		lastError = "";
 		return true;
 	}
+	/**
+	 * Creates many cargo at once, for warehouse intake. Cities are checked against
+	 * an in-memory set instead of two lookups per cargo, and the cargo is inserted
+	 * in unordered batches of BULK_BATCH_SIZE, so one bad row does not stop the
+	 * others.
+	 * 
+	 * @param requests - location and destination of each cargo, at most
+	 *                 MAX_BULK_SIZE
+	 * @return ids: the id of each cargo created, in request order (null where it
+	 *         failed), errors: index and reason of each cargo that failed
+	 */
+	Document createCargoBulk(List<Document> requests) {
+		Set<String> cities = knownCities();
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		List<Document> errors = new ArrayList<Document>();
+		List<Document> batch = new ArrayList<Document>();
+		List<Integer> batchIndexes = new ArrayList<Integer>();
+		Date now = new Date();
+
+		for (int i = 0; i < requests.size(); i++) {
+			String location = requests.get(i).getString(Constants.LOCATION);
+			String destination = requests.get(i).getString(Constants.DESTINATION);
+			ids.add(null);
+			if (!cities.contains(location) || !cities.contains(destination)) {
+				errors.add(new Document("index", i).append("error", String.format("City %s does not exist",
+						cities.contains(location) ? destination : location)));
+				continue;
+			}
+			// Generated here, so we know the ids without reading them back
+			ObjectId id = new ObjectId();
+			batch.add(new Document(Constants._ID, id)
+					.append(Constants.LOCATION, location)
+					.append(Constants.ORIGIN, location)
+					.append(Constants.DESTINATION, destination)
+					.append(Constants.RECEIVED, now)
+					.append(Constants.STATUS, Constants.STATUS_INPROCESS));
+			batchIndexes.add(i);
+			ids.set(i, id);
+
+			if (batch.size() == BULK_BATCH_SIZE) {
+				insertBatch(batch, batchIndexes, ids, errors);
+				batch.clear();
+				batchIndexes.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			insertBatch(batch, batchIndexes, ids, errors);
+		}
+
+		List<String> created = new ArrayList<String>();
+		for (ObjectId id : ids) {
+			created.add(id == null ? null : id.toHexString());
+		}
+		lastError = errors.isEmpty() ? "" : errors.get(0).getString("error");
+		return new Document("inserted", requests.size() - errors.size())
+				.append("ids", created)
+				.append("errors", errors);
+	}
+
+	private void insertBatch(List<Document> batch, List<Integer> batchIndexes, List<ObjectId> ids,
+			List<Document> errors) {
+		long start = System.nanoTime();
+		try {
+			cargoCollectionForWrite().insertMany(batch, new InsertManyOptions().ordered(false));
+		} catch (MongoBulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				int index = batchIndexes.get(error.getIndex());
+				ids.set(index, null);
+				errors.add(new Document("index", index).append("error", error.getMessage()));
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+			for (int index : batchIndexes) {
+				ids.set(index, null);
+				errors.add(new Document("index", index).append("error", e.getMessage()));
+			}
+		}
+		WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+	}
+
+	private Set<String> knownCities() {
+		if (knownCities == null || System.currentTimeMillis() - knownCitiesLoaded > CITIES_REFRESH_MILLIS) {
+			Set<String> cities = new CityDAL(mongoClient).getAllCityIds();
+			if (!cities.isEmpty()) {
+				knownCities = cities;
+				knownCitiesLoaded = System.currentTimeMillis();
+			}
+		}
+		return knownCities == null ? Collections.<String>emptySet() : knownCities;
+	}
+
 	/*
-	 * Gets all "in process" cargo at a given location.
+	 * Gets one page of cargo waiting at a city ("in process"), or on board a plane
+	 * ("in transit"), in _id order.
 	 * 
-	 * Ensure that there is an index on location + status for performance
+	 * A hub city can hold tens of thousands of packages, so we never return more
+	 * than MAX_PAGE_SIZE of them at once. The next page starts after the id of the
+	 * last cargo of this page (keyset pagination, no skip).
 	 * 
+	 * Ensure that there are partial indexes (one set per status) on location + _id,
+	 * and on location + destination (or courier) + _id for the optional filters, so
+	 * that every page is a single index range scan that needs no in-memory sort,
+	 * and the indexes never grow with the delivered cargo.
+	 * 
+	 * @param after - id of the last cargo of the previous page, null for the first page
+	 * @param limit - capped at MAX_PAGE_SIZE
+	 * @param destination - optional, null for any
+	 * @param courier - optional, null for any
+	 * @return the cargo as stored (only the fields the API shows), for APIRoutes
+	 *         to write out as JSON without decoding it
 	 */
-	ArrayList<String> cargoAtLocation(String atLocation) {
+	ArrayList<RawBsonDocument> cargoAtLocation(String atLocation, String after, int limit, String destination,
+			String courier) {
 		
-		ArrayList<String> allCargo = new ArrayList<String>();
-		if(!isValidCityOrPlane(atLocation)) {
+		ArrayList<RawBsonDocument> allCargo = new ArrayList<RawBsonDocument>();
+		boolean onPlane = isValidPlane(atLocation);
+		if(!onPlane && !isValidCity(atLocation)) {
 			logger.error(String.format("Location %s does not exist", atLocation));
 			lastError = String.format("Location %s does not exist", atLocation);
 			return allCargo;
 		}
+		if ((after != null) && !ObjectId.isValid(after)) {
+			lastError = String.format("Cargo %s does not exist", after);
+			return allCargo;
+		}
 		
-		MongoCursor<Document> resultsIterator = null;
-		Bson locationFilter = eq(Constants.LOCATION, atLocation);
-		Bson statusFilter = eq(Constants.STATUS, Constants.STATUS_INPROCESS);
-
-		FindIterable<Document> results = cargoCollection.find(and(locationFilter, statusFilter));
-	
-		for (resultsIterator = results.iterator(); resultsIterator.hasNext();) {
-			Document document = resultsIterator.next();
-			Document toReturn = new Document();
-			toReturn.append(Constants.CARGO_ID, document.getObjectId(Constants._ID).toString());
-			toReturn.append(Constants.LOCATION, document.get(Constants.LOCATION));
-			toReturn.append(Constants.DESTINATION, document.getString(Constants.DESTINATION));
-			toReturn.append(Constants.COURIER, document.getString(Constants.COURIER));
-			toReturn.append(Constants.RECEIVED, document.getDate(Constants.RECEIVED).toString());
-			if (document.getDate(Constants.DELIVERED) != null)
-				toReturn.append(Constants.DELIVERED, document.getDate(Constants.DELIVERED).toString());
-			toReturn.append(Constants.STATUS, document.getString(Constants.STATUS));
-			allCargo.add(toReturn.toJson());
+		List<Bson> filters = new ArrayList<Bson>();
+		filters.add(eq(Constants.LOCATION, atLocation));
+		filters.add(eq(Constants.STATUS, onPlane ? Constants.STATUS_INTRANSIT : Constants.STATUS_INPROCESS));
+		if (destination != null) {
+			filters.add(eq(Constants.DESTINATION, destination));
 		}
-		return allCargo;
+		if (courier != null) {
+			filters.add(eq(Constants.COURIER, courier));
+		}
+		if (after != null) {
+			filters.add(gt(Constants._ID, new ObjectId(after)));
+		}
+
+		FindIterable<RawBsonDocument> results = cargoCollection.withDocumentClass(RawBsonDocument.class)
+				.find(and(filters))
+				.projection(include(Constants.LOCATION, Constants.DESTINATION, Constants.COURIER,
+						Constants.RECEIVED, Constants.DELIVERED, Constants.STATUS))
+				.sort(ascending(Constants._ID))
+				.limit(Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+		return results.into(allCargo);
 	}
 
 	boolean markDelivered() {
@@ -158,13 +361,28 @@ public class CargoDAL {
 
 		try {
 			// findOneAndUpdate
-			Bson filter = eq(Constants._ID, new ObjectId(id));
+			Bson filter = transitionFilter(Constants.STATUS_DELIVERED);
+
+			Date deliveredAt = new Date();
+			Long transitSeconds = (received == null) ? null : (deliveredAt.getTime() - received.getTime()) / 1000;
 
 			Bson updateStatus = set(Constants.STATUS, Constants.STATUS_DELIVERED);
-			Bson updateDelivery = set(Constants.DELIVERED, new Date());
-			Bson updates = combine(updateStatus, updateDelivery);
+			Bson updateDelivery = set(Constants.DELIVERED, deliveredAt);
+			Bson updateTransitTime = set(Constants.TRANSIT_TIME, transitSeconds);
+			Bson updates = combine(updateStatus, updateDelivery, updateTransitTime);
 			//Relying on retryable writes here.
-			cargoCollection.findOneAndUpdate(filter, updates);
+			long start = System.nanoTime();
+			Document before = cargoCollectionForWrite().findOneAndUpdate(filter, updates);
+			WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+			if (before == null) {
+				lastError = String.format("Cargo %s was delivered or moved by someone else", id);
+				return false;
+			}
+
+			CargoSlaTracker slaTracker = CargoSlaTracker.installed();
+			if ((slaTracker != null) && (transitSeconds != null)) {
+				slaTracker.record(origin, destination, transitSeconds);
+			}
 			lastError = "";
 			return true;
 		} catch (Exception e) {
@@ -188,11 +406,17 @@ public class CargoDAL {
 
 		try {
 			// findOneAndUpdate
-			Bson filter = eq(Constants._ID, new ObjectId(id));
+			Bson filter = byShardKey();
 
 			Bson updateCargo = set(Constants.COURIER, courier);
 			//Relying on retryable writes here.
-			cargoCollection.findOneAndUpdate(filter, updateCargo);
+			long start = System.nanoTime();
+			Document before = cargoCollectionForWrite().findOneAndUpdate(filter, updateCargo);
+			WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+			if (before == null) {
+				lastError = String.format("Cargo %s was moved by someone else", id);
+				return false;
+			}
 			lastError = "";
 			return true;
 		} catch (Exception e) {
@@ -211,12 +435,18 @@ public class CargoDAL {
 
 		try {
 			// findOneAndUpdate
-			Bson filter = eq(Constants._ID, new ObjectId(id));
+			Bson filter = byShardKey();
 
 			Bson unsetCourier = unset(Constants.COURIER);
 
 			//Relying on retryable writes here.
-			cargoCollection.findOneAndUpdate(filter, unsetCourier);
+			long start = System.nanoTime();
+			Document before = cargoCollectionForWrite().findOneAndUpdate(filter, unsetCourier);
+			WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+			if (before == null) {
+				lastError = String.format("Cargo %s was moved by someone else", id);
+				return false;
+			}
 			lastError = "";
 			return true;
 		} catch (Exception e) {
@@ -233,7 +463,8 @@ public class CargoDAL {
 			return false;
 		}
 		
-		if(!isValidCityOrPlane(newLocation)) {
+		boolean toPlane = isValidPlane(newLocation);
+		if(!toPlane && !isValidCity(newLocation)) {
 			logger.error(String.format("Location %s does not exist", newLocation));
 			lastError = String.format("Location %s does not exist", newLocation);
 			return false;
@@ -241,12 +472,20 @@ public class CargoDAL {
 
 		try {
 			// findOneAndUpdate
-			Bson filter = eq(Constants._ID, new ObjectId(id));
+			String newStatus = toPlane ? Constants.STATUS_INTRANSIT : Constants.STATUS_INPROCESS;
+			Bson filter = transitionFilter(newStatus);
 
 			Bson updateLocation = set(Constants.LOCATION, newLocation);
+			Bson updateStatus = set(Constants.STATUS, newStatus);
 			
 			//Relying on retryable writes here.
-			cargoCollection.findOneAndUpdate(filter, updateLocation);
+			long start = System.nanoTime();
+			Document before = cargoCollectionForWrite().findOneAndUpdate(filter, combine(updateLocation, updateStatus));
+			WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+			if (before == null) {
+				lastError = String.format("Cargo %s was delivered or moved by someone else", id);
+				return false;
+			}
 			lastError = "";
 			return true;
 		} catch (Exception e) {
@@ -258,6 +497,141 @@ public class CargoDAL {
 	}
 	
 
+	/**
+	 * Hands the cargo over to its next location in a single transaction: moves
+	 * it, assigns (or clears) its courier and updates its status (in transit on a
+	 * plane, in process at a city, delivered at its destination), so no reader
+	 * ever sees a package on a plane that is still waiting for that plane, or at
+	 * its destination without being delivered.
+	 * 
+	 * Loading onto a plane clears the courier (it has been picked up). Unloading
+	 * at a city sets nextCourier (null for none), or delivers the cargo when the
+	 * city is its destination.
+	 * 
+	 * The update only applies if the cargo is still where we read it, so two
+	 * concurrent handoffs of the same package cannot both succeed. withTransaction
+	 * retries the whole body on transient errors (write conflicts, elections) and
+	 * retries the commit when its outcome is unknown.
+	 * 
+	 * Requires a 4.0+ replica set (4.2+ if sharded).
+	 */
+	boolean handOff(String newLocation, String nextCourier) {
+
+		if (isPopulated() == false) {
+			return false;
+		}
+
+		boolean toPlane = isValidPlane(newLocation);
+		if (!toPlane && !isValidCity(newLocation)) {
+			lastError = String.format("Location %s does not exist", newLocation);
+			return false;
+		}
+		if ((nextCourier != null) && (toPlane || !isValidPlane(nextCourier))) {
+			lastError = String.format("Plane %s can not pick up cargo at %s", nextCourier, newLocation);
+			return false;
+		}
+
+		TransactionOptions txnOptions = TransactionOptions.builder()
+				.readPreference(ReadPreference.primary())
+				.readConcern(ReadConcern.SNAPSHOT)
+				.writeConcern(WriteConcernPolicy.forClass(OperationClass.CARGO_STATE))
+				.build();
+		final Date handedOffAt = new Date();
+		long start = System.nanoTime();
+
+		try (ClientSession session = mongoClient.startSession()) {
+			Cargo handedOff = session.withTransaction(() -> {
+				handoffAttempts.incrementAndGet();
+				Cargo current = cargoCollection.find(session, byShardKey(), Cargo.class).first();
+				if (current == null) {
+					return null;
+				}
+				String newStatus = toPlane ? Constants.STATUS_INTRANSIT
+						: newLocation.equals(current.getDestination()) ? Constants.STATUS_DELIVERED
+								: Constants.STATUS_INPROCESS;
+
+				List<Bson> updates = new ArrayList<Bson>();
+				updates.add(set(Constants.LOCATION, newLocation));
+				updates.add(set(Constants.STATUS, newStatus));
+				if (nextCourier == null) {
+					updates.add(unset(Constants.COURIER));
+				} else {
+					updates.add(set(Constants.COURIER, nextCourier));
+				}
+				if (Constants.STATUS_DELIVERED.equals(newStatus)) {
+					updates.add(set(Constants.DELIVERED, handedOffAt));
+					Date receivedAt = current.getReceived();
+					if (receivedAt != null) {
+						updates.add(set(Constants.TRANSIT_TIME, (handedOffAt.getTime() - receivedAt.getTime()) / 1000));
+					}
+				}
+
+				// Only if it may go to its new status. It is still where we read it, the
+				// lookup was by location
+				if (cargoCollection.updateOne(session, transitionFilter(newStatus), combine(updates))
+						.getModifiedCount() == 0) {
+					return null;
+				}
+				return cargoCollection.find(session, and(eq(Constants.LOCATION, newLocation),
+						eq(Constants._ID, current.getId())), Cargo.class).first();
+			}, txnOptions);
+			WriteConcernPolicy.recordLatency(OperationClass.CARGO_STATE, start);
+
+			if (handedOff == null) {
+				handoffsRejected.incrementAndGet();
+				lastError = String.format("Cargo %s was delivered or moved by someone else", id);
+				return false;
+			}
+			handoffs.incrementAndGet();
+			parseDocument(handedOff);
+
+			CargoSlaTracker slaTracker = CargoSlaTracker.installed();
+			if ((slaTracker != null) && Constants.STATUS_DELIVERED.equals(status)
+					&& (handedOff.getTransitTime() >= 0)) {
+				slaTracker.record(origin, destination, handedOff.getTransitTime());
+			}
+			lastError = "";
+			return true;
+		} catch (Exception e) {
+			handoffsFailed.incrementAndGet();
+			logger.error(e.getMessage());
+			lastError = e.getMessage();
+		}
+		return false;
+	}
+
+	/**
+	 * Handoffs since startup; every attempt beyond the first of a handoff was a
+	 * transient error (mostly write conflicts) retried by withTransaction
+	 */
+	static Document handoffReport() {
+		long committed = handoffs.get();
+		long rejected = handoffsRejected.get();
+		long attempts = handoffAttempts.get();
+		long completed = committed + rejected;
+		return new Document("committed", committed)
+				.append("rejected", rejected)
+				.append("failed", handoffsFailed.get())
+				.append("attempts", attempts)
+				.append("retryRate", completed == 0 ? 0.0 : (double) (attempts - completed) / completed);
+	}
+
+	// This cargo, where we read it. Targets a single shard, and fails to match if
+	// someone moved it since
+	private Bson byShardKey() {
+		return and(eq(Constants.LOCATION, location), eq(Constants._ID, new ObjectId(id)));
+	}
+
+	// This cargo, if it may go to the given status from the one it is in now
+	private Bson transitionFilter(String toStatus) {
+		List<String> from = ALLOWED_FROM.get(toStatus);
+		return and(byShardKey(), in(Constants.STATUS, from == null ? Collections.<String>emptyList() : from));
+	}
+
+	private MongoCollection<Document> cargoCollectionForWrite() {
+		return cargoCollection.withWriteConcern(WriteConcernPolicy.forClass(OperationClass.CARGO_STATE));
+	}
+
 	private boolean isValidCity(String location) {
 		CityDAL city = new CityDAL(mongoClient, location);
 		return city.isPopulated();
@@ -267,10 +641,6 @@ public class CargoDAL {
 		PlaneDAL plane = new PlaneDAL(mongoClient, location);
 		return plane.isPopulated();
 	}
-	
-	private boolean isValidCityOrPlane(String location) {
-		return isValidCity(location)||isValidPlane(location);
-	}
 
 	// Memeber Acessors
 	String getId() {
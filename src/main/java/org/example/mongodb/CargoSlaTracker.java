@@ -0,0 +1,190 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.max;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.example.mongodb.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+
+/******
+ * Delivery time percentiles (SLA) per origin - destination pair, for GET
+ * /cargo/sla
+ *
+ * CargoDAL.markDelivered computes the transit time of the cargo and records
+ * it here, in a log-linear histogram per pair of cities. Answering p50 / p95 /
+ * p99 is then a walk over a few hundred counters in memory, instead of a scan
+ * of all the delivered cargo.
+ *
+ * Histogram buckets simply add up, so every few seconds we $inc the buckets
+ * recorded since the last flush into the cargo_sla collection. That way
+ * several instances of the service can flush into the same documents, and a
+ * restarted instance loads the combined histograms back.
+ *
+ * The histogram of all routes is also the delivery time of GET /stats.
+ ******/
+public class CargoSlaTracker {
+
+	private static final String ALL_ROUTES = "*";
+	// Cargo created before we kept the origin: we know where it went, not where from
+	private static final String UNKNOWN_ORIGIN = "unknown";
+	private static volatile CargoSlaTracker installed;
+
+	Logger logger;
+	private MongoCollection<Document> slaCollection;
+
+	// What we know, for queries, and what we have not flushed yet
+	private final Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+	private Map<String, LatencyHistogram> unflushed = new HashMap<String, LatencyHistogram>();
+
+	CargoSlaTracker(MongoClient mongoClient) {
+		logger = LoggerFactory.getLogger(CargoSlaTracker.class);
+		slaCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO_SLA);
+	}
+
+	static void install(CargoSlaTracker tracker) {
+		installed = tracker;
+	}
+
+	// null, if no tracker has been installed
+	static CargoSlaTracker installed() {
+		return installed;
+	}
+
+	/**
+	 * Loads the persisted histograms and flushes every flushSeconds from then on
+	 */
+	void start(int flushSeconds) {
+		load();
+
+		ScheduledExecutorService slaexec = Executors.newSingleThreadScheduledExecutor();
+		slaexec.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param origin - null for cargo created before we kept the origin, counted
+	 *               on the route from "unknown"
+	 */
+	synchronized void record(String origin, String destination, long transitSeconds) {
+		String route = route((origin == null) ? UNKNOWN_ORIGIN : origin, destination);
+		for (String each : new String[] { route, ALL_ROUTES }) {
+			histogram(histograms, each).record(transitSeconds);
+			histogram(unflushed, each).record(transitSeconds);
+		}
+	}
+
+	/**
+	 * @return null, if nothing was ever delivered on this route
+	 */
+	synchronized Document percentiles(String origin, String destination) {
+		boolean allRoutes = (origin == null) && (destination == null);
+		LatencyHistogram histogram = histograms.get(allRoutes ? ALL_ROUTES : route(origin, destination));
+
+		if (histogram == null) {
+			return null;
+		}
+		Document toReturn = new Document();
+		if (!allRoutes) {
+			toReturn.append(Constants.ORIGIN, origin).append(Constants.DESTINATION, destination);
+		}
+		return toReturn.append("delivered", histogram.getCount())
+				.append("meanSeconds", histogram.getMean())
+				.append("p50Seconds", histogram.getValueAtPercentile(50))
+				.append("p95Seconds", histogram.getValueAtPercentile(95))
+				.append("p99Seconds", histogram.getValueAtPercentile(99))
+				.append("maxSeconds", histogram.getMax());
+	}
+
+	void flush() {
+		Map<String, LatencyHistogram> toFlush;
+		synchronized (this) {
+			toFlush = unflushed;
+			unflushed = new HashMap<String, LatencyHistogram>();
+		}
+
+		for (Map.Entry<String, LatencyHistogram> route : toFlush.entrySet()) {
+			LatencyHistogram histogram = route.getValue();
+			long[] counts = histogram.getBucketCounts();
+			List<Bson> updates = new ArrayList<Bson>();
+
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					updates.add(inc("buckets." + i, counts[i]));
+				}
+			}
+			updates.add(inc("sum", histogram.getSum()));
+			updates.add(max("max", histogram.getMax()));
+			try {
+				slaCollection.updateOne(eq(Constants._ID, route.getKey()), combine(updates),
+						new UpdateOptions().upsert(true));
+			} catch (Exception e) {
+				// Keep them for the next flush
+				logger.error(String.format("Could not flush delivery times of %s: %s", route.getKey(),
+						e.getMessage()));
+				synchronized (this) {
+					histogram(unflushed, route.getKey()).add(counts, histogram.getSum(), histogram.getMax());
+				}
+			}
+		}
+	}
+
+	private synchronized void load() {
+		for (Document saved : slaCollection.find()) {
+			try {
+				addHistogram(histogram(histograms, saved.getString(Constants._ID)), saved);
+			} catch (Exception e) {
+				logger.error(String.format("Delivery times of %s are unreadable: %s", saved.get(Constants._ID),
+						e.getMessage()));
+			}
+		}
+		logger.info(String.format("Loaded delivery times of %d routes", histograms.size()));
+	}
+
+	private static void addHistogram(LatencyHistogram histogram, Document saved) {
+		if (saved == null) {
+			return;
+		}
+		Document buckets = (Document) saved.get("buckets");
+		long[] counts = new long[histogram.getBucketCounts().length];
+		for (String bucket : buckets.keySet()) {
+			counts[Integer.parseInt(bucket)] = buckets.getLong(bucket);
+		}
+		histogram.add(counts, saved.getLong("sum"), saved.getLong("max"));
+	}
+
+	private LatencyHistogram histogram(Map<String, LatencyHistogram> byRoute, String route) {
+		LatencyHistogram histogram = byRoute.get(route);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			byRoute.put(route, histogram);
+		}
+		return histogram;
+	}
+
+	// City ids never contain a '>'
+	private String route(String origin, String destination) {
+		return origin + ">" + destination;
+	}
+}
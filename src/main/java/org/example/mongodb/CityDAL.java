@@ -4,9 +4,14 @@ import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Filters.near;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
+import org.example.mongodb.model.City;
+import org.example.mongodb.model.ModelCodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,26 +28,28 @@ public class CityDAL {
 	Logger logger;
 	private static final double DONT_INCLUDE_THE_CURRENT_CITY = 1.0; // min distance
 	private MongoClient mongoClient;
-	private MongoCollection<Document> citiesCollection;
+	private MongoCollection<City> citiesCollection;
 
 	private boolean populated;
 	private String lastError;
 	private String name;
 	private String country;
-	private ArrayList<Double> location;
+	private double longitude;
+	private double latitude;
 
 	public CityDAL(MongoClient mongoClient) {
 		logger = LoggerFactory.getLogger(CityDAL.class);
 		this.mongoClient = mongoClient;
 		citiesCollection = this.mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
-				.getCollection(Constants.COLLECTION_CITIES);
+				.getCollection(Constants.COLLECTION_CITIES, City.class)
+				.withCodecRegistry(ModelCodecs.REGISTRY);
 
 		lastError = "";
 	}
 
 	public CityDAL(MongoClient mongoClient, String cityId) {
 		this(mongoClient);
-		Document dbdata = citiesCollection.find(eq(Constants._ID, cityId)).first();
+		City dbdata = citiesCollection.find(eq(Constants._ID, cityId)).first();
 		if (dbdata != null) {
 			parseDocument(dbdata);
 		} else {
@@ -50,36 +57,69 @@ public class CityDAL {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private void parseDocument(Document doc) {
+	private void parseDocument(City doc) {
 		populated = false;
+		if (doc.getName() == null) {
+			lastError = "City has no name";
+			return;
+		}
+		name = doc.getName();
+		country = doc.getCountry();
+		longitude = doc.getLongitude();
+		latitude = doc.getLatitude();
+		populated = true;
+	}
+
+	/**
+	 * @return every city as stored, for APIRoutes to write out as JSON without
+	 *         decoding it. Empty in case of any exceptions
+	 */
+	ArrayList<RawBsonDocument> getAllCities() {
+		ArrayList<RawBsonDocument> allCities = new ArrayList<RawBsonDocument>();
+
 		try {
-			name = doc.getString(Constants._ID);
-			country = doc.getString(Constants.COUNTRY);
-			location = (ArrayList<Double>) doc.get(Constants.POSITION);
+			citiesCollection.withDocumentClass(RawBsonDocument.class).find().into(allCities);
 		} catch (Exception e) {
+			logger.error(e.getMessage());
 			lastError = e.getMessage();
-			populated = false;
-			return;
 		}
-		populated = true;
+		return allCities;
 	}
 
-	ArrayList<String> getAllCities() {
-		ArrayList<String> allCities = new ArrayList<String>();
+	/**
+	 * @return the city as stored, null if it does not exist (or in case of any
+	 *         exceptions)
+	 */
+	RawBsonDocument getCityRaw(String cityId) {
+		try {
+			RawBsonDocument city = citiesCollection.withDocumentClass(RawBsonDocument.class)
+					.find(eq(Constants._ID, cityId)).first();
+			if (city == null) {
+				lastError = String.format("City %s does not exist", cityId);
+			}
+			return city;
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+			lastError = e.getMessage();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the _id of every city, empty in case of any exceptions
+	 */
+	HashSet<String> getAllCityIds() {
+		HashSet<String> cityIds = new HashSet<String>();
 
 		try {
-			MongoCursor<Document> resultsIterator = null;
-			FindIterable<Document> results = citiesCollection.find();
-			for (resultsIterator = results.iterator(); resultsIterator.hasNext();) {
-				Document toReturn = createCityResponse(resultsIterator.next());
-				allCities.add(toReturn.toJson());
+			for (City city : citiesCollection.find().projection(new Document(Constants._ID, 1))) {
+				cityIds.add(city.getName());
 			}
 		} catch (Exception e) {
 			logger.error(e.getMessage());
 			lastError = e.getMessage();
 		}
-		return allCities;
+		return cityIds;
 	}
 
 	/**
@@ -97,10 +137,10 @@ public class CityDAL {
 		}
 
 		try {
-			MongoCursor<Document> resultsIterator = null;
-			Bson filter = near(Constants.POSITION, new Point(new Position(location)), Double.MAX_VALUE,
+			MongoCursor<City> resultsIterator = null;
+			Bson filter = near(Constants.POSITION, new Point(new Position(longitude, latitude)), Double.MAX_VALUE,
 					DONT_INCLUDE_THE_CURRENT_CITY);
-			FindIterable<Document> results = citiesCollection.find(filter).limit(Integer.parseInt(limit));
+			FindIterable<City> results = citiesCollection.find(filter).limit(Integer.parseInt(limit));
 
 			for (resultsIterator = results.iterator(); resultsIterator.hasNext();) {
 				Document toReturn = createCityResponse(resultsIterator.next());
@@ -120,11 +160,11 @@ public class CityDAL {
 		return neighboringCities;
 	}
 
-	private Document createCityResponse(Document document) {
+	private Document createCityResponse(City city) {
 		Document toReturn = new Document();
-		toReturn.append(Constants.NAME, document.getString(Constants._ID));
-		toReturn.append(Constants.COUNTRY, document.getString(Constants.COUNTRY));
-		toReturn.append(Constants.LOCATION, document.get(Constants.POSITION));
+		toReturn.append(Constants.NAME, city.getName());
+		toReturn.append(Constants.COUNTRY, city.getCountry());
+		toReturn.append(Constants.LOCATION, Arrays.asList(city.getLongitude(), city.getLatitude()));
 		return toReturn;
 	}
 
@@ -146,7 +186,8 @@ public class CityDAL {
 		return country;
 	}
 
+	// [longitude, latitude], boxed only here, for the API
 	Object getPosition() {
-		return location;
+		return Arrays.asList(longitude, latitude);
 	}
 }
@@ -0,0 +1,183 @@
+package org.example.mongodb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+/******
+ * One Change Stream on a collection, shared by every part of the application
+ * that needs to know about changes to it (caches, live feeds, counters...).
+ *
+ * Opening a Change Stream per subscriber would mean one cursor (and, with
+ * updateLookup, one extra lookup per event) per subscriber on the server, so
+ * subscribers register here instead and are called, in order, on the watcher
+ * thread. Subscribers must therefore be quick and must not block.
+ *
+ * If the stream fails, we try to resume after the last event we have seen. If
+ * even that fails, subscribers are told via onReset() that they may have missed
+ * events, and should drop anything they derived from the stream. They are told
+ * once the new stream is open, so whatever they reload from the collection
+ * then is kept up to date by it.
+ *
+ * For the same reason, state read from the collection at startup should only
+ * be read (and caches only used) once awaitOpen() returns true: a change made
+ * before the stream is open is never reported.
+ ******/
+public class CollectionChangeWatcher implements Runnable {
+
+	interface ChangeSubscriber {
+		void onChange(ChangeStreamDocument<Document> change);
+
+		// Events may have been missed, anything derived from the stream is suspect
+		void onReset();
+	}
+
+	Logger logger;
+	private MongoClient mongoClient;
+	private String collectionName;
+	private FullDocument fullDocument;
+	private List<Bson> pipeline;
+	private final List<ChangeSubscriber> subscribers = new CopyOnWriteArrayList<ChangeSubscriber>();
+
+	private BsonDocument resumeToken;
+	private boolean resumeFailed;
+	private boolean resetPending;
+	private final CountDownLatch opened = new CountDownLatch(1);
+	private volatile long lastEventMillis;
+	private volatile boolean running = true;
+
+	CollectionChangeWatcher(MongoClient mongoClient, String collectionName, FullDocument fullDocument) {
+		this(mongoClient, collectionName, fullDocument, Collections.<Bson>emptyList());
+	}
+
+	/**
+	 * @param pipeline - applied to every event, E.G. to leave out large fields of
+	 *                 the looked up fullDocument
+	 */
+	CollectionChangeWatcher(MongoClient mongoClient, String collectionName, FullDocument fullDocument,
+			List<Bson> pipeline) {
+		logger = LoggerFactory.getLogger(CollectionChangeWatcher.class);
+		this.mongoClient = mongoClient;
+		this.collectionName = collectionName;
+		this.fullDocument = fullDocument;
+		this.pipeline = pipeline;
+	}
+
+	void subscribe(ChangeSubscriber subscriber) {
+		subscribers.add(subscriber);
+	}
+
+	/**
+	 * Start from a resume token persisted by a previous run, instead of from now.
+	 * Call before the watcher is started.
+	 */
+	void resumeAfter(BsonDocument resumeToken) {
+		this.resumeToken = resumeToken;
+	}
+
+	// Stops after the event being delivered, or when the MongoClient is closed
+	void stop() {
+		running = false;
+	}
+
+	long getLastEventMillis() {
+		return lastEventMillis;
+	}
+
+	/**
+	 * Waits for the Change Stream to be open for the first time: every change
+	 * from then on is reported to the subscribers
+	 * 
+	 * @return false if it did not open within the timeout
+	 */
+	boolean awaitOpen(long timeout, TimeUnit unit) throws InterruptedException {
+		return opened.await(timeout, unit);
+	}
+
+	private void watch() {
+		MongoCollection<Document> collection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(collectionName);
+
+		ChangeStreamIterable<Document> changes = collection.watch(pipeline).fullDocument(fullDocument);
+		if (resumeToken != null) {
+			changes = changes.resumeAfter(resumeToken);
+		}
+
+		// The aggregate is sent here, the stream is open once we have the cursor
+		MongoCursor<ChangeStreamDocument<Document>> cursor = changes.iterator();
+		resumeFailed = false;
+		try {
+			if (resetPending) {
+				resetPending = false;
+				for (ChangeSubscriber subscriber : subscribers) {
+					subscriber.onReset();
+				}
+			}
+			opened.countDown();
+
+			while (running && cursor.hasNext()) {
+				ChangeStreamDocument<Document> change = cursor.next();
+				resumeToken = change.getResumeToken();
+				lastEventMillis = System.currentTimeMillis();
+
+				for (ChangeSubscriber subscriber : subscribers) {
+					try {
+						subscriber.onChange(change);
+					} catch (Exception e) {
+						// One broken subscriber must not starve the others
+						logger.error(String.format("Subscriber %s failed: %s", subscriber, e.getMessage()));
+					}
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.info(String.format("Watching %s for changes", collectionName));
+
+		while (running) {
+			try {
+				watch();
+			} catch (Exception e) {
+				if (!running) {
+					break; // Closed under us on shutdown
+				}
+				logger.error(String.format("Change Stream on %s failed: %s", collectionName, e.getMessage()));
+				if (resumeToken == null || resumeFailed) {
+					// We could not resume, so start from now on and let everyone know, once
+					// the new stream is open
+					resumeToken = null;
+					resumeFailed = false;
+					resetPending = true;
+				} else {
+					// Try to resume once, if that fails as well, start afresh next time
+					resumeFailed = true;
+				}
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException ie) {
+					logger.error(ie.getMessage());
+				}
+			}
+		}
+	}
+
+}
@@ -6,6 +6,11 @@ public class Constants {
 	public static final String COLLECTION_CITIES = "cities";
 	public static final String COLLECTION_PLANES = "planes";
 	public static final String COLLECTION_CARGO = "cargo";
+	public static final String COLLECTION_CARGO_ARCHIVE = "cargo_archive";
+	public static final String COLLECTION_STATS = "stats";
+	public static final String COLLECTION_CARGO_SLA = "cargo_sla";
+	public static final String COLLECTION_LISTENER_LEASES = "listener_leases";
+	public static final String COLLECTION_LISTENER_INSTANCES = "listener_instances";
 	public static final String _ID = "_id";
 	public static final String SCHEMA_VERSION = "schemaVersion";
 
@@ -26,6 +31,8 @@ public class Constants {
 	public static final String TOTAL_DISTANCE_FLOWN = "totalDistanceFlown";
 	public static final String TOTAL_FLIGHT_TIME = "totalFlightTime";
 	public static final String FLIGHT_LOG = "flightLog";
+	public static final String LAST_LANDING_EVENT_TIME = "lastLandingEventTime";
+	public static final String PARTITION_KEY = "partitionKey";
 	
 	// *** PLANE FLIGHT LOG ***
 	public static final String LANDING_LOCATION = "location";
@@ -39,10 +46,12 @@ public class Constants {
 	// *** CARGO ***
 	public static final String CARGO_ID = "id";
 	public static final String DESTINATION = "destination";
+	public static final String ORIGIN = "origin";
 	public static final String LOCATION = "location";
 	public static final String COURIER = "courier";
 	public static final String RECEIVED = "received";
 	public static final String DELIVERED = "delivered";	
+	public static final String TRANSIT_TIME = "transitTime";  //in seconds
 	public static final String STATUS = "status";
 	
 	public static final String STATUS_INPROCESS = "in process";
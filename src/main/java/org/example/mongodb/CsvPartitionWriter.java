@@ -0,0 +1,82 @@
+package org.example.mongodb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/******
+ * Writes a partition of an export table as CSV, with a header line, to
+ * <prefix>.csv (see AnalyticsExporter)
+ ******/
+class CsvPartitionWriter implements PartitionWriter {
+
+	private final AnalyticsExporter.Table table;
+	private final Writer writer;
+	private final SimpleDateFormat timestampFormat;
+
+	CsvPartitionWriter(File directory, String prefix, AnalyticsExporter.Table table) throws IOException {
+		this.table = table;
+		timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		writer = new BufferedWriter(new OutputStreamWriter(
+				Files.newOutputStream(new File(directory, prefix + ".csv").toPath()), StandardCharsets.UTF_8));
+		writer.write(String.join(",", table.columns));
+		writer.write("\n");
+	}
+
+	@Override
+	public void write(Object[] row) throws IOException {
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) {
+				writer.write(",");
+			}
+			writer.write(format(table.types[i], row[i]));
+		}
+		writer.write("\n");
+	}
+
+	private String format(AnalyticsExporter.ColumnType type, Object value) {
+		if (value == null) {
+			return "";
+		}
+		switch (type) {
+		case STRING:
+			return csv((String) value);
+		case TIMESTAMP:
+			return timestampFormat.format((Date) value);
+		default:
+			return String.valueOf(value);
+		}
+	}
+
+	private String csv(String value) {
+		if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		}
+		return value;
+	}
+
+	@Override
+	public void commit() throws IOException {
+		writer.flush();
+	}
+
+	// A flush, the file stays open
+	@Override
+	public boolean waitToCommit() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,98 @@
+package org.example.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/******
+ * Stops the web service in order, within a time limit, as a JVM shutdown hook
+ *
+ * Steps run in the order they were added (E.G. stop taking requests, let the
+ * landings listener finish and checkpoint, flush statistics, close the
+ * MongoClient), each with whatever is left of the time limit. A step that
+ * runs out of time is abandoned and the next one starts, so shutdown never
+ * takes much longer than the limit. How long each step took is logged.
+ ******/
+public class GracefulShutdown implements Runnable {
+
+	interface Step {
+		/**
+		 * @param timeoutMillis - what is left of the time limit
+		 * @return false if the step could not finish cleanly
+		 */
+		boolean stop(long timeoutMillis) throws Exception;
+	}
+
+	Logger logger;
+	private final long timeoutMillis;
+	private final List<String> names = new ArrayList<String>();
+	private final List<Step> steps = new ArrayList<Step>();
+
+	GracefulShutdown(long timeoutMillis) {
+		logger = LoggerFactory.getLogger(GracefulShutdown.class);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	synchronized void addStep(String name, Step step) {
+		names.add(name);
+		steps.add(step);
+	}
+
+	void install() {
+		Runtime.getRuntime().addShutdownHook(new Thread(this, "shutdown"));
+	}
+
+	@Override
+	public synchronized void run() {
+		long start = System.currentTimeMillis();
+		long deadline = start + timeoutMillis;
+		StringBuilder report = new StringBuilder();
+		boolean clean = true;
+
+		ExecutorService shutdownexec = Executors.newSingleThreadExecutor();
+		for (int i = 0; i < steps.size(); i++) {
+			Step step = steps.get(i);
+			long stepStart = System.currentTimeMillis();
+			long remaining = deadline - stepStart;
+			String outcome;
+			if (remaining <= 0) {
+				outcome = "skipped, out of time";
+				clean = false;
+			} else {
+				Future<Boolean> stopped = shutdownexec.submit(() -> step.stop(remaining));
+				try {
+					outcome = stopped.get(remaining, TimeUnit.MILLISECONDS) ? "ok" : "incomplete";
+				} catch (TimeoutException e) {
+					stopped.cancel(true);
+					// The step's thread may still be busy, give the next one a fresh thread
+					shutdownexec.shutdownNow();
+					shutdownexec = Executors.newSingleThreadExecutor();
+					outcome = "timed out";
+				} catch (Exception e) {
+					outcome = "failed: " + e.getMessage();
+				}
+				if (!outcome.equals("ok")) {
+					clean = false;
+				}
+			}
+			report.append(String.format("%s%s %d ms (%s)", (i == 0) ? "" : ", ", names.get(i),
+					System.currentTimeMillis() - stepStart, outcome));
+		}
+		shutdownexec.shutdownNow();
+
+		String summary = String.format("Shut down in %d ms (limit %d ms): %s", System.currentTimeMillis() - start,
+				timeoutMillis, report);
+		if (clean) {
+			logger.info(summary);
+		} else {
+			logger.warn(summary);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.mod;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+
+/******
+ * Shares the landings Change Stream between all the instances of the web
+ * service, instead of every instance logging every landing
+ *
+ * Planes are split into a fixed number of partitions by the hash of their
+ * callsign, stored on the plane as partitionKey when it is created (or by
+ * PlaneSchemaMigrator, which leaves it alone while partitions are in use: a
+ * plane that changed partition under a running listener could have its
+ * landings skipped or logged out of order). Every partition has a lease
+ * in the listener_leases collection: the instance that holds an unexpired
+ * lease runs a PlaneLandingEventListener for that partition, whose Change
+ * Stream only matches planes with partitionKey mod partitions = partition.
+ *
+ * Every few seconds each instance renews its heartbeat (listener_instances)
+ * and its leases, storing the resume token of each partition's listener with
+ * the lease. Instances take up to their fair share (partitions / live
+ * instances) of the expired leases and give up leases above it, so the
+ * partitions spread out as instances come and go. A new owner resumes where
+ * the previous one last checkpointed; landings it sees again are skipped by
+ * the event deduplication in PlaneDAL.logLanding, as are those processed by
+ * two owners while a lease changes hands.
+ ******/
+public class LandingListenerCoordinator implements Runnable {
+
+	private static final String OWNER = "owner";
+	private static final String EXPIRES_AT = "expiresAt";
+	private static final String RESUME_TOKEN = "resumeToken";
+	private static final int DUPLICATE_KEY = 11000;
+
+	Logger logger;
+	private MongoClient mongoClient;
+	private MongoCollection<Document> leasesCollection;
+	private MongoCollection<Document> instancesCollection;
+	private final String instanceId;
+	private final int partitions;
+	private final long leaseMillis;
+
+	private final Map<Integer, PlaneLandingEventListener> owned = new ConcurrentHashMap<Integer, PlaneLandingEventListener>();
+	private final ExecutorService listenerexec = Executors.newCachedThreadPool();
+	private final ScheduledExecutorService leaseexec = Executors.newSingleThreadScheduledExecutor();
+	private volatile int liveInstances = 1;
+
+	LandingListenerCoordinator(MongoClient mongoClient, int partitions, long leaseMillis) {
+		logger = LoggerFactory.getLogger(LandingListenerCoordinator.class);
+		this.mongoClient = mongoClient;
+		leasesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_LISTENER_LEASES).withWriteConcern(WriteConcern.MAJORITY);
+		instancesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_LISTENER_INSTANCES).withWriteConcern(WriteConcern.MAJORITY);
+		// pid@host, unique per running web service
+		this.instanceId = ManagementFactory.getRuntimeMXBean().getName();
+		this.partitions = partitions;
+		this.leaseMillis = leaseMillis;
+	}
+
+	void start() {
+		// Renew well before the lease runs out
+		leaseexec.scheduleWithFixedDelay(this, 0, leaseMillis / 3, TimeUnit.MILLISECONDS);
+	}
+
+	static int partitionKey(String callSign) {
+		return callSign.hashCode() & Integer.MAX_VALUE;
+	}
+
+	// Planes created by scripts and not migrated yet have no partitionKey, partition 0 takes them
+	private Bson partitionFilter(int partition) {
+		String key = "fullDocument." + Constants.PARTITION_KEY;
+		Bson filter = mod(key, partitions, partition);
+		return (partition == 0) ? or(filter, exists(key, false)) : filter;
+	}
+
+	@Override
+	public void run() {
+		try {
+			Date now = new Date();
+			heartbeat(now);
+			renew(now);
+			rebalance(now);
+		} catch (Exception e) {
+			// Leases we could not renew expire, and someone else takes them
+			logger.error("Could not renew listener leases: " + e.getMessage());
+		}
+	}
+
+	private void heartbeat(Date now) {
+		instancesCollection.updateOne(eq(Constants._ID, instanceId),
+				set(EXPIRES_AT, new Date(now.getTime() + leaseMillis)), new UpdateOptions().upsert(true));
+		liveInstances = (int) Math.max(1, instancesCollection.countDocuments(gt(EXPIRES_AT, now)));
+	}
+
+	private void renew(Date now) {
+		for (Map.Entry<Integer, PlaneLandingEventListener> lease : owned.entrySet()) {
+			BsonDocument resumeToken = lease.getValue().getResumeToken();
+			Bson renewal = set(EXPIRES_AT, new Date(now.getTime() + leaseMillis));
+			if (resumeToken != null) {
+				renewal = combine(renewal, set(RESUME_TOKEN, resumeToken));
+			}
+			if (leasesCollection.updateOne(and(eq(Constants._ID, lease.getKey()), eq(OWNER, instanceId)), renewal)
+					.getMatchedCount() == 0) {
+				logger.warn(String.format("Lost the lease on landings partition %d", lease.getKey()));
+				release(lease.getKey(), false);
+			}
+		}
+	}
+
+	private void rebalance(Date now) {
+		int fairShare = (partitions + liveInstances - 1) / liveInstances;
+
+		// Give up what is above our share, the others pick it up once it expires
+		for (Integer partition : new ArrayList<Integer>(owned.keySet())) {
+			if (owned.size() <= fairShare) {
+				break;
+			}
+			release(partition, true);
+		}
+
+		for (int partition = 0; partition < partitions && owned.size() < fairShare; partition++) {
+			if (!owned.containsKey(partition)) {
+				acquire(partition, now);
+			}
+		}
+	}
+
+	private void acquire(int partition, Date now) {
+		Document lease;
+		try {
+			// Only matches an expired lease; a missing one is created, a live one fails on its _id
+			lease = leasesCollection.findOneAndUpdate(
+					and(eq(Constants._ID, partition), or(lt(EXPIRES_AT, now), exists(EXPIRES_AT, false))),
+					combine(set(OWNER, instanceId), set(EXPIRES_AT, new Date(now.getTime() + leaseMillis))),
+					new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+		} catch (MongoCommandException e) {
+			if (e.getErrorCode() == DUPLICATE_KEY) {
+				return; // Someone else holds it
+			}
+			throw e;
+		}
+
+		BsonDocument resumeToken = null;
+		Object saved = lease.get(RESUME_TOKEN);
+		if (saved instanceof Document) {
+			resumeToken = ((Document) saved).toBsonDocument(BsonDocument.class, leasesCollection.getCodecRegistry());
+		}
+		PlaneLandingEventListener listener = new PlaneLandingEventListener(mongoClient, partitionFilter(partition),
+				resumeToken);
+		owned.put(partition, listener);
+		listenerexec.execute(listener);
+		logger.info(String.format("Listening for landings of partition %d of %d", partition, partitions));
+	}
+
+	/**
+	 * @param expire - hand the lease over now, rather than when it runs out
+	 */
+	private void release(int partition, boolean expire) {
+		PlaneLandingEventListener listener = owned.remove(partition);
+		if (listener == null) {
+			return;
+		}
+		listener.stop();
+		if (expire) {
+			Bson released = set(EXPIRES_AT, new Date(0));
+			if (listener.getResumeToken() != null) {
+				released = combine(released, set(RESUME_TOKEN, listener.getResumeToken()));
+			}
+			leasesCollection.updateOne(and(eq(Constants._ID, partition), eq(OWNER, instanceId)), released);
+			logger.info(String.format("Released landings partition %d", partition));
+		}
+	}
+
+	/**
+	 * Stops renewing, lets every listener finish the landing it is logging, and
+	 * hands the leases over (with where each listener stopped) right away
+	 * 
+	 * @return false if a listener did not stop within timeoutMillis
+	 */
+	boolean shutdown(long timeoutMillis) throws InterruptedException {
+		leaseexec.shutdown();
+		leaseexec.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		for (PlaneLandingEventListener listener : owned.values()) {
+			listener.stop();
+		}
+		listenerexec.shutdown();
+		boolean stopped = listenerexec.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		for (Integer partition : new ArrayList<Integer>(owned.keySet())) {
+			release(partition, true);
+		}
+		instancesCollection.deleteOne(eq(Constants._ID, instanceId));
+		return stopped;
+	}
+
+	Document report() {
+		Map<String, Object> partitionsOwned = new TreeMap<String, Object>();
+		long applied = 0;
+		long duplicates = 0;
+		for (Map.Entry<Integer, PlaneLandingEventListener> lease : owned.entrySet()) {
+			PlaneLandingEventListener listener = lease.getValue();
+			partitionsOwned.put(String.valueOf(lease.getKey()),
+					new Document("applied", listener.getApplied()).append("duplicates", listener.getDuplicates()));
+			applied += listener.getApplied();
+			duplicates += listener.getDuplicates();
+		}
+		return new Document("instance", instanceId)
+				.append("partitions", partitions)
+				.append("liveInstances", liveInstances)
+				.append("owned", new Document(partitionsOwned))
+				.append("applied", applied)
+				.append("duplicates", duplicates);
+	}
+}
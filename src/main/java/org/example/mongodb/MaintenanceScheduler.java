@@ -0,0 +1,191 @@
+package org.example.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+/******
+ * Fleet wide view of which planes are closest to needing maintenance, for GET
+ * /planes/maintenance?top=N
+ *
+ * Planes are kept in memory, ordered by the distance they can still fly before
+ * reaching Constants.MAINTENANCE_REQUIRED_LIMIT. The fleet is read once at
+ * startup, after that every plane is re-positioned in O(log n) when the planes
+ * Change Stream reports that its totalDistanceFlown changed (which is what
+ * PlaneDAL.updateFlightLog writes on every landing). Serving the top N never
+ * touches Mongo.
+ *
+ * Crossing ALERT_THRESHOLD of the limit, or the limit itself, is logged as a
+ * warning, once per plane.
+ ******/
+public class MaintenanceScheduler implements CollectionChangeWatcher.ChangeSubscriber {
+
+	private static final double ALERT_THRESHOLD = 0.9;
+	static final int MAX_TOP = 1000;
+
+	private static class PlaneMaintenance implements Comparable<PlaneMaintenance> {
+		final String callSign;
+		final double distanceFlown;
+		final boolean requiresMaintenance;
+
+		PlaneMaintenance(String callSign, double distanceFlown, boolean requiresMaintenance) {
+			this.callSign = callSign;
+			this.distanceFlown = distanceFlown;
+			this.requiresMaintenance = requiresMaintenance;
+		}
+
+		double remaining() {
+			return requiresMaintenance ? 0.0 : Math.max(0.0, Constants.MAINTENANCE_REQUIRED_LIMIT - distanceFlown);
+		}
+
+		@Override
+		public int compareTo(PlaneMaintenance other) {
+			int byRemaining = Double.compare(remaining(), other.remaining());
+			return byRemaining != 0 ? byRemaining : callSign.compareTo(other.callSign);
+		}
+	}
+
+	Logger logger;
+	private MongoClient mongoClient;
+	private final TreeSet<PlaneMaintenance> byRemaining = new TreeSet<PlaneMaintenance>();
+	private final Map<String, PlaneMaintenance> byCallSign = new HashMap<String, PlaneMaintenance>();
+	private long alerts;
+
+	MaintenanceScheduler(MongoClient mongoClient) {
+		logger = LoggerFactory.getLogger(MaintenanceScheduler.class);
+		this.mongoClient = mongoClient;
+	}
+
+	/**
+	 * Reads the whole fleet. Subscribe to the Change Stream first: anything the
+	 * stream has already told us about is newer than what we read here.
+	 */
+	void load() {
+		load(false);
+	}
+
+	private void load(boolean overwrite) {
+		PlaneDAL planes = new PlaneDAL(mongoClient);
+		ArrayList<Document> fleet = planes.getMaintenanceState();
+
+		synchronized (this) {
+			for (Document plane : fleet) {
+				String callSign = plane.getString(Constants._ID);
+				if (overwrite || !byCallSign.containsKey(callSign)) {
+					update(callSign, plane.get(Constants.TOTAL_DISTANCE_FLOWN),
+							plane.get(Constants.REQUIRES_MAINTENANCE), false);
+				}
+			}
+		}
+		logger.info(String.format("Tracking maintenance of %d planes", fleet.size()));
+	}
+
+	private synchronized void update(String callSign, Object distanceFlown, Object requiresMaintenance,
+			boolean alert) {
+		PlaneMaintenance previous = byCallSign.remove(callSign);
+		if (previous != null) {
+			byRemaining.remove(previous);
+		}
+
+		PlaneMaintenance current = new PlaneMaintenance(callSign,
+				(distanceFlown instanceof Number) ? ((Number) distanceFlown).doubleValue() : 0.0,
+				Boolean.TRUE.equals(requiresMaintenance));
+		byCallSign.put(callSign, current);
+		byRemaining.add(current);
+
+		if (alert) {
+			alertOnThresholds(previous, current);
+		}
+	}
+
+	private void alertOnThresholds(PlaneMaintenance previous, PlaneMaintenance current) {
+		double limit = Constants.MAINTENANCE_REQUIRED_LIMIT;
+		double before = (previous == null) ? 0.0 : limit - previous.remaining();
+		double now = limit - current.remaining();
+
+		if (before < limit && now >= limit) {
+			alerts++;
+			logger.warn(String.format("Plane %s has reached its maintenance limit, %.0f flown", current.callSign,
+					current.distanceFlown));
+		} else if (before < limit * ALERT_THRESHOLD && now >= limit * ALERT_THRESHOLD) {
+			alerts++;
+			logger.warn(String.format("Plane %s is due for maintenance in %.0f", current.callSign,
+					current.remaining()));
+		}
+	}
+
+	synchronized List<Document> top(int count) {
+		List<Document> top = new ArrayList<Document>();
+		Iterator<PlaneMaintenance> iterator = byRemaining.iterator();
+
+		for (int i = 0; i < Math.min(count, MAX_TOP) && iterator.hasNext(); i++) {
+			PlaneMaintenance plane = iterator.next();
+			top.add(new Document(Constants.CALLSIGN, plane.callSign)
+					.append(Constants.TOTAL_DISTANCE_FLOWN, plane.distanceFlown)
+					.append("remainingDistance", plane.remaining())
+					.append(Constants.REQUIRES_MAINTENANCE, plane.requiresMaintenance));
+		}
+		return top;
+	}
+
+	synchronized long getAlertCount() {
+		return alerts;
+	}
+
+	@Override
+	public void onChange(ChangeStreamDocument<Document> change) {
+		if (change.getDocumentKey() == null) {
+			return;
+		}
+		String callSign = change.getDocumentKey().getString(Constants._ID).getValue();
+
+		if (change.getOperationType() == OperationType.DELETE) {
+			synchronized (this) {
+				PlaneMaintenance previous = byCallSign.remove(callSign);
+				if (previous != null) {
+					byRemaining.remove(previous);
+				}
+			}
+			return;
+		}
+
+		// Location and heading updates are by far the most frequent, skip them
+		if (change.getOperationType() == OperationType.UPDATE && !touchesMaintenance(change)) {
+			return;
+		}
+		Document plane = change.getFullDocument();
+		if (plane != null) {
+			update(callSign, plane.get(Constants.TOTAL_DISTANCE_FLOWN), plane.get(Constants.REQUIRES_MAINTENANCE),
+					true);
+		}
+	}
+
+	private boolean touchesMaintenance(ChangeStreamDocument<Document> change) {
+		if (change.getUpdateDescription() == null || change.getUpdateDescription().getUpdatedFields() == null) {
+			return false;
+		}
+		return change.getUpdateDescription().getUpdatedFields().containsKey(Constants.TOTAL_DISTANCE_FLOWN)
+				|| change.getUpdateDescription().getUpdatedFields().containsKey(Constants.REQUIRES_MAINTENANCE);
+	}
+
+	@Override
+	public void onReset() {
+		logger.warn("Plane Change Stream was reset, reloading maintenance state of the fleet");
+		try {
+			load(true);
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+		}
+	}
+}
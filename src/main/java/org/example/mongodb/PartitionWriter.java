@@ -0,0 +1,22 @@
+package org.example.mongodb;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/******
+ * Writes the rows of one partition (one table, one day) of an
+ * AnalyticsExporter run, in one file format
+ *
+ * Rows are in the column order of their AnalyticsExporter.Table, with null
+ * for a missing value.
+ ******/
+interface PartitionWriter extends Closeable {
+
+	void write(Object[] row) throws IOException;
+
+	// Everything written so far is on disk and can be read, before a checkpoint moves past it
+	void commit() throws IOException;
+
+	// True while commit() would close a file that is still small and young, so the checkpoint waits for it
+	boolean waitToCommit();
+}
@@ -0,0 +1,105 @@
+package org.example.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/******
+ * Remembers, for every plane, the (in memory, monotonic) sequence number of the
+ * last change the planes Change Stream reported for it.
+ *
+ * This lets GET /planes?since=<token> return only the planes that changed
+ * since the client's last poll, instead of the whole fleet. A token is
+ * "<epoch>.<sequence>". The epoch changes every time the service starts and
+ * every time the Change Stream had to be restarted from scratch: we cannot know
+ * what changed in between, so a token from another epoch gets the whole fleet.
+ *
+ * Memory is one entry per plane, however many changes there are.
+ ******/
+public class PlaneChangeLog implements CollectionChangeWatcher.ChangeSubscriber {
+
+	Logger logger;
+	private final Map<String, Long> lastChanged = new ConcurrentHashMap<String, Long>();
+	private volatile long epoch;
+	private long sequence;
+
+	PlaneChangeLog() {
+		logger = LoggerFactory.getLogger(PlaneChangeLog.class);
+		epoch = System.currentTimeMillis();
+	}
+
+	/**
+	 * Take the token BEFORE reading the planes it is returned with, so a change
+	 * that happens while we read is sent again next time rather than lost.
+	 */
+	synchronized String currentToken() {
+		return epoch + "." + sequence;
+	}
+
+	/**
+	 * @param token - as returned by currentToken()
+	 * @return callsigns of the planes changed since the token, or null if the token
+	 *         is not usable and the client needs the whole fleet
+	 */
+	synchronized List<String> changedSince(String token) {
+		long since = parseSequence(token);
+		if (since < 0) {
+			return null;
+		}
+
+		List<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, Long> entry : lastChanged.entrySet()) {
+			if (entry.getValue() > since) {
+				changed.add(entry.getKey());
+			}
+		}
+		return changed;
+	}
+
+	// -1 if the token is malformed, from another epoch or from the future
+	private long parseSequence(String token) {
+		if (token == null) {
+			return -1;
+		}
+		String[] parts = token.split("\\.");
+		if (parts.length != 2) {
+			return -1;
+		}
+		try {
+			long tokenEpoch = Long.parseLong(parts[0]);
+			long tokenSequence = Long.parseLong(parts[1]);
+			if (tokenEpoch != epoch || tokenSequence > sequence) {
+				return -1;
+			}
+			return tokenSequence;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized void onChange(ChangeStreamDocument<Document> change) {
+		if (change.getDocumentKey() == null) {
+			// E.G. the collection was dropped, nothing we know is valid any more
+			onReset();
+			return;
+		}
+		sequence++;
+		lastChanged.put(change.getDocumentKey().getString(Constants._ID).getValue(), sequence);
+	}
+
+	@Override
+	public synchronized void onReset() {
+		logger.warn("Plane Change Stream was reset, clients will get the whole fleet on their next poll");
+		epoch = Math.max(epoch + 1, System.currentTimeMillis());
+		sequence = 0;
+		lastChanged.clear();
+	}
+}
@@ -1,6 +1,12 @@
 package org.example.mongodb;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.expr;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.not;
+import static com.mongodb.client.model.Projections.include;
 import static com.mongodb.client.model.Updates.addToSet;
 import static com.mongodb.client.model.Updates.combine;
 import static com.mongodb.client.model.Updates.popFirst;
@@ -9,10 +15,17 @@ import static com.mongodb.client.model.Updates.set;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
+import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
+import org.example.mongodb.WriteConcernPolicy.OperationClass;
+import org.example.mongodb.model.ModelCodecs;
+import org.example.mongodb.model.Plane;
 import org.example.mongodb.util.DistanceUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +37,9 @@ import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.UpdateResult;
 
 public class PlaneDAL {
 
@@ -36,29 +52,34 @@ public class PlaneDAL {
 	 * schema version 0 We will consider a document without schema version as valid,
 	 * and start at 1
 	 */
-	private int schemaVersion = 1;
+	// Version written by updateFlightLog, and that PlaneSchemaMigrator upgrades older planes to
+	static final int LATEST_SCHEMA_VERSION = 1;
+
+	private int schemaVersion = LATEST_SCHEMA_VERSION;
 	private int doc_version = 0;
 
 	private boolean populated;
 	private String lastError;
 	private String callSign;
-	private ArrayList<Double> currentLocation;
-	private Object heading;
-	private ArrayList<String> route;
-	private String status;
-	private String landed;
-
-	// Nobody else needs you, so no getters for you!
-	private Document lastLandingEvent;
-	private Double totalDistanceFlown;
-	private Double totalFlightTime;
-	private Boolean requiresMaintenance = false;
+	private boolean duplicate;
+
+	// Temporary field of the logLanding pipeline
+	private static final String LAST_LANDING = "_lastLanding";
+	private static final String FLIGHT_LOG_SIZE = "_flightLogSize";
+	// Landings of the same plane that pushLanding lets in between before giving up
+	private static final int MAX_LANDING_ATTEMPTS = 100;
+	// Whether the server logs pipeline updates as deltas, found out on the first landing
+	private static volatile Boolean pipelineUpdatesAreDeltas;
+	// Immutable, decoded by PlaneCodec. The fields added for Task 3 (last landing,
+	// totals, requiresMaintenance) have no getters here, nobody else needs them!
+	private Plane plane;
 
 	public PlaneDAL(MongoClient mongoClient) {
 		logger = LoggerFactory.getLogger(PlaneDAL.class);
 		this.mongoClient = mongoClient;
 		planesCollection = this.mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
 				.getCollection(Constants.COLLECTION_PLANES)
+				.withCodecRegistry(ModelCodecs.REGISTRY)
 				.withWriteConcern(WriteConcern.MAJORITY)
 				.withReadConcern(ReadConcern.MAJORITY);
 		lastError = "";
@@ -66,6 +87,11 @@ public class PlaneDAL {
 
 	// Find the plane, along with its last route, without the Flight Log
 	public PlaneDAL(MongoClient mongoClient, String planeId) {
+		this(mongoClient, planeId, true);
+	}
+
+	// allowCached should be false when the state read is used to compute the next write
+	public PlaneDAL(MongoClient mongoClient, String planeId, boolean allowCached) {
 		this(mongoClient);
 
 		/****
@@ -78,16 +104,29 @@ public class PlaneDAL {
 		 * information. Hence, we get the last landing event from the Flight Log, and
 		 * only retrieve that.
 		 * 
+		 * The result of that aggregation is kept in the PlaneStateCache (if one is
+		 * installed), until the planes Change Stream tells us the plane has changed.
+		 * 
 		 */
-		AggregateIterable<Document> result = planesCollection.aggregate(Arrays.asList(
-				new Document("$match", new Document(Constants._ID, planeId)),
-				new Document("$project", new Document(Constants._ID, 1L).append(Constants.CURRENT_LOCATION, 1L)
-						.append(Constants.HEADING, 1L).append(Constants.ROUTE, 1L).append(Constants.LANDED, 1L)
-						.append(Constants.STATUS, 1L).append(Constants.TOTAL_FLIGHT_TIME, 1L).append(Constants.SCHEMA_VERSION, 1L)
-						.append(Constants.TOTAL_DISTANCE_FLOWN, 1L).append(Constants.LAST_LANDING_EVENT,
-								new Document("$arrayElemAt", Arrays.asList("$" + Constants.FLIGHT_LOG, -1L))))));
-
-		Document dbdata = result.first();
+		PlaneStateCache cache = allowCached ? PlaneStateCache.installed() : null;
+		Plane dbdata = (cache == null) ? null : cache.get(planeId);
+
+		if (dbdata == null) {
+			long ticket = (cache == null) ? 0 : cache.beginLoad();
+			AggregateIterable<Plane> result = planesCollection.aggregate(Arrays.asList(
+					new Document("$match", new Document(Constants._ID, planeId)),
+					new Document("$project", new Document(Constants._ID, 1L).append(Constants.CURRENT_LOCATION, 1L)
+							.append(Constants.HEADING, 1L).append(Constants.ROUTE, 1L).append(Constants.LANDED, 1L)
+							.append(Constants.STATUS, 1L).append(Constants.TOTAL_FLIGHT_TIME, 1L).append(Constants.SCHEMA_VERSION, 1L)
+							.append(Constants.TOTAL_DISTANCE_FLOWN, 1L).append(Constants.LAST_LANDING_EVENT,
+									new Document("$arrayElemAt", Arrays.asList("$" + Constants.FLIGHT_LOG, -1L))))),
+					Plane.class);
+
+			dbdata = result.first();
+			if ((cache != null) && (dbdata != null)) {
+				cache.put(planeId, dbdata, ticket);
+			}
+		}
 
 		if (dbdata != null) {
 			parseDocument(dbdata);
@@ -96,78 +135,76 @@ public class PlaneDAL {
 		}
 	}
 
-	private void parseDocument(Document doc) {
+	private void parseDocument(Plane doc) {
 		populated = false;
 
 		// We are expecting a null doc_version for planes added via script outside of
-		// the APIs.
-		if (null == doc.getInteger(Constants.SCHEMA_VERSION)) {
-			doc_version = 0; // It's a valid case
-		} else {
-			doc_version = doc.getInteger(Constants.SCHEMA_VERSION);
-		}
-
-		switch (doc_version) {
-		case 0: // Verion 0 is valid for plances added from the backend
-			parseDocumentInitial(doc);
-			break;
-		case 1: // New version for Task 3
-			parseDocumentV1(doc);
-			break;
+		// the APIs. PlaneCodec reads it as 0, which is a valid case (Version 0 is
+		// valid for planes added from the backend). Version 1 (Task 3) adds the last
+		// landing, totals and requiresMaintenance, which are 0 / false / null before.
+		// Once PlaneSchemaMigrator reports nothing remaining (GET /metrics/migration),
+		// every plane is on the latest version.
+		doc_version = doc.getSchemaVersion();
+		if (doc.getCallSign() == null) {
+			lastError = "Plane has no callsign";
+			return;
 		}
-
+		plane = doc;
+		callSign = doc.getCallSign();
+		populated = true;
 	}
 
-	@SuppressWarnings("unchecked")
-	private void parseDocumentInitial(Document doc) {
-		populated = false;
-		try {
-			callSign = doc.getString(Constants._ID);
-			heading = doc.get(Constants.HEADING);
-			currentLocation = (ArrayList<Double>) doc.get(Constants.CURRENT_LOCATION);
-			route = (ArrayList<String>) doc.get(Constants.ROUTE);
-			landed = doc.getString(Constants.LANDED);
-			status = doc.getString(Constants.STATUS);
+	/**
+	 * @return every plane as stored (only the fields the API shows), for
+	 *         APIRoutes to write out as JSON without decoding it. Empty in case
+	 *         of any exceptions
+	 */
+	ArrayList<RawBsonDocument> getAllPlanes() {
+		ArrayList<RawBsonDocument> allPlanes = new ArrayList<RawBsonDocument>();
 
+		try {
+			// Never drag the Flight Log along
+			planesCollection.withDocumentClass(RawBsonDocument.class).find().projection(include(
+					Constants.CURRENT_LOCATION, Constants.HEADING, Constants.ROUTE, Constants.LANDED))
+					.into(allPlanes);
 		} catch (Exception e) {
+			logger.error(e.getMessage());
 			lastError = e.getMessage();
-			populated = false;
-			return;
 		}
-		populated = true;
+		return allPlanes;
 	}
 
-	@SuppressWarnings("unchecked")
-	private void parseDocumentV1(Document doc) {
-		populated = false;
-		try {
-			callSign = doc.getString(Constants._ID);
-			heading = doc.get(Constants.HEADING);
-			currentLocation = (ArrayList<Double>) doc.get(Constants.CURRENT_LOCATION);
-			route = (ArrayList<String>) doc.get(Constants.ROUTE);
-			landed = doc.getString(Constants.LANDED);
-			status = doc.getString(Constants.STATUS);
-
-			// Added new properties for Task 3, only available in Schema Version 1
-			lastLandingEvent = (Document) doc.get(Constants.LAST_LANDING_EVENT);
-			totalDistanceFlown = doc.getDouble(Constants.TOTAL_DISTANCE_FLOWN);
-			totalFlightTime = doc.getDouble(Constants.TOTAL_FLIGHT_TIME);
-			requiresMaintenance = doc.getBoolean(Constants.REQUIRES_MAINTENANCE);
-
-		} catch (Exception e) {
-			lastError = e.getMessage();
-			populated = false;
-			return;
+	/**
+	 * Used to send only the planes that changed since a client's last poll
+	 * 
+	 * @param planeIds - callsigns of the planes to fetch, null for all of them
+	 * @return the planes that (still) exist, in the same format as GET /planes
+	 */
+	ArrayList<Document> getPlanes(List<String> planeIds) {
+		if (planeIds == null) {
+			return findPlanesForAPI(new Document());
 		}
-		populated = true;
+		if (planeIds.isEmpty()) {
+			return new ArrayList<Document>();
+		}
+		return findPlanesForAPI(in(Constants._ID, planeIds));
+	}
+
+	// Distance flown and maintenance flag of every plane, for the MaintenanceScheduler
+	ArrayList<Document> getMaintenanceState() {
+		return planesCollection.find()
+				.projection(include(Constants.TOTAL_DISTANCE_FLOWN, Constants.REQUIRES_MAINTENANCE))
+				.into(new ArrayList<Document>());
 	}
 
-	ArrayList<String> getAllPlanes() {
-		ArrayList<String> allPlanes = new ArrayList<String>();
+	private ArrayList<Document> findPlanesForAPI(Bson filter) {
+		ArrayList<Document> planes = new ArrayList<Document>();
 
 		try {
 			MongoCursor<Document> resultsIterator = null;
-			FindIterable<Document> results = planesCollection.find();
+			// Never drag the Flight Log along
+			FindIterable<Document> results = planesCollection.find(filter).projection(include(
+					Constants.CURRENT_LOCATION, Constants.HEADING, Constants.ROUTE, Constants.LANDED));
 
 			for (resultsIterator = results.iterator(); resultsIterator.hasNext();) {
 				Document document = resultsIterator.next();
@@ -177,13 +214,13 @@ public class PlaneDAL {
 				toReturn.append(Constants.HEADING, document.get(Constants.HEADING));
 				toReturn.append(Constants.ROUTE, document.get(Constants.ROUTE));
 				toReturn.append(Constants.LANDED, document.get(Constants.LANDED));
-				allPlanes.add(toReturn.toJson());
+				planes.add(toReturn);
 			}
 		} catch (Exception e) {
 			logger.error(e.getMessage());
 			lastError = e.getMessage();
 		}
-		return allPlanes;
+		return planes;
 	}
 
 	boolean updateLocationHeadingLanding(String location, String heading, String landing) {
@@ -192,6 +229,9 @@ public class PlaneDAL {
 			return false;
 		}
 
+		if(!isValidHeading(heading)) {
+			return false;
+		}
 		if(!isValidCity(landing)) {
 			lastError = String.format("City %s does not exist", landing);
 			return false;
@@ -201,13 +241,17 @@ public class PlaneDAL {
 			Bson filter = eq(Constants._ID, callSign);
 
 			Bson updateLocation = set(Constants.CURRENT_LOCATION, createDoubleArrayFromString(location));
-			Bson updateHeading = set(Constants.HEADING, heading);
+			// A number, the way PlaneCodec and the API read it
+			Bson updateHeading = set(Constants.HEADING, Double.parseDouble(heading));
 			Bson updateLanding = set(Constants.LANDED, landing);
 			Bson updateStatus = set(Constants.STATUS, "landed");
 
 			Bson updates = combine(updateLocation, updateHeading, updateLanding, updateStatus);
 			//Relying on retryable writes here.
-			planesCollection.findOneAndUpdate(filter, updates);
+			long start = System.nanoTime();
+			planesCollectionFor(OperationClass.PLANE_STATE).findOneAndUpdate(filter, updates);
+			WriteConcernPolicy.recordLatency(OperationClass.PLANE_STATE, start);
+			invalidateCachedState();
 			return true;
 		} catch (Exception e) {
 			logger.error(e.getMessage());
@@ -236,11 +280,14 @@ public class PlaneDAL {
 			Bson filter = eq(Constants._ID, callSign);
 
 			Bson updateLocation = set(Constants.CURRENT_LOCATION, createDoubleArrayFromString(location));
-			Bson updateHeading = set(Constants.HEADING, heading);
+			Bson updateHeading = set(Constants.HEADING, Double.parseDouble(heading));
 
 			Bson updates = combine(updateLocation, updateHeading);
 			//Relying on retryable writes here.
-			planesCollection.findOneAndUpdate(filter, updates);
+			long start = System.nanoTime();
+			planesCollectionFor(OperationClass.TELEMETRY).findOneAndUpdate(filter, updates);
+			WriteConcernPolicy.recordLatency(OperationClass.TELEMETRY, start);
+			invalidateCachedState();
 			return true;
 		} catch (Exception e) {
 			logger.error(e.getMessage());
@@ -304,7 +351,10 @@ public class PlaneDAL {
 				updateRoute = addToSet(Constants.ROUTE, route);
 			}
 			//Relying on retryable writes here.
-			planesCollection.findOneAndUpdate(filter, updateRoute);
+			long start = System.nanoTime();
+			planesCollectionFor(OperationClass.PLANE_STATE).findOneAndUpdate(filter, updateRoute);
+			WriteConcernPolicy.recordLatency(OperationClass.PLANE_STATE, start);
+			invalidateCachedState();
 			return true;
 		} catch (Exception e) {
 			logger.error(e.getMessage());
@@ -324,7 +374,113 @@ public class PlaneDAL {
 			Bson filter = eq(Constants._ID, callSign);
 			Bson updateRoute = popFirst(Constants.ROUTE);
 			//Relying on retryable writes here.
-			planesCollection.findOneAndUpdate(filter, updateRoute);
+			long start = System.nanoTime();
+			planesCollectionFor(OperationClass.PLANE_STATE).findOneAndUpdate(filter, updateRoute);
+			WriteConcernPolicy.recordLatency(OperationClass.PLANE_STATE, start);
+			invalidateCachedState();
+			return true;
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+			lastError = e.getMessage();
+		}
+		return false;
+	}
+
+
+	/**
+	 * Logs a landing in a single write: the totals are computed on the server,
+	 * by an aggregation pipeline update (MongoDB 4.2+), from the last landing in
+	 * the Flight Log. Nothing is read first, so concurrent landings of the same
+	 * plane cannot overwrite each other's totals, and the plane does not need to
+	 * be populated. This is what PlaneLandingEventListener uses; see
+	 * updateFlightLog for the fields and the Change Stream event key.
+	 * 
+		 * The pipeline sets the whole Flight Log ($concatArrays), which has no
+	 * bound. From featureCompatibilityVersion 5.0, MongoDB logs it in the oplog
+	 * as a delta, the new entry and the changed totals, and Change Streams see
+	 * an update of flightLog.<n>. Before that it logs the whole plane, growing
+	 * with its Flight Log, and Change Streams see a replace, which
+	 * AnalyticsExporter does not export. So below 5.0 we log the landing with
+	 * $push instead (see pushLanding).
+	 * 
+	 * @param planeId - callsign of the plane that landed
+	 * @param landingEvent - location, date and position of the landing
+	 * @param eventTime - cluster time of the Change Stream event, null to apply unconditionally
+	 * @return false on error, true if applied or already applied (see wasDuplicate)
+	 */
+	boolean logLanding(String planeId, Document landingEvent, BsonTimestamp eventTime) {
+		duplicate = false;
+		callSign = planeId;
+		if (!pipelineUpdatesAreDeltas()) {
+			return pushLanding(planeId, landingEvent, eventTime);
+		}
+
+		Bson filter = eq(Constants._ID, planeId);
+		if (eventTime != null) {
+			filter = and(filter, not(gte(Constants.LAST_LANDING_EVENT_TIME, eventTime)));
+		}
+
+		// The previous landing, in a temporary field
+		Document previous = new Document(LAST_LANDING, new Document("$arrayElemAt", Arrays.asList(
+				new Document("$ifNull", Arrays.asList("$" + Constants.FLIGHT_LOG, Collections.emptyList())), -1L)));
+		String lastPosition = "$" + LAST_LANDING + "." + Constants.POSITION;
+		String lastDate = "$" + LAST_LANDING + "." + Constants.LANDING_DATE;
+
+		// Same as calculateTotalDistanceFlown and calculateTotalFlightTime: 0 without a previous landing
+		@SuppressWarnings("unchecked")
+		List<Double> position = (List<Double>) landingEvent.get(Constants.POSITION);
+		Document distance = DistanceUtil.distanceExpression(
+				new Document("$arrayElemAt", Arrays.asList(lastPosition, 0L)),
+				new Document("$arrayElemAt", Arrays.asList(lastPosition, 1L)),
+				position.get(0), position.get(1), Constants.UNIT_MILES);
+		Document seconds = new Document("$trunc", new Document("$divide", Arrays.asList(
+				new Document("$abs", new Document("$subtract",
+						Arrays.asList(landingEvent.getDate(Constants.LANDING_DATE), lastDate))),
+				1000L)));
+		Document totals = new Document(Constants.TOTAL_DISTANCE_FLOWN, new Document("$cond", Arrays.asList(
+				new Document("$isArray", lastPosition),
+				new Document("$add", Arrays.asList(
+						new Document("$ifNull", Arrays.asList("$" + Constants.TOTAL_DISTANCE_FLOWN, 0.0)), distance)),
+				0.0)))
+				.append(Constants.TOTAL_FLIGHT_TIME, new Document("$cond", Arrays.asList(
+						new Document("$eq", Arrays.asList(new Document("$type", lastDate), "date")),
+						new Document("$add", Arrays.asList(
+								new Document("$ifNull", Arrays.asList("$" + Constants.TOTAL_FLIGHT_TIME, 0.0)),
+								seconds)),
+						0.0)));
+
+		// Reads the new total distance, so it is a stage of its own
+		Document logged = new Document(Constants.REQUIRES_MAINTENANCE, new Document("$or", Arrays.asList(
+				new Document("$eq", Arrays.asList("$" + Constants.REQUIRES_MAINTENANCE, true)),
+				new Document("$gt", Arrays.asList("$" + Constants.TOTAL_DISTANCE_FLOWN,
+						Constants.MAINTENANCE_REQUIRED_LIMIT)))))
+				.append(Constants.FLIGHT_LOG, new Document("$concatArrays", Arrays.asList(
+						new Document("$ifNull", Arrays.asList("$" + Constants.FLIGHT_LOG, Collections.emptyList())),
+						new Document("$literal", Arrays.asList(landingEvent)))))
+				.append(Constants.SCHEMA_VERSION, schemaVersion);
+		if (eventTime != null) {
+			logged.append(Constants.LAST_LANDING_EVENT_TIME, new Document("$literal", eventTime));
+		}
+
+		List<Bson> pipeline = Arrays.asList(new Document("$set", previous), new Document("$set", totals),
+				new Document("$set", logged), new Document("$unset", LAST_LANDING));
+
+		try {
+			long start = System.nanoTime();
+			Document after = planesCollectionFor(OperationClass.FLIGHT_LOG).findOneAndUpdate(filter, pipeline,
+					new FindOneAndUpdateOptions().projection(include(Constants.REQUIRES_MAINTENANCE))
+							.returnDocument(ReturnDocument.AFTER));
+			WriteConcernPolicy.recordLatency(OperationClass.FLIGHT_LOG, start);
+			if (after == null) {
+				// Planes come from the Change Stream, so this event was already applied
+				duplicate = true;
+				logger.info(String.format("Landing of %s at %s already applied", planeId, eventTime));
+				return true;
+			}
+			if (Boolean.TRUE.equals(after.getBoolean(Constants.REQUIRES_MAINTENANCE))) {
+				logger.warn(String.format("Plane %s requires maintenance", planeId));
+			}
+			invalidateCachedState();
 			return true;
 		} catch (Exception e) {
 			logger.error(e.getMessage());
@@ -333,6 +489,134 @@ public class PlaneDAL {
 		return false;
 	}
 
+	/**
+	 * logLanding before MongoDB 5.0: reads the totals and the last landing, then
+	 * writes the new totals with a $push of the landing, which the oplog and the
+	 * Change Streams see as an update of flightLog.<n>. The write only applies
+	 * if the Flight Log still has the size we read, so a landing of the same
+	 * plane that got in between makes us read again instead of losing its
+	 * totals. The totals are computed as in the logLanding pipeline.
+	 */
+	private boolean pushLanding(String planeId, Document landingEvent, BsonTimestamp eventTime) {
+		Document flightLog = new Document("$ifNull", Arrays.asList("$" + Constants.FLIGHT_LOG, Collections.emptyList()));
+		@SuppressWarnings("unchecked")
+		List<Double> position = (List<Double>) landingEvent.get(Constants.POSITION);
+		Date landingDate = landingEvent.getDate(Constants.LANDING_DATE);
+
+		try {
+			for (int attempt = 0; attempt < MAX_LANDING_ATTEMPTS; attempt++) {
+				long start = System.nanoTime();
+				// Our own read, stale reads only cost another attempt
+				Document current = planesCollection.withReadConcern(ReadConcern.LOCAL).find(eq(Constants._ID, planeId))
+						.projection(new Document(Constants.TOTAL_DISTANCE_FLOWN, 1L)
+								.append(Constants.TOTAL_FLIGHT_TIME, 1L).append(Constants.REQUIRES_MAINTENANCE, 1L)
+								.append(Constants.LAST_LANDING_EVENT_TIME, 1L)
+								.append(FLIGHT_LOG_SIZE, new Document("$size", flightLog))
+								.append(LAST_LANDING, new Document("$arrayElemAt", Arrays.asList(flightLog, -1L))))
+						.first();
+				BsonTimestamp applied = (current == null) ? null
+						: current.get(Constants.LAST_LANDING_EVENT_TIME, BsonTimestamp.class);
+				if (current == null || (eventTime != null && applied != null && applied.compareTo(eventTime) >= 0)) {
+					// As in the pipeline: planes come from the Change Stream, so this event was already applied
+					duplicate = true;
+					logger.info(String.format("Landing of %s at %s already applied", planeId, eventTime));
+					return true;
+				}
+
+				// 0 without a previous landing
+				Document last = (Document) current.get(LAST_LANDING);
+				double distance = 0.0;
+				double flightTime = 0.0;
+				if (last != null && last.get(Constants.POSITION) instanceof List) {
+					@SuppressWarnings("unchecked")
+					List<Double> from = (List<Double>) last.get(Constants.POSITION);
+					distance = total(current, Constants.TOTAL_DISTANCE_FLOWN) + DistanceUtil.distance(from.get(0),
+							from.get(1), position.get(0), position.get(1), Constants.UNIT_MILES);
+				}
+				if (last != null && last.get(Constants.LANDING_DATE) instanceof Date) {
+					long seconds = Math.abs(landingDate.getTime() - last.getDate(Constants.LANDING_DATE).getTime()) / 1000;
+					flightTime = total(current, Constants.TOTAL_FLIGHT_TIME) + seconds;
+				}
+				boolean requiresMaintenance = Boolean.TRUE.equals(current.get(Constants.REQUIRES_MAINTENANCE))
+						|| distance > Constants.MAINTENANCE_REQUIRED_LIMIT;
+
+				Bson filter = and(eq(Constants._ID, planeId), expr(new Document("$eq",
+						Arrays.asList(new Document("$size", flightLog), current.getInteger(FLIGHT_LOG_SIZE)))));
+				List<Bson> updates = new ArrayList<Bson>(Arrays.asList(push(Constants.FLIGHT_LOG, landingEvent),
+						set(Constants.TOTAL_DISTANCE_FLOWN, distance), set(Constants.TOTAL_FLIGHT_TIME, flightTime),
+						set(Constants.REQUIRES_MAINTENANCE, requiresMaintenance),
+						set(Constants.SCHEMA_VERSION, schemaVersion)));
+				if (eventTime != null) {
+					filter = and(filter, not(gte(Constants.LAST_LANDING_EVENT_TIME, eventTime)));
+					updates.add(set(Constants.LAST_LANDING_EVENT_TIME, eventTime));
+				}
+
+				UpdateResult result = planesCollectionFor(OperationClass.FLIGHT_LOG).updateOne(filter, combine(updates));
+				WriteConcernPolicy.recordLatency(OperationClass.FLIGHT_LOG, start);
+				if (result.getMatchedCount() > 0) {
+					if (requiresMaintenance) {
+						logger.warn(String.format("Plane %s requires maintenance", planeId));
+					}
+					invalidateCachedState();
+					return true;
+				}
+				// Another landing got in between (or this one did), read again
+			}
+			lastError = String.format("Plane %s kept landing elsewhere, gave up after %d attempts", planeId,
+					MAX_LANDING_ATTEMPTS);
+			logger.error(lastError);
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+			lastError = e.getMessage();
+		}
+		return false;
+	}
+
+	private static double total(Document plane, String field) {
+		Object value = plane.get(field);
+		return (value instanceof Number) ? ((Number) value).doubleValue() : 0.0;
+	}
+
+	private boolean pipelineUpdatesAreDeltas() {
+		Boolean deltas = pipelineUpdatesAreDeltas;
+		if (deltas == null) {
+			deltas = featureCompatibilityVersion() >= 5;
+			pipelineUpdatesAreDeltas = deltas;
+			logger.info(deltas ? "Landings are logged with a pipeline update"
+					: "MongoDB before 5.0 logs pipeline updates as whole documents, landings are logged with $push");
+		}
+		return deltas;
+	}
+
+	// For the tests: null finds out again on the next landing
+	static void setPipelineUpdatesAreDeltas(Boolean deltas) {
+		pipelineUpdatesAreDeltas = deltas;
+	}
+
+	/**
+	 * @return the major featureCompatibilityVersion, or the major server version
+	 *         where we may not read it (mongos, no privilege), 0 if neither
+	 */
+	private int featureCompatibilityVersion() {
+		try {
+			Document parameter = mongoClient.getDatabase("admin").runCommand(
+					new Document("getParameter", 1).append("featureCompatibilityVersion", 1));
+			Document fcv = (Document) parameter.get("featureCompatibilityVersion");
+			if (fcv != null) {
+				return Integer.parseInt(fcv.getString("version").split("\\.")[0]);
+			}
+		} catch (Exception e) {
+			logger.info("Could not read the featureCompatibilityVersion: " + e.getMessage());
+		}
+		try {
+			Document buildInfo = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+					.runCommand(new Document("buildInfo", 1));
+			return Integer.parseInt(buildInfo.getString("version").split("\\.")[0]);
+		} catch (Exception e) {
+			logger.warn("Could not read the server version: " + e.getMessage());
+		}
+		return 0;
+	}
 
 	/**
 	 * This method updates the Flight Log. NOTE: Flight Log is unending! An
@@ -352,10 +636,25 @@ public class PlaneDAL {
 	 * 
 	 * Hence, we do not use $inc operator, instead we calculate the values and set them upon update
 	 * 
+	 * The $push to the Flight Log is not idempotent though, so the update is
+	 * keyed by the cluster time of the Change Stream event: the plane remembers
+	 * the last one it applied (lastLandingEventTime), and an event that is not
+	 * newer (E.G. redelivered after the listener resumed) matches nothing.
+	 * Events for one plane arrive in cluster time order, so a high-water mark
+	 * is enough.
+	 * 
+	 * This reads the plane (when it is populated) and writes it back, in two
+	 * round trips, which loses a landing's totals when another landing of the
+	 * same plane gets in between. The listener uses logLanding instead; this
+	 * is kept so LandingBench can compare the two.
+	 * 
 	 * @param landingEvent - most recent landing for the plane
+	 * @param eventTime - cluster time of the Change Stream event, null to apply unconditionally
+	 * @return false on error, true if applied or already applied (see wasDuplicate)
 	 * 
 	 */
-	boolean updateFlightLog(Document landingEvent) {
+	boolean updateFlightLog(Document landingEvent, BsonTimestamp eventTime) {
+		duplicate = false;
 
 		if (isPopulated() == false) {
 			return false;
@@ -363,17 +662,23 @@ public class PlaneDAL {
 
 		try {
 			//Idempotent distance - do not use $inc
-			Double distanceFlown = calculateTotalDistanceFlown(totalDistanceFlown, landingEvent);
+			Double distanceFlown = calculateTotalDistanceFlown(plane.getTotalDistanceFlown(), landingEvent);
 
 			// findOneAndUpdate
 			Bson filter = eq(Constants._ID, callSign);
+			if (eventTime != null) {
+				// Not applied yet, including planes that never recorded an event
+				filter = and(filter, not(gte(Constants.LAST_LANDING_EVENT_TIME, eventTime)));
+			}
 			Bson updates;
 
-			Bson updateSchemaVersion = set(Constants.SCHEMA_VERSION, schemaVersion);
+			Bson updateSchemaVersion = (eventTime == null) ? set(Constants.SCHEMA_VERSION, schemaVersion)
+					: combine(set(Constants.SCHEMA_VERSION, schemaVersion),
+							set(Constants.LAST_LANDING_EVENT_TIME, eventTime));
 			Bson updateLocationEvent = push(Constants.FLIGHT_LOG, landingEvent);
 			//Idempotent total flight time...do not use $inc
 			Bson updateTotalFlightTime = set(Constants.TOTAL_FLIGHT_TIME,
-					calculateTotalFlightTime(totalFlightTime, landingEvent)); 
+					calculateTotalFlightTime(plane.getTotalFlightTime(), landingEvent)); 
 			Bson updateTotalDistanceFlown = set(Constants.TOTAL_DISTANCE_FLOWN, distanceFlown);
 			Bson updatePlaneRequiresMaintenance = set(Constants.REQUIRES_MAINTENANCE, true);
 
@@ -393,7 +698,16 @@ public class PlaneDAL {
 						updateTotalDistanceFlown);
 			}
 			//Relying on retryable writes here.
-			planesCollection.findOneAndUpdate(filter, updates);
+			long start = System.nanoTime();
+			Document before = planesCollectionFor(OperationClass.FLIGHT_LOG).findOneAndUpdate(filter, updates);
+			WriteConcernPolicy.recordLatency(OperationClass.FLIGHT_LOG, start);
+			if (before == null) {
+				// The plane exists (we are populated), so this event was already applied
+				duplicate = true;
+				logger.info(String.format("Landing of %s at %s already applied", callSign, eventTime));
+				return true;
+			}
+			invalidateCachedState();
 			return true;
 		} catch (Exception e) {
 			logger.error(e.getMessage());
@@ -402,6 +716,18 @@ public class PlaneDAL {
 		return false;
 	}
 
+	// Our own writes should be visible to our next read, without waiting for the Change Stream
+	private void invalidateCachedState() {
+		PlaneStateCache cache = PlaneStateCache.installed();
+		if (cache != null) {
+			cache.invalidate(callSign);
+		}
+	}
+
+	private MongoCollection<Document> planesCollectionFor(OperationClass operationClass) {
+		return planesCollection.withWriteConcern(WriteConcernPolicy.forClass(operationClass));
+	}
+
 	private ArrayList<Double> createDoubleArrayFromString(String location) {
 
 		String values[] = location.split(",");
@@ -413,7 +739,7 @@ public class PlaneDAL {
 	}
 
 	private boolean planeRequiresMaintenance(Double distanceFlown) {
-		if ((requiresMaintenance!=null) && (requiresMaintenance)) return true;
+		if (plane.requiresMaintenance()) return true;
 		if (distanceFlown != null)
 			if (distanceFlown > Constants.MAINTENANCE_REQUIRED_LIMIT)
 				// Probably shouldn't fly these planes anymore and throw a
@@ -425,19 +751,17 @@ public class PlaneDAL {
 
 	private Double calculateTotalDistanceFlown(Double distanceFlown, Document landingEvent) {
 
-		if ((lastLandingEvent != null) && (lastLandingEvent.get(Constants.POSITION) != null)) {
+		if (plane.hasLastLandingPosition()) {
 			@SuppressWarnings("unchecked")
-			ArrayList<Double> lastLatLong = (ArrayList<Double>) lastLandingEvent.get(Constants.POSITION);
-			@SuppressWarnings("unchecked")
-			ArrayList<Double> latLong = (ArrayList<Double>) landingEvent.get(Constants.POSITION);
+			List<Double> latLong = (List<Double>) landingEvent.get(Constants.POSITION);
 
 			if (distanceFlown == null) {
-				return DistanceUtil.distance(lastLatLong.get(0), lastLatLong.get(1), latLong.get(0), latLong.get(1),
-						Constants.UNIT_MILES);
+				return DistanceUtil.distance(plane.getLastLandingLongitude(), plane.getLastLandingLatitude(),
+						latLong.get(0), latLong.get(1), Constants.UNIT_MILES);
 
 			} else {
-				return distanceFlown + DistanceUtil.distance(lastLatLong.get(0), lastLatLong.get(1), latLong.get(0),
-						latLong.get(1), Constants.UNIT_MILES);
+				return distanceFlown + DistanceUtil.distance(plane.getLastLandingLongitude(),
+						plane.getLastLandingLatitude(), latLong.get(0), latLong.get(1), Constants.UNIT_MILES);
 
 			}
 
@@ -453,8 +777,8 @@ public class PlaneDAL {
 
 	private Double calculateTotalFlightTime(Double flightTime, Document landingEvent) {
 
-		if ((lastLandingEvent != null) && (lastLandingEvent.get(Constants.LANDING_DATE) != null)) {
-			Date lastLandedDate = lastLandingEvent.getDate(Constants.LANDING_DATE);
+		if (plane.getLastLandingDate() != null) {
+			Date lastLandedDate = plane.getLastLandingDate();
 			Date landedDate = landingEvent.getDate(Constants.LANDING_DATE);
 
 
@@ -492,29 +816,35 @@ public class PlaneDAL {
 		return city.isPopulated();
 	}
 
+	// Whether the last updateFlightLog found its event already applied
+	boolean wasDuplicate() {
+		return duplicate;
+	}
+
 	// Memeber Acessors
 	String getCallSign() {
 		return callSign;
 	}
 
-	ArrayList<Double> getCurrentLocation() {
-		return currentLocation;
+	// [longitude, latitude], boxed only here, for the API
+	List<Double> getCurrentLocation() {
+		return plane.hasLocation() ? Arrays.asList(plane.getLongitude(), plane.getLatitude()) : null;
 	}
 
-	Object getHeading() {
-		return heading;
+	Double getHeading() {
+		return Double.isNaN(plane.getHeading()) ? null : plane.getHeading();
 	}
 
-	ArrayList<String> getRoute() {
-		return route;
+	List<String> getRoute() {
+		return plane.getRoute();
 	}
 
 	String getLanded() {
-		return landed;
+		return plane.getLanded();
 	}
 
 	String getStatus() {
-		return status;
+		return plane.getStatus();
 	}
 
 	boolean isPopulated() {
@@ -1,23 +1,33 @@
 package org.example.mongodb;
 
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.set;
 import static com.mongodb.client.model.changestream.FullDocument.UPDATE_LOOKUP;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mongodb.Block;
 import com.mongodb.MongoClient;
 import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
 
 /******
@@ -39,19 +49,51 @@ import com.mongodb.client.model.changestream.ChangeStreamDocument;
  * 
  * Subscribe to the Change Stream ONLY if the updates include "landed" field of
  * the plane else we will be bombarded with updates we are not interested in.
+ * 
+ * When the Change Stream fails, or a landing cannot be logged, we resume
+ * after the last landing we did log, so no landing is lost, but the event
+ * being processed may be delivered again. Each landing is keyed by the cluster time of its event, and
+ * PlaneDAL.logLanding skips events a plane has already applied. The city is
+ * the one in the event (its updated fields), not the one of the looked up
+ * plane, which may have landed again since, and the landing date is the
+ * cluster time, so a redelivered event is identical.
+ * 
+ * With a partition filter, the listener only sees the landings of its share
+ * of the planes (see LandingListenerCoordinator), and runs until stopped.
  ******/
 public class PlaneLandingEventListener implements Runnable {
 
 	private static final String OPERATION_TYPE = "operationType";
 	private static final String UPDATE_OPERATION = "update";
 	private static final String UPDATE_DESCRIPTION_UPDATED_FIELDS_LANDED = "updateDescription.updatedFields.landed";
+	// Lease of the unpartitioned listener, in listener_leases, only ever holds its resume token
+	private static final String UNPARTITIONED = "all";
+	private static final String RESUME_TOKEN = "resumeToken";
 	Logger logger;
 	MongoClient mongoClient;
 	private MongoCollection<Document> planesCollection;
+	private final Bson partitionFilter;
+	private volatile BsonDocument resumeToken;
+	private volatile boolean running = true;
+	private boolean resumeFailed;
+
+	private final CountDownLatch listening = new CountDownLatch(1);
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
 
 	PlaneLandingEventListener(MongoClient mongoClient) {
+		this(mongoClient, null, null);
+	}
+
+	/**
+	 * @param partitionFilter - only landings matching it, on the Change Stream event; null for all
+	 * @param resumeToken - where a previous listener of this partition stopped; null for now
+	 */
+	PlaneLandingEventListener(MongoClient mongoClient, Bson partitionFilter, BsonDocument resumeToken) {
 		logger = LoggerFactory.getLogger(PlaneLandingEventListener.class);
 		this.mongoClient = mongoClient;
+		this.partitionFilter = partitionFilter;
+		this.resumeToken = resumeToken;
 	}
 
 	boolean listenForPlaneLandings() {
@@ -64,46 +106,158 @@ public class PlaneLandingEventListener implements Runnable {
 
 			// Change Stream Updates where updatedFields contains landed only, otherwise we
 			// get bombarded with update events
+			Bson landings = Filters.and(Filters.exists(UPDATE_DESCRIPTION_UPDATED_FIELDS_LANDED),
+					Filters.in(OPERATION_TYPE, asList(UPDATE_OPERATION)));
 			pipeline = singletonList(
-					Aggregates.match(Filters.and(Filters.exists(UPDATE_DESCRIPTION_UPDATED_FIELDS_LANDED),
-							Filters.in(OPERATION_TYPE, asList(UPDATE_OPERATION)))));
+					Aggregates.match(partitionFilter == null ? landings : Filters.and(landings, partitionFilter)));
 
-			ChangeStreamIterable<Document> changes = planesCollection.watch(pipeline).fullDocument(UPDATE_LOOKUP);
-
-			changes.forEach(new Block<ChangeStreamDocument<Document>>() {
-				@Override
-				public void apply(ChangeStreamDocument<Document> t) {
-
-					CityDAL city = new CityDAL(mongoClient, t.getFullDocument().getString(Constants.LANDED));
-
-					Document landedEvent = new Document()
-							.append(Constants.LANDING_LOCATION, t.getFullDocument().getString(Constants.LANDED))
-							.append(Constants.LANDING_DATE, new Date()).append(Constants.POSITION, city.getPosition());
-					PlaneDAL plane;
-
-					plane = new PlaneDAL(mongoClient, t.getFullDocument().getString(Constants._ID));
-					plane.updateFlightLog(landedEvent);
+			ChangeStreamIterable<Document> changes = planesCollection.watch(pipeline).fullDocument(UPDATE_LOOKUP)
+					.maxAwaitTime(1, SECONDS);
+			if (resumeToken != null) {
+				changes = changes.resumeAfter(resumeToken);
+			}
 
+			// tryNext returns within maxAwaitTime, so we notice stop()
+			try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = changes.cursor()) {
+				// Resumed, whatever goes wrong from here is not the token's fault
+				resumeFailed = false;
+				listening.countDown();
+				while (running) {
+					ChangeStreamDocument<Document> t = cursor.tryNext();
+					if (t == null) {
+						continue;
+					}
+					// A plane deleted since it landed has nothing left to log
+					String callSign = t.getDocumentKey().getString(Constants._ID).getValue();
+					BsonValue landed = t.getUpdateDescription().getUpdatedFields().get(Constants.LANDED);
+					if (t.getFullDocument() != null && landed.isString()
+							&& !applyLanding(callSign, landed.asString().getValue(), t.getClusterTime())) {
+						// Not logged, so do not move past it: resume from the last landing that was
+						logger.warn(String.format("Could not log the landing of %s, trying again", callSign));
+						return false;
+					}
+					resumeToken = t.getResumeToken();
 				}
-			});
+			}
 		} catch (Exception e) {
+			if (!running) {
+				return true; // Closed under us on shutdown
+			}
 			logger.error(e.getMessage());
+			if (resumeFailed) {
+				// The token is no longer in the oplog (or never was), start from now on
+				logger.warn("Could not resume the landings Change Stream, landings may have been missed");
+				resumeToken = null;
+			}
+			resumeFailed = (resumeToken != null);
+			return false; // Resume after a pause
 		}
 
 		return true; //Run forever
 
 	}
 
+	/**
+	 * Logs one landing, at most once per Change Stream event
+	 * 
+	 * @param callSign - the plane that landed
+	 * @param landed - the city it landed in
+	 * @param eventTime - cluster time of the Change Stream event
+	 * @return false if the landing could not be logged
+	 */
+	boolean applyLanding(String callSign, String landed, BsonTimestamp eventTime) {
+		CityDAL city = new CityDAL(mongoClient, landed);
+		if (!city.isPopulated()) {
+			logger.error(city.getLastError());
+			return false;
+		}
+
+		// Seconds only, like the totals; the same for every delivery of the event
+		Date landingDate = (eventTime == null) ? new Date() : new Date(eventTime.getTime() * 1000L);
+		Document landedEvent = new Document()
+				.append(Constants.LANDING_LOCATION, landed)
+				.append(Constants.LANDING_DATE, landingDate).append(Constants.POSITION, city.getPosition());
+		PlaneDAL plane;
+
+		// One write, the totals are computed on the server
+		plane = new PlaneDAL(mongoClient);
+		if (plane.logLanding(callSign, landedEvent, eventTime) == false) {
+			return false;
+		}
+		if (plane.wasDuplicate()) {
+			duplicates.incrementAndGet();
+		} else {
+			applied.incrementAndGet();
+		}
+		return true;
+	}
+
+	// Where to resume after the last landing we processed, null before the first one
+	BsonDocument getResumeToken() {
+		return resumeToken;
+	}
+
+	/**
+	 * Waits for the Change Stream to be open: a landing from then on is logged,
+	 * even one made before the first event comes through
+	 * 
+	 * @return false if it did not open within the timeout
+	 */
+	boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+		return listening.await(timeout, unit);
+	}
+
+	// Stops after the landing being processed, within a second
+	void stop() {
+		running = false;
+	}
+
+	/**
+	 * The unpartitioned listener, resuming where the last one stopped (see
+	 * saveCheckpoint), so no landing is missed across a restart
+	 */
+	static PlaneLandingEventListener fromCheckpoint(MongoClient mongoClient) {
+		Document checkpoint = leasesCollection(mongoClient).find(eq(Constants._ID, UNPARTITIONED)).first();
+		BsonDocument resumeToken = null;
+		if (checkpoint != null && checkpoint.get(RESUME_TOKEN) instanceof Document) {
+			resumeToken = checkpoint.get(RESUME_TOKEN, Document.class).toBsonDocument(BsonDocument.class,
+					MongoClient.getDefaultCodecRegistry());
+		}
+		return new PlaneLandingEventListener(mongoClient, null, resumeToken);
+	}
+
+	// Call once stopped. Partitioned listeners are checkpointed with their lease instead
+	void saveCheckpoint() {
+		if (resumeToken != null) {
+			leasesCollection(mongoClient).updateOne(eq(Constants._ID, UNPARTITIONED), set(RESUME_TOKEN, resumeToken),
+					new UpdateOptions().upsert(true));
+		}
+	}
+
+	private static MongoCollection<Document> leasesCollection(MongoClient mongoClient) {
+		return mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS).getCollection(Constants.COLLECTION_LISTENER_LEASES);
+	}
+
+	long getApplied() {
+		return applied.get();
+	}
+
+	long getDuplicates() {
+		return duplicates.get();
+	}
+
 	@Override
 	public void run() {
 		logger.info("Thread {} has started.");
 
-		while (true) {
+		while (running) {
 			if (listenForPlaneLandings() == false) {
 				try {
 					Thread.sleep(5000);
 				} catch (InterruptedException e) {
-					logger.error(e.getMessage());
+					// Shutting down
+					Thread.currentThread().interrupt();
+					return;
 				}
 			}
 		}
@@ -0,0 +1,212 @@
+package org.example.mongodb;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.bson.Document;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+/******
+ * Server-Sent Events feed of plane positions, for GET /planes/stream
+ *
+ * Instead of every client polling GET /planes (and us re-reading and
+ * re-serialising the whole fleet for each of them), clients load the fleet once
+ * and then keep one connection open, on which they receive only the fields of
+ * a plane that changed (currentLocation, heading, landed, route).
+ *
+ * All clients are fed from the one shared planes Change Stream. Each client has
+ * its own pending map keyed by callsign: if a client has not yet been sent an
+ * update when the next one for the same plane arrives, the two are merged, so a
+ * slow client only ever gets the latest state of each plane and the memory it
+ * can hold on to is bounded by the size of the fleet. A client that falls
+ * behind by more than maxPendingPerClient planes is disconnected.
+ ******/
+public class PlanePositionFeed implements CollectionChangeWatcher.ChangeSubscriber {
+
+	private static final String[] STREAMED_FIELDS = { Constants.CURRENT_LOCATION, Constants.HEADING,
+			Constants.LANDED, Constants.ROUTE };
+	private static final long KEEPALIVE_MILLIS = 15000;
+
+	static class Client {
+		private final LinkedHashMap<String, Document> pending = new LinkedHashMap<String, Document>();
+		private boolean resetPending;
+		private volatile boolean closed;
+		private long sent;
+		private long coalesced;
+	}
+
+	Logger logger;
+	private final int maxClients;
+	private final int maxPendingPerClient;
+	private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+	PlanePositionFeed(int maxClients, int maxPendingPerClient) {
+		logger = LoggerFactory.getLogger(PlanePositionFeed.class);
+		this.maxClients = maxClients;
+		this.maxPendingPerClient = maxPendingPerClient;
+	}
+
+	// null if we already have as many clients as we are willing to serve
+	synchronized Client connect() {
+		if (clients.size() >= maxClients) {
+			return null;
+		}
+		Client client = new Client();
+		clients.add(client);
+		return client;
+	}
+
+	synchronized void disconnect(Client client) {
+		client.closed = true;
+		clients.remove(client);
+	}
+
+	/**
+	 * Writes events to the client until it disconnects, falls too far behind, or
+	 * the thread is interrupted. Runs on the request thread.
+	 */
+	void stream(Client client, Writer writer, JsonWriterSettings jsonSettings) {
+		try {
+			writer.write("retry: 5000\n\n");
+			writer.flush();
+
+			while (!client.closed) {
+				List<Document> batch;
+				boolean reset;
+
+				synchronized (client) {
+					if (client.pending.isEmpty() && !client.resetPending && !client.closed) {
+						client.wait(KEEPALIVE_MILLIS);
+					}
+					batch = new ArrayList<Document>(client.pending.values());
+					client.pending.clear();
+					client.sent += batch.size();
+					reset = client.resetPending;
+					client.resetPending = false;
+				}
+
+				if (reset) {
+					// Tell the client to reload GET /planes, we may have missed changes
+					writer.write("event: reset\ndata: {}\n\n");
+				}
+				for (Document delta : batch) {
+					writer.write("event: plane\ndata: ");
+					writer.write(delta.toJson(jsonSettings));
+					writer.write("\n\n");
+				}
+				if (batch.isEmpty() && !reset) {
+					// Comment line, keeps proxies from closing the connection and detects
+					// clients that went away
+					writer.write(": keepalive\n\n");
+				}
+				writer.flush();
+			}
+		} catch (IOException e) {
+			logger.info("SSE client went away: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			disconnect(client);
+		}
+	}
+
+	@Override
+	public void onChange(ChangeStreamDocument<Document> change) {
+		if (clients.isEmpty() || change.getDocumentKey() == null) {
+			return;
+		}
+		Document delta = createDelta(change);
+		if (delta == null) {
+			return;
+		}
+		String callSign = delta.getString(Constants.CALLSIGN);
+
+		for (Client client : clients) {
+			synchronized (client) {
+				Document pending = client.pending.get(callSign);
+				if (pending != null) {
+					pending.putAll(delta);
+					client.coalesced++;
+				} else if (client.pending.size() >= maxPendingPerClient) {
+					logger.warn("SSE client is too slow, disconnecting it");
+					client.closed = true;
+				} else {
+					client.pending.put(callSign, new Document(delta));
+				}
+				client.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void onReset() {
+		for (Client client : clients) {
+			synchronized (client) {
+				client.pending.clear();
+				client.resetPending = true;
+				client.notifyAll();
+			}
+		}
+	}
+
+	// Only the streamed fields that were touched by this change, null if none were
+	private Document createDelta(ChangeStreamDocument<Document> change) {
+		String callSign = change.getDocumentKey().getString(Constants._ID).getValue();
+		Document delta = new Document(Constants.CALLSIGN, callSign);
+
+		if (change.getOperationType() == OperationType.DELETE) {
+			return delta.append("deleted", true);
+		}
+
+		Document fullDocument = change.getFullDocument();
+		if (fullDocument == null) {
+			// The plane was deleted before we could look it up, the delete event follows
+			return null;
+		}
+
+		for (String field : STREAMED_FIELDS) {
+			if (change.getOperationType() != OperationType.UPDATE || wasUpdated(change, field)) {
+				delta.append(field, fullDocument.get(field));
+			}
+		}
+		return delta.size() > 1 ? delta : null;
+	}
+
+	// route.3 counts as an update of route, E.G. after $addToSet
+	private boolean wasUpdated(ChangeStreamDocument<Document> change, String field) {
+		if (change.getUpdateDescription() == null) {
+			return false;
+		}
+		if (change.getUpdateDescription().getUpdatedFields() != null) {
+			for (String updated : change.getUpdateDescription().getUpdatedFields().keySet()) {
+				if (updated.equals(field) || updated.startsWith(field + ".")) {
+					return true;
+				}
+			}
+		}
+		List<String> removed = change.getUpdateDescription().getRemovedFields();
+		return (removed != null) && removed.contains(field);
+	}
+
+	synchronized Document report() {
+		long sent = 0;
+		long coalesced = 0;
+		for (Client client : clients) {
+			synchronized (client) {
+				sent += client.sent;
+				coalesced += client.coalesced;
+			}
+		}
+		return new Document("clients", clients.size()).append("maxClients", maxClients)
+				.append("sent", sent).append("coalesced", coalesced);
+	}
+}
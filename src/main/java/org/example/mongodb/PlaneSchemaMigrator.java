@@ -0,0 +1,228 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.not;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.max;
+import static com.mongodb.client.model.Updates.pushEach;
+import static com.mongodb.client.model.Updates.set;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+
+/******
+ * Upgrades plane documents to PlaneDAL.LATEST_SCHEMA_VERSION in the background
+ *
+ * Planes created by scripts have no schemaVersion (version 0), and only move
+ * to version 1 when they land. Until every plane is on the latest version,
+ * the read path has to cope with all of them. This walks the planes in _id
+ * order, a batch at a time, and applies the upgrade step of each older
+ * version, so planes that never land get upgraded too.
+ *
+ * Every step only fills in what is missing ($max on a missing field sets it,
+ * $push of nothing creates an empty array), so it is safe to run while the
+ * Change Stream listener writes landings, and to run again after a crash.
+ * A future schema (E.G. a bucketed Flight Log) adds its step to STEPS.
+ *
+ * Planes created by scripts have no partitionKey either, so the landing
+ * listeners all fall back on partition 0 for them. When the listeners are not
+ * partitioned, the migrator gives them one, as LoadGenerator and LandingBench
+ * do when they create planes. It never does while they are: a plane moving
+ * to another partition could have a landing logged by its new partition before
+ * an older one still queued in partition 0, which would then be skipped.
+ *
+ * Each batch is one updateMany per version, or one bulk write of partition
+ * keys. When a batch takes longer than the latency budget, the batch size is
+ * halved and we pause for as long as the batch took; otherwise the batch size
+ * grows again, up to maxBatchSize.
+ ******/
+public class PlaneSchemaMigrator implements Runnable {
+
+	private static final int MIN_BATCH_SIZE = 10;
+
+	// STEPS.get(n) upgrades a plane from version n to version n+1
+	private static final List<Bson> STEPS = Collections.unmodifiableList(Arrays.asList(
+			// 0 -> 1: the Computed pattern fields and the Flight Log (Task 3)
+			combine(max(Constants.TOTAL_FLIGHT_TIME, 0L), max(Constants.TOTAL_DISTANCE_FLOWN, 0.0),
+					max(Constants.REQUIRES_MAINTENANCE, false),
+					pushEach(Constants.FLIGHT_LOG, Collections.<Document>emptyList()),
+					set(Constants.SCHEMA_VERSION, 1))));
+
+	Logger logger;
+	private MongoCollection<Document> planesCollection;
+	private final long latencyBudgetMillis;
+	private final int maxBatchSize;
+	private final boolean assignPartitionKeys;
+	private volatile int batchSize;
+
+	private final AtomicLong migrated = new AtomicLong();
+	private final AtomicLong keyed = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private volatile long lastBatchMillis;
+	private volatile Date lastRun;
+
+	PlaneSchemaMigrator(MongoClient mongoClient, long latencyBudgetMillis, int maxBatchSize,
+			boolean assignPartitionKeys) {
+		logger = LoggerFactory.getLogger(PlaneSchemaMigrator.class);
+		planesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_PLANES).withWriteConcern(WriteConcern.MAJORITY);
+		this.latencyBudgetMillis = latencyBudgetMillis;
+		this.maxBatchSize = Math.max(MIN_BATCH_SIZE, maxBatchSize);
+		this.assignPartitionKeys = assignPartitionKeys;
+		this.batchSize = MIN_BATCH_SIZE;
+	}
+
+	void start(int intervalMinutes) {
+		ScheduledExecutorService migrateexec = Executors.newSingleThreadScheduledExecutor();
+		migrateexec.scheduleWithFixedDelay(this, 0, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	// Older than the latest version, including no schemaVersion at all
+	private static Bson outdated() {
+		return not(gte(Constants.SCHEMA_VERSION, PlaneDAL.LATEST_SCHEMA_VERSION));
+	}
+
+	private static Bson atVersion(int version) {
+		if (version == 0) {
+			return not(gte(Constants.SCHEMA_VERSION, 1));
+		}
+		return eq(Constants.SCHEMA_VERSION, version);
+	}
+
+	@Override
+	public void run() {
+		try {
+			long upgraded = walk(outdated(), this::upgrade);
+			if (upgraded > 0) {
+				logger.info(String.format("Upgraded %d planes to schema version %d", upgraded,
+						PlaneDAL.LATEST_SCHEMA_VERSION));
+			}
+			if (assignPartitionKeys) {
+				long keyed = walk(exists(Constants.PARTITION_KEY, false), this::assignPartitionKeys);
+				if (keyed > 0) {
+					logger.info(String.format("Gave %d planes a partitionKey", keyed));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			// Try again next time
+			logger.error("Could not migrate planes: " + e.getMessage());
+		}
+		lastRun = new Date();
+	}
+
+	/**
+	 * Applies a batch at a time to the planes matching the filter, in _id order
+	 * 
+	 * @return the sum of what the batches returned
+	 */
+	private long walk(Bson filter, ToLongFunction<List<Object>> batch) throws InterruptedException {
+		long total = 0;
+		Object lastId = null;
+		while (true) {
+			List<Object> ids = nextBatch(filter, lastId);
+			if (ids.isEmpty()) {
+				return total;
+			}
+			lastId = ids.get(ids.size() - 1);
+
+			long start = System.currentTimeMillis();
+			total += batch.applyAsLong(ids);
+			long elapsed = System.currentTimeMillis() - start;
+			lastBatchMillis = elapsed;
+
+			if (elapsed > latencyBudgetMillis) {
+				// Over budget: back off, and give the operational load the same time we took
+				throttled.incrementAndGet();
+				batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+				Thread.sleep(elapsed);
+			} else {
+				batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 4));
+			}
+		}
+	}
+
+	private List<Object> nextBatch(Bson filter, Object lastId) {
+		Bson after = (lastId == null) ? filter : and(filter, gt(Constants._ID, lastId));
+		List<Object> ids = new ArrayList<Object>();
+		for (Document plane : planesCollection.find(after).projection(include(Constants._ID))
+				.sort(ascending(Constants._ID)).limit(batchSize)) {
+			ids.add(plane.get(Constants._ID));
+		}
+		return ids;
+	}
+
+	/**
+	 * @return how many planes reached the latest version
+	 */
+	private long upgrade(List<Object> ids) {
+		long modified = 0;
+		for (int version = 0; version < PlaneDAL.LATEST_SCHEMA_VERSION; version++) {
+			UpdateResult result = planesCollection.updateMany(and(in(Constants._ID, ids), atVersion(version)),
+					STEPS.get(version));
+			if (version == PlaneDAL.LATEST_SCHEMA_VERSION - 1) {
+				modified = result.getModifiedCount();
+			}
+		}
+		migrated.addAndGet(modified);
+		return modified;
+	}
+
+	/**
+	 * The hash of the callsign is computed here, so it is one update per plane,
+	 * all in one bulk write. A plane keyed meanwhile is left as it is.
+	 * 
+	 * @return how many planes got a partitionKey
+	 */
+	private long assignPartitionKeys(List<Object> ids) {
+		List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
+		for (Object id : ids) {
+			updates.add(new UpdateOneModel<Document>(and(eq(Constants._ID, id), exists(Constants.PARTITION_KEY, false)),
+					set(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(id.toString()))));
+		}
+		long modified = planesCollection.bulkWrite(updates).getModifiedCount();
+		keyed.addAndGet(modified);
+		return modified;
+	}
+
+	Document report() {
+		return new Document("latestSchemaVersion", PlaneDAL.LATEST_SCHEMA_VERSION)
+				.append("migrated", migrated.get())
+				.append("remaining", planesCollection.countDocuments(outdated()))
+				.append("partitionKeysAssigned", keyed.get())
+				.append("withoutPartitionKey", planesCollection.countDocuments(exists(Constants.PARTITION_KEY, false)))
+				.append("batchSize", batchSize)
+				.append("lastBatchMillis", lastBatchMillis)
+				.append("latencyBudgetMillis", latencyBudgetMillis)
+				.append("throttled", throttled.get())
+				.append("lastRun", lastRun);
+	}
+}
@@ -0,0 +1,185 @@
+package org.example.mongodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bson.Document;
+import org.example.mongodb.model.Plane;
+import org.example.mongodb.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/******
+ * Bounded LRU cache of plane state, sitting in front of the PlaneDAL
+ * constructor.
+ *
+ * The UI polls GET /planes/<id> for every plane it shows, and every poll used
+ * to run the $arrayElemAt aggregation on the planes collection. Here we keep
+ * the result of that aggregation, keyed by callsign, and drop it as soon as the
+ * planes Change Stream tells us the plane has changed (or our own PlaneDAL has
+ * written to it).
+ *
+ * A load that races with an invalidation must not put the old state back into
+ * the cache, so loads take a ticket first (beginLoad) and the result is only
+ * cached if the plane has not been invalidated since the ticket was issued.
+ *
+ * As a safety net, entries older than maxAgeMillis are never served, so even
+ * if the Change Stream is down we are never more than that out of date.
+ ******/
+public class PlaneStateCache implements CollectionChangeWatcher.ChangeSubscriber {
+
+	private static volatile PlaneStateCache installed;
+
+	private static class Entry {
+		final Plane state;
+		final long loadedAt;
+
+		Entry(Plane state, long loadedAt) {
+			this.state = state;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	Logger logger;
+	private final int maxEntries;
+	private final long maxAgeMillis;
+
+	private final LinkedHashMap<String, Entry> entries;
+	// Sequence number of the last invalidation of each plane, bounded as well
+	private final LinkedHashMap<String, Long> invalidations;
+	// Anything loaded before this sequence may have lost its invalidation record
+	private long invalidationFloor;
+	private long sequence;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidationCount;
+	private long rejectedLoads;
+	private final LatencyHistogram servedAgeMillis = new LatencyHistogram();
+
+	PlaneStateCache(final int maxEntries, long maxAgeMillis) {
+		logger = LoggerFactory.getLogger(PlaneStateCache.class);
+		this.maxEntries = maxEntries;
+		this.maxAgeMillis = maxAgeMillis;
+
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+		invalidations = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				if (size() > maxEntries) {
+					invalidationFloor = Math.max(invalidationFloor, eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Makes the cache visible to PlaneDAL. Only install it once the planes Change
+	 * Stream is being watched, otherwise nothing would ever invalidate it.
+	 */
+	static void install(PlaneStateCache cache) {
+		installed = cache;
+	}
+
+	// null, if no cache has been installed
+	static PlaneStateCache installed() {
+		return installed;
+	}
+
+	synchronized Plane get(String planeId) {
+		Entry entry = entries.get(planeId);
+		long now = System.currentTimeMillis();
+
+		if (entry == null || now - entry.loadedAt > maxAgeMillis) {
+			misses++;
+			return null;
+		}
+		hits++;
+		servedAgeMillis.record(now - entry.loadedAt);
+		return entry.state;
+	}
+
+	// Take a ticket before reading the plane from the database
+	synchronized long beginLoad() {
+		return sequence;
+	}
+
+	synchronized void put(String planeId, Plane state, long ticket) {
+		Long invalidatedAt = invalidations.get(planeId);
+		long lastInvalidation = invalidatedAt == null ? invalidationFloor : invalidatedAt;
+
+		if (lastInvalidation > ticket) {
+			// Changed while we were reading it, what we have may already be stale
+			rejectedLoads++;
+			return;
+		}
+		entries.put(planeId, new Entry(state, System.currentTimeMillis()));
+	}
+
+	synchronized void invalidate(String planeId) {
+		sequence++;
+		invalidations.put(planeId, sequence);
+		invalidationCount++;
+		entries.remove(planeId);
+	}
+
+	synchronized void invalidateAll() {
+		sequence++;
+		invalidationFloor = sequence;
+		invalidations.clear();
+		entries.clear();
+	}
+
+	@Override
+	public void onChange(ChangeStreamDocument<Document> change) {
+		if (change.getDocumentKey() == null) {
+			// E.G. drop or rename of the collection
+			invalidateAll();
+			return;
+		}
+		invalidate(change.getDocumentKey().getString(Constants._ID).getValue());
+	}
+
+	@Override
+	public void onReset() {
+		logger.warn("Plane Change Stream was reset, clearing the plane state cache");
+		invalidateAll();
+	}
+
+	synchronized Document report() {
+		long lookups = hits + misses;
+		return new Document()
+				.append("size", entries.size())
+				.append("maxEntries", maxEntries)
+				.append("maxAgeMillis", maxAgeMillis)
+				.append("hits", hits)
+				.append("misses", misses)
+				.append("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups)
+				.append("evictions", evictions)
+				.append("invalidations", invalidationCount)
+				.append("rejectedLoads", rejectedLoads)
+				.append("servedAgeMillis", new Document()
+						.append("mean", servedAgeMillis.getMean())
+						.append("p50", servedAgeMillis.getValueAtPercentile(50))
+						.append("p99", servedAgeMillis.getValueAtPercentile(99))
+						.append("max", servedAgeMillis.getMax()));
+	}
+}
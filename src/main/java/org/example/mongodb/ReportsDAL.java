@@ -0,0 +1,176 @@
+package org.example.mongodb;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * Reporting queries for dashboards, for GET /reports/*
+ *
+ * Each report is ONE aggregation with a $facet stage, so the collection is
+ * scanned once no matter how many figures the report holds. Reports run on a
+ * secondary when there is one (they are allowed to be a few seconds behind),
+ * with allowDiskUse so large $group stages do not fail, and with maxTimeMS so a
+ * runaway report cannot hog the cluster.
+ *
+ * Dashboards tend to be reloaded a lot, so results are cached for ttlSeconds
+ * (-Dlogistics.reports.ttlSeconds). The cache is shared by every ReportsDAL.
+ * Each report runs once at a time; concurrent requests for it wait for its
+ * result instead of running the same pipeline again. A cached report, or the
+ * other report, never waits for a running one.
+ ******/
+public class ReportsDAL {
+
+	private static final int TOP_N = 20;
+	private static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("logistics.reports.ttlSeconds", 60));
+	private static final long MAX_TIME_MILLIS = Long.getLong("logistics.reports.maxTimeMs", 10000);
+
+	private static class CachedReport {
+		final Document report;
+		final long expiresAt;
+
+		CachedReport(Document report, long expiresAt) {
+			this.report = report;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final Map<String, CachedReport> cache = new ConcurrentHashMap<String, CachedReport>();
+	// Held while a report runs, one per report
+	private static final Map<String, Object> running = new ConcurrentHashMap<String, Object>();
+
+	Logger logger;
+	private MongoClient mongoClient;
+	private String lastError;
+
+	public ReportsDAL(MongoClient mongoClient) {
+		logger = LoggerFactory.getLogger(ReportsDAL.class);
+		this.mongoClient = mongoClient;
+		lastError = "";
+	}
+
+	/**
+	 * Delivery time per route, busiest cities and cargo per status
+	 *
+	 * @return null in case of any exceptions
+	 */
+	Document cargoReport() {
+		// Transit time in seconds, of delivered cargo
+		Document transitSeconds = new Document("$divide", Arrays.asList(
+				new Document("$subtract", Arrays.asList("$" + Constants.DELIVERED, "$" + Constants.RECEIVED)), 1000));
+		// Cargo created before we kept the origin: "unknown", as in CargoSlaTracker (its location is not where it came from)
+		Document origin = new Document("$ifNull", Arrays.asList("$" + Constants.ORIGIN, "unknown"));
+
+		List<Document> deliveryTimePerRoute = Arrays.asList(
+				new Document("$match", new Document(Constants.STATUS, Constants.STATUS_DELIVERED)),
+				new Document("$group", new Document(Constants._ID, new Document(Constants.ORIGIN, origin)
+						.append(Constants.DESTINATION, "$" + Constants.DESTINATION))
+						.append("delivered", new Document("$sum", 1))
+						.append("averageSeconds", new Document("$avg", transitSeconds))
+						.append("maxSeconds", new Document("$max", transitSeconds))),
+				new Document("$sort", new Document("delivered", -1)),
+				new Document("$limit", TOP_N * 5));
+
+		List<Document> busiestOrigins = Arrays.asList(
+				new Document("$group", new Document(Constants._ID, origin).append("cargo", new Document("$sum", 1))),
+				new Document("$sort", new Document("cargo", -1)),
+				new Document("$limit", TOP_N));
+
+		List<Document> busiestDestinations = Arrays.asList(
+				new Document("$group", new Document(Constants._ID, "$" + Constants.DESTINATION)
+						.append("cargo", new Document("$sum", 1))),
+				new Document("$sort", new Document("cargo", -1)),
+				new Document("$limit", TOP_N));
+
+		List<Document> perStatus = Arrays.asList(
+				new Document("$group", new Document(Constants._ID, "$" + Constants.STATUS)
+						.append("cargo", new Document("$sum", 1))));
+
+		Document facets = new Document("deliveryTimePerRoute", deliveryTimePerRoute)
+				.append("busiestOrigins", busiestOrigins)
+				.append("busiestDestinations", busiestDestinations)
+				.append("perStatus", perStatus);
+
+		return cachedReport(Constants.COLLECTION_CARGO, Arrays.asList(
+				new Document("$project", new Document(Constants.ORIGIN, 1).append(Constants.DESTINATION, 1).append(Constants.STATUS, 1)
+						.append(Constants.RECEIVED, 1).append(Constants.DELIVERED, 1)),
+				new Document("$facet", facets)));
+	}
+
+	/**
+	 * Utilisation per plane (distance, flight time, landings) and for the fleet
+	 *
+	 * @return null in case of any exceptions
+	 */
+	Document planeReport() {
+		List<Document> perPlane = Arrays.asList(
+				new Document("$sort", new Document(Constants.TOTAL_FLIGHT_TIME, -1)),
+				new Document("$limit", TOP_N * 5));
+
+		List<Document> fleet = Arrays.asList(
+				new Document("$group", new Document(Constants._ID, null)
+						.append("planes", new Document("$sum", 1))
+						.append(Constants.TOTAL_DISTANCE_FLOWN, new Document("$sum", "$" + Constants.TOTAL_DISTANCE_FLOWN))
+						.append(Constants.TOTAL_FLIGHT_TIME, new Document("$sum", "$" + Constants.TOTAL_FLIGHT_TIME))
+						.append("landings", new Document("$sum", "$landings"))
+						.append("averageFlightTime", new Document("$avg", "$" + Constants.TOTAL_FLIGHT_TIME))
+						.append(Constants.REQUIRES_MAINTENANCE, new Document("$sum", new Document("$cond",
+								Arrays.asList("$" + Constants.REQUIRES_MAINTENANCE, 1, 0))))));
+
+		return cachedReport(Constants.COLLECTION_PLANES, Arrays.asList(
+				// Only the size of the Flight Log leaves the projection, never the log itself
+				new Document("$project", new Document(Constants.TOTAL_DISTANCE_FLOWN, 1)
+						.append(Constants.TOTAL_FLIGHT_TIME, 1).append(Constants.REQUIRES_MAINTENANCE, 1)
+						.append("landings", new Document("$size",
+								new Document("$ifNull", Arrays.asList("$" + Constants.FLIGHT_LOG, Arrays.asList()))))),
+				new Document("$facet", new Document("perPlane", perPlane).append("fleet", fleet))));
+	}
+
+	private Document cachedReport(String collectionName, List<Bson> pipeline) {
+		CachedReport cached = cache.get(collectionName);
+		if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+			return cached.report;
+		}
+
+		// One run per report: requests for it wait here, those for the other report or a cached one do not
+		synchronized (running.computeIfAbsent(collectionName, name -> new Object())) {
+			cached = cache.get(collectionName);
+			if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+				return cached.report;
+			}
+
+			try {
+				MongoCollection<Document> collection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+						.getCollection(collectionName).withReadPreference(ReadPreference.secondaryPreferred());
+				Document report = collection.aggregate(pipeline).allowDiskUse(true)
+						.maxTime(MAX_TIME_MILLIS, TimeUnit.MILLISECONDS).first();
+				if (report == null) {
+					report = new Document();
+				}
+				report.append("generated", new Date());
+				cache.put(collectionName, new CachedReport(report, System.currentTimeMillis() + TTL_MILLIS));
+				return report;
+			} catch (Exception e) {
+				logger.error(e.getMessage());
+				lastError = e.getMessage();
+			}
+			return null;
+		}
+	}
+
+	String getLastError() {
+		return lastError;
+	}
+}
@@ -0,0 +1,429 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+/******
+ * Fleet and cargo statistics, kept up to date incrementally, for GET /stats
+ *
+ * Rather than counting documents in the (ever growing) cargo collection every
+ * time a dashboard loads, we keep counters in memory:
+ * - per status: cargo created, cargo delivered, cargo in transit, and hence
+ *   still in process
+ * - per city: cargo received there, cargo delivered there
+ * - per plane: landings, cargo loaded onto it
+ *
+ * They are updated from Change Streams on cargo and planes, and flushed every
+ * few seconds to the stats collection along with the resume token of the last
+ * event counted. On startup, we read them back and resume both Change Streams
+ * right after that event, so nothing is counted twice or missed across
+ * restarts (as long as the oplog still holds the events).
+ *
+ * A Change Stream event only has the new status, not the one it replaced
+ * (4.4 has no pre-images), so we keep the ids of the cargo in transit: a
+ * status change takes cargo out of transit if it is one of them. That is the
+ * cargo on board the planes right now, read from the cargo collection (the
+ * in transit index) on startup rather than flushed: it has no bound.
+ *
+ * With nothing saved yet, E.G. the first start on a fleet that already has
+ * cargo, or when a Change Stream could not resume and events were missed, the
+ * counters are counted from the collections instead, once the streams are
+ * open. Cargo loaded onto planes cannot be counted that way, and keeps its
+ * count. Changes made while counting may be counted twice.
+ ******/
+public class StatsService implements CollectionChangeWatcher.ChangeSubscriber {
+
+	private static final String STATS_ID = "fleet";
+	private static final String CREATED = "created";
+	private static final String CARGO_LOADED = "cargoLoaded";
+	private static final String LANDINGS = "landings";
+	private static final String DELIVERY_TIME = "deliveryTimeSeconds";
+	private static final String RESUME_TOKENS = "resumeTokens";
+
+	private static class Counters {
+		long created;
+		long delivered;
+		long cargoLoaded;
+		long landings;
+	}
+
+	Logger logger;
+	private MongoClient mongoClient;
+	private MongoCollection<Document> statsCollection;
+
+	private final Counters totals = new Counters();
+	private final Map<String, Counters> cities = new TreeMap<String, Counters>();
+	private final Map<String, Counters> planes = new TreeMap<String, Counters>();
+
+	// Tells a plane from a city, when cargo is moved
+	private final Set<String> knownPlanes = new HashSet<String>();
+	// Cargo we saw go in transit, and not out of it yet
+	private final Set<ObjectId> inTransit = new HashSet<ObjectId>();
+
+	private BsonDocument cargoResumeToken;
+	private BsonDocument planesResumeToken;
+	private Date lastFlushed;
+	// Nothing worth flushing until counted from the collections
+	private volatile boolean counting;
+
+	private CollectionChangeWatcher cargoWatcher;
+	private CollectionChangeWatcher planesWatcher;
+
+	StatsService(MongoClient mongoClient) {
+		logger = LoggerFactory.getLogger(StatsService.class);
+		this.mongoClient = mongoClient;
+		statsCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_STATS);
+	}
+
+	/**
+	 * Loads the last flushed statistics, starts the Change Streams from where they
+	 * were flushed, and flushes every flushSeconds from then on.
+	 */
+	void start(int flushSeconds) {
+		boolean loaded = load();
+		if (loaded) {
+			Set<ObjectId> onBoard = cargoInTransit();
+			synchronized (this) {
+				inTransit.addAll(onBoard);
+			}
+		} else {
+			counting = true;
+		}
+
+		PlaneDAL planeDAL = new PlaneDAL(mongoClient);
+		for (Document plane : planeDAL.getMaintenanceState()) {
+			knownPlanes.add(plane.getString(Constants._ID));
+		}
+
+		// Only the events we count, the lookup gives us the received date of delivered cargo
+		List<Bson> cargoPipeline = Arrays.asList(Aggregates.match(Filters.or(
+				Filters.eq("operationType", "insert"),
+				Filters.exists("updateDescription.updatedFields." + Constants.STATUS),
+				Filters.exists("updateDescription.updatedFields." + Constants.LOCATION))));
+		cargoWatcher = new CollectionChangeWatcher(mongoClient, Constants.COLLECTION_CARGO, FullDocument.UPDATE_LOOKUP,
+				cargoPipeline);
+		cargoWatcher.resumeAfter(cargoResumeToken);
+		cargoWatcher.subscribe(this);
+
+		List<Bson> planesPipeline = Arrays.asList(Aggregates.match(Filters.or(
+				Filters.eq("operationType", "insert"),
+				Filters.exists("updateDescription.updatedFields." + Constants.LANDED))));
+		planesWatcher = new CollectionChangeWatcher(mongoClient, Constants.COLLECTION_PLANES, FullDocument.DEFAULT,
+				planesPipeline);
+		planesWatcher.resumeAfter(planesResumeToken);
+		planesWatcher.subscribe(this);
+
+		ScheduledExecutorService statsexec = Executors.newScheduledThreadPool(3);
+		statsexec.execute(cargoWatcher);
+		statsexec.execute(planesWatcher);
+		if (!loaded) {
+			statsexec.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// Counted once the streams are open, so no change is missed in between
+						while (!cargoWatcher.awaitOpen(10, TimeUnit.SECONDS)
+								|| !planesWatcher.awaitOpen(10, TimeUnit.SECONDS)) {
+							logger.warn("Change Streams not open yet, statistics are not counted");
+						}
+						countFromCollections();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		statsexec.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					logger.error("Could not flush statistics: " + e.getMessage());
+				}
+			}
+		}, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void onChange(ChangeStreamDocument<Document> change) {
+		if (change.getNamespace() == null || change.getDocumentKey() == null) {
+			return;
+		}
+		if (Constants.COLLECTION_CARGO.equals(change.getNamespace().getCollectionName())) {
+			onCargoChange(change);
+		} else {
+			onPlaneChange(change);
+		}
+	}
+
+	private synchronized void onCargoChange(ChangeStreamDocument<Document> change) {
+		cargoResumeToken = change.getResumeToken();
+		Document cargo = change.getFullDocument();
+
+		if (change.getOperationType() == OperationType.INSERT && cargo != null) {
+			totals.created++;
+			counters(cities, cargo.getString(Constants.LOCATION)).created++;
+			return;
+		}
+		if (change.getOperationType() != OperationType.UPDATE || change.getUpdateDescription() == null) {
+			return;
+		}
+
+		BsonDocument updatedFields = change.getUpdateDescription().getUpdatedFields();
+		if (updatedFields.containsKey(Constants.STATUS) && updatedFields.isString(Constants.STATUS)
+				&& change.getDocumentKey().isObjectId(Constants._ID)) {
+			ObjectId id = change.getDocumentKey().getObjectId(Constants._ID).getValue();
+			if (Constants.STATUS_INTRANSIT.equals(updatedFields.getString(Constants.STATUS).getValue())) {
+				inTransit.add(id);
+			} else {
+				inTransit.remove(id);
+			}
+		}
+		if (updatedFields.containsKey(Constants.STATUS) && updatedFields.isString(Constants.STATUS)
+				&& Constants.STATUS_DELIVERED.equals(updatedFields.getString(Constants.STATUS).getValue())) {
+			totals.delivered++;
+			if (cargo != null) {
+				counters(cities, cargo.getString(Constants.LOCATION)).delivered++;
+			}
+		}
+		if (updatedFields.containsKey(Constants.LOCATION) && updatedFields.isString(Constants.LOCATION)) {
+			String location = updatedFields.getString(Constants.LOCATION).getValue();
+			if (knownPlanes.contains(location)) {
+				counters(planes, location).cargoLoaded++;
+				totals.cargoLoaded++;
+			}
+		}
+	}
+
+	private synchronized void onPlaneChange(ChangeStreamDocument<Document> change) {
+		planesResumeToken = change.getResumeToken();
+		String callSign = change.getDocumentKey().getString(Constants._ID).getValue();
+		knownPlanes.add(callSign);
+
+		if (change.getOperationType() == OperationType.UPDATE) {
+			counters(planes, callSign).landings++;
+			totals.landings++;
+		}
+	}
+
+	// Called on the watcher thread, once the new stream is open: its events wait until we have counted
+	@Override
+	public void onReset() {
+		logger.warn("Could not resume a Change Stream, statistics may have missed some events");
+		countFromCollections();
+	}
+
+	/**
+	 * Replaces the counters with counts of the cargo (and cargo_archive) and
+	 * planes collections, except cargo loaded which cannot be counted there.
+	 * Scans both collections, so only on first start and after a reset.
+	 */
+	private void countFromCollections() {
+		try {
+			logger.info("Counting cargo and landings in the collections");
+			Counters countedTotals = new Counters();
+			Map<String, Counters> countedCities = new TreeMap<String, Counters>();
+			for (String collectionName : new String[] { Constants.COLLECTION_CARGO,
+					Constants.COLLECTION_CARGO_ARCHIVE }) {
+				for (Document count : mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+						.getCollection(collectionName)
+						.aggregate(Arrays.asList(Aggregates.group(new Document(Constants.ORIGIN, "$" + Constants.ORIGIN)
+								.append(Constants.LOCATION, "$" + Constants.LOCATION)
+								.append(Constants.STATUS, "$" + Constants.STATUS), Accumulators.sum("cargo", 1))))
+						.allowDiskUse(true)) {
+					Document key = (Document) count.get(Constants._ID);
+					long cargo = ((Number) count.get("cargo")).longValue();
+					countedTotals.created += cargo;
+					counters(countedCities, key.getString(Constants.ORIGIN)).created += cargo;
+					if (Constants.STATUS_DELIVERED.equals(key.getString(Constants.STATUS))) {
+						countedTotals.delivered += cargo;
+						counters(countedCities, key.getString(Constants.LOCATION)).delivered += cargo;
+					}
+				}
+			}
+			Set<ObjectId> onBoard = cargoInTransit();
+			Map<String, Long> landings = new TreeMap<String, Long>();
+			for (Document plane : mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+					.getCollection(Constants.COLLECTION_PLANES)
+					.aggregate(Arrays.asList(Aggregates.project(new Document(LANDINGS, new Document("$size",
+							new Document("$ifNull", Arrays.asList("$" + Constants.FLIGHT_LOG, Arrays.asList())))))))) {
+				landings.put(plane.getString(Constants._ID), ((Number) plane.get(LANDINGS)).longValue());
+				countedTotals.landings += ((Number) plane.get(LANDINGS)).longValue();
+			}
+
+			synchronized (this) {
+				totals.created = countedTotals.created;
+				totals.delivered = countedTotals.delivered;
+				totals.landings = countedTotals.landings;
+				cities.clear();
+				cities.putAll(countedCities);
+				inTransit.clear();
+				inTransit.addAll(onBoard);
+				for (Counters plane : planes.values()) {
+					plane.landings = 0;
+				}
+				for (Map.Entry<String, Long> plane : landings.entrySet()) {
+					counters(planes, plane.getKey()).landings = plane.getValue();
+					knownPlanes.add(plane.getKey());
+				}
+			}
+			counting = false;
+		} catch (Exception e) {
+			logger.error("Could not count cargo and landings: " + e.getMessage());
+		}
+	}
+
+	// The cargo on board the planes now, served by the in transit index
+	private Set<ObjectId> cargoInTransit() {
+		Set<ObjectId> onBoard = new HashSet<ObjectId>();
+		for (Document cargo : mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO).find(eq(Constants.STATUS, Constants.STATUS_INTRANSIT))
+				.projection(include(Constants._ID))) {
+			onBoard.add(cargo.getObjectId(Constants._ID));
+		}
+		return onBoard;
+	}
+
+	private Counters counters(Map<String, Counters> byName, String name) {
+		String key = (name == null) ? "unknown" : name;
+		Counters counters = byName.get(key);
+		if (counters == null) {
+			counters = new Counters();
+			byName.put(key, counters);
+		}
+		return counters;
+	}
+
+	// O(number of cities and planes), never touches Mongo
+	synchronized Document snapshot() {
+		List<Document> cityStats = new ArrayList<Document>();
+		for (Map.Entry<String, Counters> city : cities.entrySet()) {
+			cityStats.add(new Document(Constants.NAME, city.getKey()).append(CREATED, city.getValue().created)
+					.append(Constants.DELIVERED, city.getValue().delivered));
+		}
+		List<Document> planeStats = new ArrayList<Document>();
+		for (Map.Entry<String, Counters> plane : planes.entrySet()) {
+			planeStats.add(new Document(Constants.CALLSIGN, plane.getKey()).append(LANDINGS, plane.getValue().landings)
+					.append(CARGO_LOADED, plane.getValue().cargoLoaded));
+		}
+
+		return new Document(Constants.STATUS, new Document(CREATED, totals.created)
+				.append(Constants.STATUS_INPROCESS, totals.created - totals.delivered - inTransit.size())
+				.append(Constants.STATUS_INTRANSIT, (long) inTransit.size())
+				.append(Constants.STATUS_DELIVERED, totals.delivered))
+				.append(LANDINGS, totals.landings)
+				.append(CARGO_LOADED, totals.cargoLoaded)
+				.append(DELIVERY_TIME, deliveryTime())
+				.append("cities", cityStats)
+				.append("planes", planeStats)
+				.append("lastFlushed", lastFlushed);
+	}
+
+	// The delivery times of all routes, kept by the CargoSlaTracker; null without one
+	private static Document deliveryTime() {
+		CargoSlaTracker slaTracker = CargoSlaTracker.installed();
+		return (slaTracker == null) ? null : slaTracker.percentiles(null, null);
+	}
+
+	// Stops counting, and flushes what was counted (with where to resume) one last time
+	void stop() {
+		cargoWatcher.stop();
+		planesWatcher.stop();
+		flush();
+	}
+
+	void flush() {
+		if (counting) {
+			return;
+		}
+		Document toSave;
+
+		synchronized (this) {
+			toSave = snapshot();
+			toSave.remove("lastFlushed");
+			// Flushed by the CargoSlaTracker
+			toSave.remove(DELIVERY_TIME);
+			toSave.append(RESUME_TOKENS, new Document(Constants.COLLECTION_CARGO, cargoResumeToken)
+					.append(Constants.COLLECTION_PLANES, planesResumeToken));
+			lastFlushed = new Date();
+			toSave.append("updated", lastFlushed);
+		}
+		statsCollection.replaceOne(eq(Constants._ID, STATS_ID), toSave.append(Constants._ID, STATS_ID),
+				new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * @return false if there is nothing (readable) to load, and the counters need counting
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized boolean load() {
+		Document saved = statsCollection.find(eq(Constants._ID, STATS_ID)).first();
+		if (saved == null) {
+			logger.info("No statistics saved yet, counting them from the collections");
+			return false;
+		}
+
+		try {
+			Document status = (Document) saved.get(Constants.STATUS);
+			totals.created = status.getLong(CREATED);
+			totals.delivered = status.getLong(Constants.STATUS_DELIVERED);
+			totals.landings = saved.getLong(LANDINGS);
+			totals.cargoLoaded = saved.getLong(CARGO_LOADED);
+
+			for (Document city : (List<Document>) saved.get("cities")) {
+				Counters counters = counters(cities, city.getString(Constants.NAME));
+				counters.created = city.getLong(CREATED);
+				counters.delivered = city.getLong(Constants.DELIVERED);
+			}
+			for (Document plane : (List<Document>) saved.get("planes")) {
+				Counters counters = counters(planes, plane.getString(Constants.CALLSIGN));
+				counters.landings = plane.getLong(LANDINGS);
+				counters.cargoLoaded = plane.getLong(CARGO_LOADED);
+			}
+			Document resumeTokens = (Document) saved.get(RESUME_TOKENS);
+			cargoResumeToken = toBsonDocument((Document) resumeTokens.get(Constants.COLLECTION_CARGO));
+			planesResumeToken = toBsonDocument((Document) resumeTokens.get(Constants.COLLECTION_PLANES));
+			lastFlushed = saved.getDate("updated");
+			return true;
+		} catch (Exception e) {
+			logger.error("Saved statistics are unreadable, counting them from the collections: " + e.getMessage());
+		}
+		return false;
+	}
+
+	private BsonDocument toBsonDocument(Document document) {
+		return (document == null) ? null
+				: document.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+	}
+}
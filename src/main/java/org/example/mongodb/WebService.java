@@ -8,21 +8,30 @@ import static spark.Spark.port;
 import static spark.Spark.post;
 import static spark.Spark.put;
 
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 
+import org.example.mongodb.AdmissionControl.Bulkhead;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
+import spark.Spark;
+
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.FullDocument;
 
 public class WebService {
 	static final String version = "0.0.1";
 	static Logger logger;
 	private static String static_dir;
+	private static CollectionChangeWatcher planeChangeWatcher;
 
 	public static int ordinalIndexOf(String str, String substr, int n) {
 		int pos = -1;
@@ -54,37 +63,70 @@ public class WebService {
                 
         }
         
+        // Write Concern per class of operation, E.G. -Dlogistics.writeConcern=telemetry=w1j,cargo_state=majority
+        WriteConcernPolicy.configure(System.getProperty("logistics.writeConcern"));
+
         MongoClient mongoClient = new MongoClient(new MongoClientURI(URI));
  
 		APIRoutes apiRoutes = new APIRoutes(mongoClient);
+
+		//Move cargo delivered more than -Dlogistics.archive.days ago to cargo_archive, off unless set
+		//Built before anything runs, so a bad setting stops the web service at once
+		CargoArchiver archiver = null;
+		Integer archiveDays = Integer.getInteger("logistics.archive.days");
+		if (archiveDays != null) {
+			archiver = new CargoArchiver(mongoClient, archiveDays,
+					Integer.getInteger("logistics.archive.batchSize", 500),
+					Integer.getInteger("logistics.archive.maxPerSecond", 1000));
+		}
+
+		//Token buckets per client and per route on writes, a cap on requests in flight, and separate
+		//bulkheads for reads, telemetry and other writes; anything over is answered 429 at once
+		AdmissionControl admission = new AdmissionControl(Integer.getInteger("logistics.admission.maxInFlight", 100),
+				System.getProperty("logistics.admission.bulkheads"),
+				Double.parseDouble(System.getProperty("logistics.admission.clientRate", "0")),
+				Double.parseDouble(System.getProperty("logistics.admission.clientBurst", "0")),
+				System.getProperty("logistics.admission.clientHeader"),
+				System.getProperty("logistics.admission.routeRates"));
+		apiRoutes.setAdmissionControl(admission);
+
 			// *** PLANES ***
-				//Fetch planes
+				//Fetch planes, or only the planes changed since a token from the previous call
 				// E.G. curl -X GET http://localhost:5000/planes
-				get("/planes",(req,res) -> apiRoutes.getPlanes(req,res));
+				// E.G. curl -X GET http://localhost:5000/planes?since=1598357245000.42
+				get("/planes",admission.admit(Bulkhead.READ,"planes",(req,res) -> apiRoutes.getPlanes(req,res)));
+
+				//Server-Sent Events feed of the fields of planes that changed
+				// E.G. curl -N -X GET http://localhost:5000/planes/stream
+				get("/planes/stream",(req,res) -> apiRoutes.streamPlanes(req,res));
+
+				//Fetch the planes closest to needing maintenance
+				// E.G. curl -X GET http://localhost:5000/planes/maintenance?top=10
+				get("/planes/maintenance",admission.admit(Bulkhead.READ,"planes_maintenance",(req,res) -> apiRoutes.getPlanesDueForMaintenance(req,res)));
 
 				//Fetch plane by ID
 				// E.G. curl -X GET http://localhost:5000/planes/CARGO10
-				get("/planes/*",(req,res) -> apiRoutes.getPlaneById(req,res));
+				get("/planes/*",admission.admit(Bulkhead.READ,"plane",(req,res) -> apiRoutes.getPlaneById(req,res)));
 
 				// Update location, heading, and landed for a plane
 				// E.G. curl -X PUT http://localhost:5000/planes/CARGO10/location/2,3/240/London
-				put("/planes/*/location/*/*/*",(req,res) -> apiRoutes.updatePlaneLocationAndLanding(req,res));
+				put("/planes/*/location/*/*/*",admission.admit(Bulkhead.WRITE,"plane_landing",(req,res) -> apiRoutes.updatePlaneLocationAndLanding(req,res)));
 
 				//Update location and heading for a plane
 				// E.G. curl -X PUT http://localhost:5000/planes/CARGO10/location/2,3/240
-				put("/planes/*/location/*/*",(req,res) -> apiRoutes.updatePlaneLocation(req,res));
+				put("/planes/*/location/*/*",admission.admit(Bulkhead.TELEMETRY,"plane_location",(req,res) -> apiRoutes.updatePlaneLocation(req,res)));
 
 				//Replace a Plane's Route with a single city
 				// E.G. curl -X PUT http://localhost:5000/planes/CARGO10/route/London
-				put("/planes/*/route/*",(req,res) -> apiRoutes.addPlaneRoute(req,res,true));
+				put("/planes/*/route/*",admission.admit(Bulkhead.WRITE,"plane_route",(req,res) -> apiRoutes.addPlaneRoute(req,res,true)));
 
 				//Add a city to a Plane's Route
 				// E.G. curl -X POST http://localhost:5000/planes/CARGO10/route/London
-				post("/planes/*/route/*",(req,res) -> apiRoutes.addPlaneRoute(req,res,false));
+				post("/planes/*/route/*",admission.admit(Bulkhead.WRITE,"plane_route",(req,res) -> apiRoutes.addPlaneRoute(req,res,false)));
 
 				//Remove the first entry in the list of a Planes route
 				// E.G. curl -X DELETE http://localhost:5000/planes/CARGO10/route/destination
-				delete("/planes/*/route/destination",(req,res) -> apiRoutes.removeFirstPlaneRoute(req,res));
+				delete("/planes/*/route/destination",admission.admit(Bulkhead.WRITE,"plane_route",(req,res) -> apiRoutes.removeFirstPlaneRoute(req,res)));
 
 			// ************
 
@@ -92,15 +134,15 @@ public class WebService {
 			// *** CITIES ***
 				//Fetch ALL cities
 				// E.G. curl -X GET http://localhost:5000/cities
-				get("/cities",(req,res) -> apiRoutes.getCities(req,res));
+				get("/cities",admission.admit(Bulkhead.READ,"cities",(req,res) -> apiRoutes.getCities(req,res)));
 				
 				//Fetch City Neighbors by ID
 				// E.G. curl -X GET http://localhost:5000/cities/London/neighbors/5
-				get("/cities/*/neighbors/*",(req,res) -> apiRoutes.getCityNeighbors(req,res));
+				get("/cities/*/neighbors/*",admission.admit(Bulkhead.READ,"city_neighbors",(req,res) -> apiRoutes.getCityNeighbors(req,res)));
 			
 				//Fetch City by ID
 				// E.G. curl -X GET http://localhost:5000/cities/London
-				get("/cities/*",(req,res) -> apiRoutes.getCityById(req,res));
+				get("/cities/*",admission.admit(Bulkhead.READ,"city",(req,res) -> apiRoutes.getCityById(req,res)));
 				
 
 			// ************
@@ -108,37 +150,167 @@ public class WebService {
 			
 			// *** CARGO ***
 			// ************
-				//Fetch Cargo by ID
+				//Fetch Cargo by ID, one page at a time
 				// E.G. curl -X GET http://localhost:5000/cargo/location/London
-				get("/cargo/location/*",(req,res) -> apiRoutes.getCargoAtLocation(req,res));
+				// E.G. curl -X GET "http://localhost:5000/cargo/location/London?after=5f45303156fd8ce208650caf&limit=500&courier=CARGO10"
+				get("/cargo/location/*",admission.admit(Bulkhead.READ,"cargo_at_location",(req,res) -> apiRoutes.getCargoAtLocation(req,res)));
+
+				// Delivery time percentiles (p50, p95, p99) for a route, or for all cargo
+				// E.G. curl -X GET "http://localhost:5000/cargo/sla?origin=London&destination=Cairo"
+				get("/cargo/sla",admission.admit(Bulkhead.READ,"cargo_sla",(req,res) -> apiRoutes.getCargoSla(req,res)));
 
 				// Create a new cargo at "location" which needs to get to "destination" - error if neither location nor destination exist as cities. Set status to "in progress" 
 				// E.G. curl -X POST http://localhost:5000/cargo/London/to/Cairo
-				post("/cargo/*/to/*",(req,res) -> apiRoutes.createCargo(req,res));
+				post("/cargo/*/to/*",admission.admit(Bulkhead.WRITE,"cargo_create",(req,res) -> apiRoutes.createCargo(req,res)));
 
-				// Set status field to 'Delivered' - Increment some count of delivered items too.
+				// Create many cargo at once, from a JSON array or NDJSON of {"location":..., "destination":...}
+				// E.G. curl -X POST http://localhost:5000/cargo/bulk --data-binary @parcels.ndjson
+				post("/cargo/bulk",admission.admit(Bulkhead.WRITE,"cargo_bulk",(req,res) -> apiRoutes.createCargoBulk(req,res)));
+
+				// Set status field to 'Delivered' - the count of delivered items is kept by the StatsService (see /stats)
 				// E.G. curl -X PUT http://localhost:5000/cargo/5f45303156fd8ce208650caf/delivered
-				put("/cargo/*/delivered",(req,res) -> apiRoutes.cargoDelivered(req,res));
+				put("/cargo/*/delivered",admission.admit(Bulkhead.WRITE,"cargo_delivered",(req,res) -> apiRoutes.cargoDelivered(req,res)));
 
 				// Mark that the next time the courier (plane) arrives at the location of this package it should be onloaded by setting the courier field - courier should be a plane.
 				// E.G. curl -X PUT http://localhost:5000/cargo/5f45303156fd8ce208650caf/courier/CARGO10
-				put("/cargo/*/courier/*",(req,res) -> apiRoutes.cargoAssignCourier(req,res));
+				put("/cargo/*/courier/*",admission.admit(Bulkhead.WRITE,"cargo_courier",(req,res) -> apiRoutes.cargoAssignCourier(req,res)));
 
 				// Unset the value of courier on a given piece of cargo
 				// E.G. curl -X DELETE http://localhost:5000/cargo/5f4530d756fd8ce208650d83/courier
-				delete("/cargo/*/courier",(req,res) -> apiRoutes.cargoUnsetCourier(req,res));
+				delete("/cargo/*/courier",admission.admit(Bulkhead.WRITE,"cargo_courier",(req,res) -> apiRoutes.cargoUnsetCourier(req,res)));
 
-				// Move a piece of cargo from one location to another (plane to city or vice-versa)
+				// Move a piece of cargo from one location to another (plane to city or vice-versa), "in transit" on a plane, "in process" at a city
 				// E.G. curl -X PUT http://localhost:5000/cargo/5f4530d756fd8ce208650d83/location/London
-				put("/cargo/*/location/*",(req,res) -> apiRoutes.cargoMove(req,res));
+				put("/cargo/*/location/*",admission.admit(Bulkhead.WRITE,"cargo_move",(req,res) -> apiRoutes.cargoMove(req,res)));
+
+				// Move, assign the next courier and update the status of a piece of cargo, atomically
+				// E.G. curl -X PUT http://localhost:5000/cargo/5f4530d756fd8ce208650d83/handoff/CARGO10
+				// E.G. curl -X PUT "http://localhost:5000/cargo/5f4530d756fd8ce208650d83/handoff/London?courier=CARGO12"
+				put("/cargo/*/handoff/*",admission.admit(Bulkhead.WRITE,"cargo_handoff",(req,res) -> apiRoutes.cargoHandOff(req,res)));
+
+			// ************
+
+
+			// *** STATS ***
+				//Fleet and cargo statistics: cargo per status, per city, per plane and delivery time percentiles
+				// E.G. curl -X GET http://localhost:5000/stats
+				get("/stats",admission.admit(Bulkhead.READ,"stats",(req,res) -> apiRoutes.getStats(req,res)));
+
+			// ************
+
+
+			// *** REPORTS ***
+				//Delivery time per route, busiest cities and cargo per status
+				// E.G. curl -X GET http://localhost:5000/reports/cargo
+				get("/reports/cargo",admission.admit(Bulkhead.READ,"reports",(req,res) -> apiRoutes.getCargoReport(req,res)));
+
+				//Utilisation per plane and for the whole fleet
+				// E.G. curl -X GET http://localhost:5000/reports/planes
+				get("/reports/planes",admission.admit(Bulkhead.READ,"reports",(req,res) -> apiRoutes.getPlaneReport(req,res)));
+
+			// ************
+
+
+			// *** METRICS ***
+				//Write Concern and latency per class of write
+				// E.G. curl -X GET http://localhost:5000/metrics/writes
+				get("/metrics/writes",(req,res) -> apiRoutes.getWriteMetrics(req,res));
+
+				//Hit rate, evictions and staleness of the plane state cache
+				// E.G. curl -X GET http://localhost:5000/metrics/planecache
+				get("/metrics/planecache",(req,res) -> apiRoutes.getPlaneCacheMetrics(req,res));
+
+				//Transactional cargo handoffs and their retry rate
+				// E.G. curl -X GET http://localhost:5000/metrics/handoffs
+				get("/metrics/handoffs",(req,res) -> apiRoutes.getHandoffMetrics(req,res));
+
+				//Delivered cargo moved to the archive
+				// E.G. curl -X GET http://localhost:5000/metrics/archive
+				get("/metrics/archive",(req,res) -> apiRoutes.getArchiveMetrics(req,res));
+
+				//Progress of the background plane schema migration
+				// E.G. curl -X GET http://localhost:5000/metrics/migration
+				get("/metrics/migration",(req,res) -> apiRoutes.getMigrationMetrics(req,res));
+
+				//Requests admitted and turned away, per route and per bulkhead
+				// E.G. curl -X GET http://localhost:5000/metrics/admission
+				get("/metrics/admission",(req,res) -> apiRoutes.getAdmissionMetrics(req,res));
+
+				//Landings partitions this instance listens to
+				// E.G. curl -X GET http://localhost:5000/metrics/listener
+				get("/metrics/listener",(req,res) -> apiRoutes.getListenerMetrics(req,res));
+
+				//Clients connected to the plane position feed
+				// E.G. curl -X GET http://localhost:5000/metrics/planestream
+				get("/metrics/planestream",(req,res) -> apiRoutes.getPlaneStreamMetrics(req,res));
+
+			// ************
 
 			after((req, res) -> {
 				res.type("application/json");
 			});
 		
 			//Start the Task 3(a) listener here
-			startPlaneChangeListener(mongoClient);
+			GracefulShutdown.Step landingsListener = startPlaneChangeListener(mongoClient, apiRoutes);
+
+			//One shared Change Stream on planes, for everyone who needs to know a plane changed
+			startPlaneChangeWatcher(mongoClient, apiRoutes);
+
+			//Statistics, flushed to the stats collection every -Dlogistics.stats.flushSeconds
+			StatsService statsService = new StatsService(mongoClient);
+			statsService.start(Integer.getInteger("logistics.stats.flushSeconds", 10));
+			apiRoutes.setStatsService(statsService);
+
+			//Delivery times per route, flushed to the cargo_sla collection every -Dlogistics.sla.flushSeconds
+			CargoSlaTracker slaTracker = new CargoSlaTracker(mongoClient);
+			slaTracker.start(Integer.getInteger("logistics.sla.flushSeconds", 10));
+			CargoSlaTracker.install(slaTracker);
 
+			//Archive every -Dlogistics.archive.intervalMinutes
+			if (archiver != null) {
+				archiver.start(Integer.getInteger("logistics.archive.intervalMinutes", 10));
+				apiRoutes.setCargoArchiver(archiver);
+			}
+
+			//Upgrade planes to the latest schema version in the background, every
+			//-Dlogistics.migration.intervalMinutes (0 disables it), and give them a partitionKey unless the
+			//landing listeners are partitioned
+			int migrationMinutes = Integer.getInteger("logistics.migration.intervalMinutes", 60);
+			if (migrationMinutes > 0) {
+				PlaneSchemaMigrator migrator = new PlaneSchemaMigrator(mongoClient,
+						Long.getLong("logistics.migration.latencyBudgetMs", 50),
+						Integer.getInteger("logistics.migration.maxBatchSize", 500),
+						Integer.getInteger("logistics.listener.partitions", 0) == 0);
+				migrator.start(migrationMinutes);
+				apiRoutes.setPlaneSchemaMigrator(migrator);
+			}
+
+			//On SIGTERM: stop taking requests, let the landings listener finish and checkpoint, flush what we
+			//counted, then close the MongoClient, all within -Dlogistics.shutdown.timeoutMs
+			//The archiver and the migrator are simply dropped, their batches are safe to run again
+			GracefulShutdown shutdown = new GracefulShutdown(Long.getLong("logistics.shutdown.timeoutMs", 20000));
+			shutdown.addStep("http", timeout -> {
+				Spark.stop();
+				return true;
+			});
+			shutdown.addStep("landings listener", landingsListener);
+			shutdown.addStep("plane watcher", timeout -> {
+				planeChangeWatcher.stop();
+				return true;
+			});
+			shutdown.addStep("statistics", timeout -> {
+				statsService.stop();
+				return true;
+			});
+			shutdown.addStep("delivery times", timeout -> {
+				slaTracker.flush();
+				return true;
+			});
+			shutdown.addStep("mongo client", timeout -> {
+				mongoClient.close();
+				return true;
+			});
+			shutdown.install();
 
 		return;
 	}
@@ -146,16 +318,107 @@ public class WebService {
 	/**
 	 * Starts the Change Stream Listener for Plane Landing Events
 	 * 
+	 * With -Dlogistics.listener.partitions=<n>, the landings are split into n
+	 * partitions shared by every instance of the web service, through leases
+	 * that last -Dlogistics.listener.leaseMs. Otherwise this instance logs every
+	 * landing, so only one instance should run.
+	 * 
+	 * The listener resumes where the previous run stopped. It processes one
+	 * landing at a time, pulled from the Change Stream, so it never queues up
+	 * more than it can write.
+	 * 
 	 * @param mongoClient - the MongoClient to use
+	 * @param apiRoutes - reports the partitions this instance listens to
+	 * @return how to stop the listener(s) on shutdown
 	 */
-	private static void startPlaneChangeListener(MongoClient mongoClient) {
+	private static GracefulShutdown.Step startPlaneChangeListener(MongoClient mongoClient, APIRoutes apiRoutes) {
 		
+		int partitions = Integer.getInteger("logistics.listener.partitions", 0);
+		if (partitions > 0) {
+			LandingListenerCoordinator coordinator = new LandingListenerCoordinator(mongoClient, partitions,
+					Long.getLong("logistics.listener.leaseMs", 15000));
+			coordinator.start();
+			apiRoutes.setLandingListenerCoordinator(coordinator);
+			return coordinator::shutdown;
+		}
+
 		//Listen to the change stream on this thread
 		ExecutorService simexec = Executors.newSingleThreadExecutor();
 
-		simexec.execute(new PlaneLandingEventListener(mongoClient));
+		PlaneLandingEventListener listener = PlaneLandingEventListener.fromCheckpoint(mongoClient);
+		simexec.execute(listener);
 		
 		simexec.shutdown();
+
+		return timeout -> {
+			// Finish the landing being logged, then remember where we stopped
+			listener.stop();
+			boolean stopped = simexec.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+			listener.saveCheckpoint();
+			return stopped;
+		};
+	}
+
+	/**
+	 * Starts the shared Change Stream on the planes collection, and installs the
+	 * plane state cache, the plane position feed, the plane change log and the
+	 * maintenance scheduler on it.
+	 * 
+	 * Cache size is set with -Dlogistics.planeCache.size (0 disables the cache),
+	 * and the maximum age of a cached plane with -Dlogistics.planeCache.maxAgeMs
+	 * 
+	 * @param mongoClient - the MongoClient to use
+	 * @param apiRoutes - serves the plane position feed
+	 */
+	private static void startPlaneChangeWatcher(MongoClient mongoClient, APIRoutes apiRoutes) {
+		// The feed needs the looked up plane, but never its (enormous) Flight Log
+		planeChangeWatcher = new CollectionChangeWatcher(mongoClient, Constants.COLLECTION_PLANES,
+				FullDocument.UPDATE_LOOKUP, Collections.singletonList(
+						Aggregates.project(Projections.exclude("fullDocument." + Constants.FLIGHT_LOG))));
+
+		PlaneStateCache cache = null;
+		int cacheSize = Integer.getInteger("logistics.planeCache.size", 1000);
+		if (cacheSize > 0) {
+			cache = new PlaneStateCache(cacheSize, Long.getLong("logistics.planeCache.maxAgeMs", 30000));
+			planeChangeWatcher.subscribe(cache);
+		}
+
+		PlanePositionFeed feed = new PlanePositionFeed(Integer.getInteger("logistics.sse.maxClients", 32),
+				Integer.getInteger("logistics.sse.maxPendingPerClient", 10000));
+		planeChangeWatcher.subscribe(feed);
+		apiRoutes.setPlanePositionFeed(feed);
+
+		PlaneChangeLog changeLog = new PlaneChangeLog();
+		planeChangeWatcher.subscribe(changeLog);
+
+		MaintenanceScheduler maintenanceScheduler = new MaintenanceScheduler(mongoClient);
+		planeChangeWatcher.subscribe(maintenanceScheduler);
+
+		ExecutorService watcherexec = Executors.newSingleThreadExecutor();
+
+		watcherexec.execute(planeChangeWatcher);
+
+		watcherexec.shutdown();
+
+		// A plane changed before the Change Stream is open would never be invalidated in the
+		// cache, sent with the change log or updated in the maintenance schedule, so none of
+		// them is used (or loaded) until then
+		long openTimeoutMs = Long.getLong("logistics.planeWatcher.openTimeoutMs", 10000);
+		try {
+			while (!planeChangeWatcher.awaitOpen(openTimeoutMs, TimeUnit.MILLISECONDS)) {
+				logger.warn(String.format("Planes Change Stream not open after %d ms, still waiting", openTimeoutMs));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if (cache != null) {
+			PlaneStateCache.install(cache);
+		}
+		apiRoutes.setPlaneChangeLog(changeLog);
+		maintenanceScheduler.load();
+		apiRoutes.setMaintenanceScheduler(maintenanceScheduler);
 	}
 
 }
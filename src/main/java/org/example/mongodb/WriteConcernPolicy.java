@@ -0,0 +1,131 @@
+package org.example.mongodb;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.example.mongodb.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.WriteConcern;
+
+/******
+ * Not every write is equally important.
+ *
+ * A heading update is overwritten by the next one a few seconds later, so
+ * waiting for a majority of the replica set to acknowledge it buys us nothing.
+ * Marking a cargo as delivered, on the other hand, must never be rolled back.
+ *
+ * The DALs ask this policy for the Write Concern of the class of operation they
+ * are about to perform, and report back how long the write took, so that the
+ * savings can be seen on /metrics/writes.
+ *
+ * The mapping can be changed at startup, E.G.
+ * -Dlogistics.writeConcern=telemetry=w1j,plane_state=majority,flight_log=majority,cargo_state=majority
+ ******/
+public class WriteConcernPolicy {
+
+	enum OperationClass {
+		TELEMETRY, // location and heading updates
+		PLANE_STATE, // landings and route changes
+		FLIGHT_LOG, // landing events written by the change stream listener
+		CARGO_STATE // anything that changes a piece of cargo
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteConcernPolicy.class);
+
+	private static final Map<OperationClass, WriteConcern> writeConcerns = new EnumMap<OperationClass, WriteConcern>(
+			OperationClass.class);
+	private static final Map<OperationClass, LatencyHistogram> latencies = new EnumMap<OperationClass, LatencyHistogram>(
+			OperationClass.class);
+
+	static {
+		writeConcerns.put(OperationClass.TELEMETRY, WriteConcern.W1.withJournal(true));
+		writeConcerns.put(OperationClass.PLANE_STATE, WriteConcern.MAJORITY);
+		writeConcerns.put(OperationClass.FLIGHT_LOG, WriteConcern.MAJORITY);
+		writeConcerns.put(OperationClass.CARGO_STATE, WriteConcern.MAJORITY);
+
+		for (OperationClass operationClass : OperationClass.values()) {
+			latencies.put(operationClass, new LatencyHistogram());
+		}
+	}
+
+	private WriteConcernPolicy() {
+	}
+
+	/**
+	 * Overrides the default mapping. Entries that cannot be parsed are logged and
+	 * ignored, leaving the default in place.
+	 *
+	 * @param spec - comma separated list of class=concern, where concern is one of
+	 *             majority, majorityj, w&lt;n&gt; or w&lt;n&gt;j (j = journaled)
+	 */
+	static synchronized void configure(String spec) {
+		if (spec == null || spec.trim().isEmpty()) {
+			return;
+		}
+		for (String entry : spec.split(",")) {
+			String[] keyValue = entry.split("=");
+			if (keyValue.length != 2) {
+				logger.warn(String.format("Ignoring write concern setting '%s'", entry));
+				continue;
+			}
+			try {
+				OperationClass operationClass = OperationClass.valueOf(keyValue[0].trim().toUpperCase());
+				writeConcerns.put(operationClass, parseWriteConcern(keyValue[1].trim().toLowerCase()));
+			} catch (IllegalArgumentException e) {
+				logger.warn(String.format("Ignoring write concern setting '%s': %s", entry, e.getMessage()));
+			}
+		}
+		logger.info("Write concerns: " + writeConcerns);
+	}
+
+	private static WriteConcern parseWriteConcern(String value) {
+		boolean journaled = value.endsWith("j");
+		String w = journaled ? value.substring(0, value.length() - 1) : value;
+		WriteConcern writeConcern;
+
+		if (w.equals("majority")) {
+			writeConcern = WriteConcern.MAJORITY;
+		} else if (w.startsWith("w")) {
+			try {
+				writeConcern = new WriteConcern(Integer.parseInt(w.substring(1)));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unknown write concern " + value);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown write concern " + value);
+		}
+		return journaled ? writeConcern.withJournal(true) : writeConcern;
+	}
+
+	static synchronized WriteConcern forClass(OperationClass operationClass) {
+		return writeConcerns.get(operationClass);
+	}
+
+	/**
+	 * @param startNanos - System.nanoTime() taken just before the write was issued
+	 */
+	static void recordLatency(OperationClass operationClass, long startNanos) {
+		latencies.get(operationClass)
+				.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	static synchronized Document report() {
+		Document report = new Document();
+		for (OperationClass operationClass : OperationClass.values()) {
+			LatencyHistogram histogram = latencies.get(operationClass);
+			report.append(operationClass.name().toLowerCase(), new Document()
+					.append("writeConcern", writeConcerns.get(operationClass).asDocument())
+					.append("count", histogram.getCount())
+					.append("meanMicros", histogram.getMean())
+					.append("p50Micros", histogram.getValueAtPercentile(50))
+					.append("p95Micros", histogram.getValueAtPercentile(95))
+					.append("p99Micros", histogram.getValueAtPercentile(99))
+					.append("maxMicros", histogram.getMax()));
+		}
+		return report;
+	}
+}
@@ -0,0 +1,118 @@
+package org.example.mongodb.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+
+/**
+ * Reads single values for the codecs, tolerating the types older documents
+ * (or the mongo shell) may have stored. Anything unexpected is skipped.
+ */
+final class BsonReading {
+
+	private BsonReading() {
+	}
+
+	static String readString(BsonReader reader) {
+		if (reader.getCurrentBsonType() == BsonType.STRING) {
+			return reader.readString();
+		}
+		reader.skipValue();
+		return null;
+	}
+
+	// Headings have been stored both as numbers and as strings
+	static double readDouble(BsonReader reader) {
+		switch (reader.getCurrentBsonType()) {
+		case DOUBLE:
+			return reader.readDouble();
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case STRING:
+			try {
+				return Double.parseDouble(reader.readString());
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		default:
+			reader.skipValue();
+			return Double.NaN;
+		}
+	}
+
+	static long readLong(BsonReader reader, long defaultValue) {
+		switch (reader.getCurrentBsonType()) {
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case DOUBLE:
+			return (long) reader.readDouble();
+		default:
+			reader.skipValue();
+			return defaultValue;
+		}
+	}
+
+	static boolean readBoolean(BsonReader reader) {
+		if (reader.getCurrentBsonType() == BsonType.BOOLEAN) {
+			return reader.readBoolean();
+		}
+		reader.skipValue();
+		return false;
+	}
+
+	static Date readDate(BsonReader reader) {
+		if (reader.getCurrentBsonType() == BsonType.DATE_TIME) {
+			return new Date(reader.readDateTime());
+		}
+		reader.skipValue();
+		return null;
+	}
+
+	static List<String> readStringList(BsonReader reader) {
+		if (reader.getCurrentBsonType() != BsonType.ARRAY) {
+			reader.skipValue();
+			return null;
+		}
+		List<String> values = new ArrayList<String>();
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String value = readString(reader);
+			if (value != null) {
+				values.add(value);
+			}
+		}
+		reader.readEndArray();
+		return values;
+	}
+
+	/**
+	 * Reads a [longitude, latitude] array into the two slots of position, without
+	 * boxing either
+	 *
+	 * @return false, if the value is not such an array
+	 */
+	static boolean readPosition(BsonReader reader, double[] position) {
+		if (reader.getCurrentBsonType() != BsonType.ARRAY) {
+			reader.skipValue();
+			return false;
+		}
+		int read = 0;
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			if (read < 2) {
+				position[read++] = readDouble(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.readEndArray();
+		return read == 2;
+	}
+}
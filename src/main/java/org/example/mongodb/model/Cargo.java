@@ -0,0 +1,72 @@
+package org.example.mongodb.model;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Immutable state of a piece of cargo, as read by CargoCodec.
+ */
+public final class Cargo {
+
+	private final ObjectId id;
+	private final String origin;
+	private final String destination;
+	private final String location;
+	private final String courier;
+	private final String status;
+	private final Date received;
+	private final Date delivered;
+	// Seconds from received to delivered, -1 until delivered
+	private final long transitTime;
+
+	Cargo(ObjectId id, String origin, String destination, String location, String courier, String status,
+			Date received, Date delivered, long transitTime) {
+		this.id = id;
+		this.origin = origin;
+		this.destination = destination;
+		this.location = location;
+		this.courier = courier;
+		this.status = status;
+		this.received = (received == null) ? null : new Date(received.getTime());
+		this.delivered = (delivered == null) ? null : new Date(delivered.getTime());
+		this.transitTime = transitTime;
+	}
+
+	public ObjectId getId() {
+		return id;
+	}
+
+	// null for cargo created before we kept the origin
+	public String getOrigin() {
+		return origin;
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getCourier() {
+		return courier;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public Date getReceived() {
+		return (received == null) ? null : new Date(received.getTime());
+	}
+
+	public Date getDelivered() {
+		return (delivered == null) ? null : new Date(delivered.getTime());
+	}
+
+	public long getTransitTime() {
+		return transitTime;
+	}
+}
@@ -0,0 +1,109 @@
+package org.example.mongodb.model;
+
+import java.util.Date;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.example.mongodb.Constants;
+
+/**
+ * Decodes cargo documents straight into Cargo, skipping any field it does not
+ * know.
+ */
+public class CargoCodec implements Codec<Cargo> {
+
+	@Override
+	public Cargo decode(BsonReader reader, DecoderContext decoderContext) {
+		ObjectId id = null;
+		String origin = null;
+		String destination = null;
+		String location = null;
+		String courier = null;
+		String status = null;
+		Date received = null;
+		Date delivered = null;
+		long transitTime = -1;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			switch (name) {
+			case Constants._ID:
+				if (reader.getCurrentBsonType() == BsonType.OBJECT_ID) {
+					id = reader.readObjectId();
+				} else {
+					reader.skipValue();
+				}
+				break;
+			case Constants.ORIGIN:
+				origin = BsonReading.readString(reader);
+				break;
+			case Constants.DESTINATION:
+				destination = BsonReading.readString(reader);
+				break;
+			case Constants.LOCATION:
+				location = BsonReading.readString(reader);
+				break;
+			case Constants.COURIER:
+				courier = BsonReading.readString(reader);
+				break;
+			case Constants.STATUS:
+				status = BsonReading.readString(reader);
+				break;
+			case Constants.RECEIVED:
+				received = BsonReading.readDate(reader);
+				break;
+			case Constants.DELIVERED:
+				delivered = BsonReading.readDate(reader);
+				break;
+			case Constants.TRANSIT_TIME:
+				transitTime = BsonReading.readLong(reader, -1);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return new Cargo(id, origin, destination, location, courier, status, received, delivered, transitTime);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, Cargo cargo, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		if (cargo.getId() != null) {
+			writer.writeObjectId(Constants._ID, cargo.getId());
+		}
+		writeString(writer, Constants.LOCATION, cargo.getLocation());
+		writeString(writer, Constants.ORIGIN, cargo.getOrigin());
+		writeString(writer, Constants.DESTINATION, cargo.getDestination());
+		writeString(writer, Constants.COURIER, cargo.getCourier());
+		writeString(writer, Constants.STATUS, cargo.getStatus());
+		if (cargo.getReceived() != null) {
+			writer.writeDateTime(Constants.RECEIVED, cargo.getReceived().getTime());
+		}
+		if (cargo.getDelivered() != null) {
+			writer.writeDateTime(Constants.DELIVERED, cargo.getDelivered().getTime());
+		}
+		if (cargo.getTransitTime() >= 0) {
+			writer.writeInt64(Constants.TRANSIT_TIME, cargo.getTransitTime());
+		}
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Class<Cargo> getEncoderClass() {
+		return Cargo.class;
+	}
+
+	private static void writeString(BsonWriter writer, String name, String value) {
+		if (value != null) {
+			writer.writeString(name, value);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package org.example.mongodb.model;
+
+/**
+ * Immutable city, as read by CityCodec. The position is kept as primitive
+ * doubles (longitude, latitude), the order GeoJSON and the cities collection
+ * use.
+ */
+public final class City {
+
+	private final String name;
+	private final String country;
+	private final double longitude;
+	private final double latitude;
+
+	City(String name, String country, double longitude, double latitude) {
+		this.name = name;
+		this.country = country;
+		this.longitude = longitude;
+		this.latitude = latitude;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getCountry() {
+		return country;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+}
@@ -0,0 +1,58 @@
+package org.example.mongodb.model;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.example.mongodb.Constants;
+
+/**
+ * Decodes city documents straight into City. The name of a city is its _id.
+ */
+public class CityCodec implements Codec<City> {
+
+	@Override
+	public City decode(BsonReader reader, DecoderContext decoderContext) {
+		String name = null;
+		String country = null;
+		double[] position = new double[2];
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String field = reader.readName();
+			if (Constants._ID.equals(field)) {
+				name = BsonReading.readString(reader);
+			} else if (Constants.COUNTRY.equals(field)) {
+				country = BsonReading.readString(reader);
+			} else if (Constants.POSITION.equals(field)) {
+				BsonReading.readPosition(reader, position);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return new City(name, country, position[0], position[1]);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, City city, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		writer.writeString(Constants._ID, city.getName());
+		if (city.getCountry() != null) {
+			writer.writeString(Constants.COUNTRY, city.getCountry());
+		}
+		writer.writeStartArray(Constants.POSITION);
+		writer.writeDouble(city.getLongitude());
+		writer.writeDouble(city.getLatitude());
+		writer.writeEndArray();
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Class<City> getEncoderClass() {
+		return City.class;
+	}
+}
@@ -0,0 +1,21 @@
+package org.example.mongodb.model;
+
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import com.mongodb.MongoClient;
+
+/**
+ * The driver's default codecs, plus the ones for Plane, Cargo and City. The
+ * DALs set it on their collections, so that find(filter, Plane.class) and
+ * friends decode straight into the value types.
+ */
+public final class ModelCodecs {
+
+	public static final CodecRegistry REGISTRY = CodecRegistries.fromRegistries(
+			MongoClient.getDefaultCodecRegistry(),
+			CodecRegistries.fromCodecs(new PlaneCodec(), new CargoCodec(), new CityCodec()));
+
+	private ModelCodecs() {
+	}
+}
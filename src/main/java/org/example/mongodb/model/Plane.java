@@ -0,0 +1,130 @@
+package org.example.mongodb.model;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Immutable state of a plane, as read by PlaneCodec.
+ *
+ * Positions are kept as primitive doubles (longitude, latitude), and the
+ * Flight Log is never part of it: PlaneCodec skips it while decoding, only
+ * the last landing (when the query computed it) is kept.
+ *
+ * Fields that only exist from schema version 1 on are 0 / false / null for
+ * planes of version 0.
+ */
+public final class Plane {
+
+	private final String callSign;
+	private final boolean hasLocation;
+	private final double longitude;
+	private final double latitude;
+	private final double heading;
+	private final List<String> route;
+	private final String landed;
+	private final String status;
+	private final int schemaVersion;
+
+	private final double totalDistanceFlown;
+	private final double totalFlightTime;
+	private final boolean requiresMaintenance;
+
+	private final String lastLandingLocation;
+	private final Date lastLandingDate;
+	private final boolean hasLastLandingPosition;
+	private final double lastLandingLongitude;
+	private final double lastLandingLatitude;
+
+	Plane(String callSign, boolean hasLocation, double longitude, double latitude, double heading,
+			List<String> route, String landed, String status, int schemaVersion, double totalDistanceFlown,
+			double totalFlightTime, boolean requiresMaintenance, String lastLandingLocation, Date lastLandingDate,
+			boolean hasLastLandingPosition, double lastLandingLongitude, double lastLandingLatitude) {
+		this.callSign = callSign;
+		this.hasLocation = hasLocation;
+		this.longitude = longitude;
+		this.latitude = latitude;
+		this.heading = heading;
+		this.route = (route == null) ? Collections.<String>emptyList() : Collections.unmodifiableList(route);
+		this.landed = landed;
+		this.status = status;
+		this.schemaVersion = schemaVersion;
+		this.totalDistanceFlown = totalDistanceFlown;
+		this.totalFlightTime = totalFlightTime;
+		this.requiresMaintenance = requiresMaintenance;
+		this.lastLandingLocation = lastLandingLocation;
+		this.lastLandingDate = (lastLandingDate == null) ? null : new Date(lastLandingDate.getTime());
+		this.hasLastLandingPosition = hasLastLandingPosition;
+		this.lastLandingLongitude = lastLandingLongitude;
+		this.lastLandingLatitude = lastLandingLatitude;
+	}
+
+	public String getCallSign() {
+		return callSign;
+	}
+
+	public boolean hasLocation() {
+		return hasLocation;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	// NaN if the stored heading is not a number
+	public double getHeading() {
+		return heading;
+	}
+
+	public List<String> getRoute() {
+		return route;
+	}
+
+	public String getLanded() {
+		return landed;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public int getSchemaVersion() {
+		return schemaVersion;
+	}
+
+	public double getTotalDistanceFlown() {
+		return totalDistanceFlown;
+	}
+
+	public double getTotalFlightTime() {
+		return totalFlightTime;
+	}
+
+	public boolean requiresMaintenance() {
+		return requiresMaintenance;
+	}
+
+	public String getLastLandingLocation() {
+		return lastLandingLocation;
+	}
+
+	public Date getLastLandingDate() {
+		return (lastLandingDate == null) ? null : new Date(lastLandingDate.getTime());
+	}
+
+	public boolean hasLastLandingPosition() {
+		return hasLastLandingPosition;
+	}
+
+	public double getLastLandingLongitude() {
+		return lastLandingLongitude;
+	}
+
+	public double getLastLandingLatitude() {
+		return lastLandingLatitude;
+	}
+}
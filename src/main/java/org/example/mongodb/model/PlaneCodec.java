@@ -0,0 +1,148 @@
+package org.example.mongodb.model;
+
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.example.mongodb.Constants;
+
+/**
+ * Decodes plane documents straight into Plane, field by field.
+ *
+ * The Flight Log can hold thousands of landings: it is skipped over in the
+ * raw BSON (never turned into objects), whether or not the query projected it
+ * out. Only the lastLandingEvent computed by PlaneDAL's aggregation is read.
+ */
+public class PlaneCodec implements Codec<Plane> {
+
+	@Override
+	public Plane decode(BsonReader reader, DecoderContext decoderContext) {
+		String callSign = null;
+		double[] location = new double[2];
+		boolean hasLocation = false;
+		double heading = Double.NaN;
+		List<String> route = null;
+		String landed = null;
+		String status = null;
+		int schemaVersion = 0;
+		double totalDistanceFlown = 0;
+		double totalFlightTime = 0;
+		boolean requiresMaintenance = false;
+		String lastLandingLocation = null;
+		Date lastLandingDate = null;
+		double[] lastLanding = new double[2];
+		boolean hasLastLandingPosition = false;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			switch (name) {
+			case Constants._ID:
+				callSign = BsonReading.readString(reader);
+				break;
+			case Constants.CURRENT_LOCATION:
+				hasLocation = BsonReading.readPosition(reader, location);
+				break;
+			case Constants.HEADING:
+				heading = BsonReading.readDouble(reader);
+				break;
+			case Constants.ROUTE:
+				route = BsonReading.readStringList(reader);
+				break;
+			case Constants.LANDED:
+				landed = BsonReading.readString(reader);
+				break;
+			case Constants.STATUS:
+				status = BsonReading.readString(reader);
+				break;
+			case Constants.SCHEMA_VERSION:
+				schemaVersion = (int) BsonReading.readLong(reader, 0);
+				break;
+			case Constants.TOTAL_DISTANCE_FLOWN:
+				totalDistanceFlown = zeroIfNaN(BsonReading.readDouble(reader));
+				break;
+			case Constants.TOTAL_FLIGHT_TIME:
+				totalFlightTime = zeroIfNaN(BsonReading.readDouble(reader));
+				break;
+			case Constants.REQUIRES_MAINTENANCE:
+				requiresMaintenance = BsonReading.readBoolean(reader);
+				break;
+			case Constants.LAST_LANDING_EVENT:
+				if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+					reader.skipValue();
+					break;
+				}
+				reader.readStartDocument();
+				while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+					String landingField = reader.readName();
+					if (Constants.LANDING_LOCATION.equals(landingField)) {
+						lastLandingLocation = BsonReading.readString(reader);
+					} else if (Constants.LANDING_DATE.equals(landingField)) {
+						lastLandingDate = BsonReading.readDate(reader);
+					} else if (Constants.POSITION.equals(landingField)) {
+						hasLastLandingPosition = BsonReading.readPosition(reader, lastLanding);
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.readEndDocument();
+				break;
+			default:
+				// flightLog among others
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return new Plane(callSign, hasLocation, location[0], location[1], heading, route, landed, status,
+				schemaVersion, totalDistanceFlown, totalFlightTime, requiresMaintenance, lastLandingLocation,
+				lastLandingDate, hasLastLandingPosition, lastLanding[0], lastLanding[1]);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, Plane plane, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		writer.writeString(Constants._ID, plane.getCallSign());
+		if (plane.hasLocation()) {
+			writer.writeStartArray(Constants.CURRENT_LOCATION);
+			writer.writeDouble(plane.getLongitude());
+			writer.writeDouble(plane.getLatitude());
+			writer.writeEndArray();
+		}
+		if (!Double.isNaN(plane.getHeading())) {
+			writer.writeDouble(Constants.HEADING, plane.getHeading());
+		}
+		writer.writeStartArray(Constants.ROUTE);
+		for (String city : plane.getRoute()) {
+			writer.writeString(city);
+		}
+		writer.writeEndArray();
+		if (plane.getLanded() != null) {
+			writer.writeString(Constants.LANDED, plane.getLanded());
+		}
+		if (plane.getStatus() != null) {
+			writer.writeString(Constants.STATUS, plane.getStatus());
+		}
+		if (plane.getSchemaVersion() > 0) {
+			writer.writeInt32(Constants.SCHEMA_VERSION, plane.getSchemaVersion());
+			writer.writeDouble(Constants.TOTAL_DISTANCE_FLOWN, plane.getTotalDistanceFlown());
+			writer.writeDouble(Constants.TOTAL_FLIGHT_TIME, plane.getTotalFlightTime());
+			writer.writeBoolean(Constants.REQUIRES_MAINTENANCE, plane.requiresMaintenance());
+		}
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Class<Plane> getEncoderClass() {
+		return Plane.class;
+	}
+
+	private static double zeroIfNaN(double value) {
+		return Double.isNaN(value) ? 0 : value;
+	}
+}
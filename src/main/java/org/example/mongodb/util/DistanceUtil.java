@@ -1,5 +1,9 @@
 package org.example.mongodb.util;
 
+import java.util.Arrays;
+
+import org.bson.Document;
+
 /**
  * @author Unknown
  * 
@@ -23,7 +27,8 @@ public class DistanceUtil {
 		double theta = lon1 - lon2;
 		double dist = Math.sin(deg2rad(lat1)) * Math.sin(deg2rad(lat2))
 				+ Math.cos(deg2rad(lat1)) * Math.cos(deg2rad(lat2)) * Math.cos(deg2rad(theta));
-		dist = Math.acos(dist);
+		// Rounding can take the same point a hair over 1, which would be NaN
+		dist = Math.acos(Math.min(1.0, Math.max(-1.0, dist)));
 		dist = rad2deg(dist);
 		dist = dist * 60 * 1.1515;
 		if (unit == 'K') {
@@ -34,6 +39,31 @@ public class DistanceUtil {
 		return (dist);
 	}
 
+	/* ::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::: */
+	/* :: The same calculation as an aggregation expression (MongoDB 4.2+),
+	/* :: for computing distances on the server. The arguments are
+	/* :: expressions, E.G. "$field" or a number. Unlike Math.acos, $acos
+	/* :: fails outside [-1, 1], so rounding errors are clamped away
+	/* ::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::: */
+	public static Document distanceExpression(Object lat1, Object lon1, Object lat2, Object lon2, char unit) {
+		Document rlat1 = new Document("$degreesToRadians", lat1);
+		Document rlat2 = new Document("$degreesToRadians", lat2);
+		Document rtheta = new Document("$degreesToRadians", new Document("$subtract", Arrays.asList(lon1, lon2)));
+		Document dist = new Document("$add", Arrays.asList(
+				new Document("$multiply", Arrays.asList(new Document("$sin", rlat1), new Document("$sin", rlat2))),
+				new Document("$multiply", Arrays.asList(new Document("$cos", rlat1), new Document("$cos", rlat2),
+						new Document("$cos", rtheta)))));
+		dist = new Document("$min", Arrays.asList(1.0, new Document("$max", Arrays.asList(-1.0, dist))));
+		double factor = 60 * 1.1515;
+		if (unit == 'K') {
+			factor = factor * 1.609344;
+		} else if (unit == 'N') {
+			factor = factor * 0.8684;
+		}
+		return new Document("$multiply",
+				Arrays.asList(new Document("$radiansToDegrees", new Document("$acos", dist)), factor));
+	}
+
 	/* ::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::: */
 	/* :: This function converts decimal degrees to radians : */
 	/* ::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::: */
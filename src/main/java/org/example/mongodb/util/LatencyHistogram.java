@@ -0,0 +1,139 @@
+package org.example.mongodb.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small, lock free, log-linear histogram (in the spirit of HdrHistogram).
+ *
+ * Values below 16 get a bucket each, above that every power of two is split
+ * into 8 sub-buckets, so any recorded value is reported within ~12.5% of its
+ * real value. The whole histogram is a fixed array of 488 counters, no matter
+ * how many values are recorded, so it is safe to keep one per operation class
+ * (or per route, per city...) in memory forever.
+ *
+ * The unit of the values is up to the caller (micros, millis, seconds).
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BITS = 4;
+	static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalSum = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.incrementAndGet();
+		totalSum.addAndGet(value);
+
+		long max = maxValue.get();
+		while (value > max && !maxValue.compareAndSet(max, value)) {
+			max = maxValue.get();
+		}
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	public long getSum() {
+		return totalSum.get();
+	}
+
+	public double getMean() {
+		long count = totalCount.get();
+		return count == 0 ? 0.0 : (double) totalSum.get() / count;
+	}
+
+	/**
+	 * @param percentile - between 0 and 100
+	 * @return the (approximate) value at the given percentile, 0 if nothing was
+	 *         recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil((percentile / 100.0) * count);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketMidpoint(i), maxValue.get());
+			}
+		}
+		return maxValue.get();
+	}
+
+	/**
+	 * @return a copy of the count of every bucket, to persist the histogram
+	 */
+	public long[] getBucketCounts() {
+		long[] copy = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	/**
+	 * Adds previously persisted bucket counts to this histogram
+	 */
+	public void add(long[] bucketCounts, long sum, long max) {
+		long count = 0;
+		for (int i = 0; i < Math.min(bucketCounts.length, BUCKET_COUNT); i++) {
+			counts.addAndGet(i, bucketCounts[i]);
+			count += bucketCounts[i];
+		}
+		totalCount.addAndGet(count);
+		totalSum.addAndGet(sum);
+
+		long current = maxValue.get();
+		while (max > current && !maxValue.compareAndSet(current, max)) {
+			current = maxValue.get();
+		}
+	}
+
+	static int bucketIndex(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + mantissa;
+	}
+
+	static long bucketLowerBound(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+		int mantissa = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + mantissa)) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	static long bucketMidpoint(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+		return bucketLowerBound(index) + ((1L << (exponent - SUB_BUCKET_BITS)) >> 1);
+	}
+}
@@ -0,0 +1,141 @@
+package org.example.mongodb.util;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Writes JSON straight from the bytes of RawBsonDocuments, for read endpoints
+ * that return documents more or less as stored.
+ *
+ * Top level fields are renamed on the way (E.G. _id to callsign) and fields
+ * that are not asked for are skipped over in the BSON, so no Document is ever
+ * built. Values go through the given JsonWriterSettings, so dates, ObjectIds
+ * etc. come out the same as with Document.toJson(settings).
+ */
+public class RawJsonWriter {
+
+	private static final BsonValueCodec BSON_VALUE_CODEC = new BsonValueCodec();
+
+	private final JsonWriterSettings settings;
+
+	public RawJsonWriter(JsonWriterSettings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * @param fields - stored name to output name, of the top level fields to write
+	 */
+	public String toJson(RawBsonDocument document, Map<String, String> fields) {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out, settings);
+		writeDocument(document, fields, writer);
+		writer.flush();
+		return out.toString();
+	}
+
+	/**
+	 * @param fields - stored name to output name, of the top level fields to write
+	 * @return a JSON array of the documents
+	 */
+	public String toJsonArray(Iterable<RawBsonDocument> documents, Map<String, String> fields) {
+		StringWriter out = new StringWriter();
+		// JsonWriter only writes documents at the top level, so we write the array
+		// ourselves
+		out.write("[");
+		boolean first = true;
+		for (RawBsonDocument document : documents) {
+			if (!first) {
+				out.write(", ");
+			}
+			first = false;
+			JsonWriter writer = new JsonWriter(out, settings);
+			writeDocument(document, fields, writer);
+			writer.flush();
+		}
+		out.write("]");
+		return out.toString();
+	}
+
+	private void writeDocument(RawBsonDocument document, Map<String, String> fields, BsonWriter writer) {
+		try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+			reader.readStartDocument();
+			writer.writeStartDocument();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				String outputName = fields.get(reader.readName());
+				if (outputName == null) {
+					reader.skipValue();
+					continue;
+				}
+				writer.writeName(outputName);
+				copyValue(reader, writer);
+			}
+			reader.readEndDocument();
+			writer.writeEndDocument();
+		}
+	}
+
+	private static void copyValue(BsonReader reader, BsonWriter writer) {
+		switch (reader.getCurrentBsonType()) {
+		case DOCUMENT:
+			reader.readStartDocument();
+			writer.writeStartDocument();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				writer.writeName(reader.readName());
+				copyValue(reader, writer);
+			}
+			reader.readEndDocument();
+			writer.writeEndDocument();
+			break;
+		case ARRAY:
+			reader.readStartArray();
+			writer.writeStartArray();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				copyValue(reader, writer);
+			}
+			reader.readEndArray();
+			writer.writeEndArray();
+			break;
+		case STRING:
+			writer.writeString(reader.readString());
+			break;
+		case DOUBLE:
+			writer.writeDouble(reader.readDouble());
+			break;
+		case INT32:
+			writer.writeInt32(reader.readInt32());
+			break;
+		case INT64:
+			writer.writeInt64(reader.readInt64());
+			break;
+		case BOOLEAN:
+			writer.writeBoolean(reader.readBoolean());
+			break;
+		case DATE_TIME:
+			writer.writeDateTime(reader.readDateTime());
+			break;
+		case OBJECT_ID:
+			writer.writeObjectId(reader.readObjectId());
+			break;
+		case NULL:
+			reader.readNull();
+			writer.writeNull();
+			break;
+		default:
+			// Rare types, take the slow path
+			BsonValue value = BSON_VALUE_CODEC.decode(reader, DecoderContext.builder().build());
+			BSON_VALUE_CODEC.encode(writer, value, EncoderContext.builder().build());
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.example.mongodb.util;
+
+/**
+ * A token bucket: allows a steady rate of operations per second, with bursts
+ * of up to burst operations after a quiet spell.
+ *
+ * Tokens are refilled lazily from System.nanoTime() on every call, so an idle
+ * bucket costs nothing but its few fields.
+ */
+public class TokenBucket {
+
+	private final double ratePerNano;
+	private final double burst;
+	private double tokens;
+	private long refilledAt;
+
+	/**
+	 * @param ratePerSecond - tokens added per second
+	 * @param burst         - most tokens the bucket holds, and what it starts with
+	 */
+	public TokenBucket(double ratePerSecond, double burst) {
+		this.ratePerNano = ratePerSecond / 1e9;
+		this.burst = Math.max(1.0, burst);
+		this.tokens = this.burst;
+		this.refilledAt = System.nanoTime();
+	}
+
+	/**
+	 * @return true, taking a token, if there is one
+	 */
+	public synchronized boolean tryTake() {
+		refill();
+		if (tokens < 1.0) {
+			return false;
+		}
+		tokens -= 1.0;
+		return true;
+	}
+
+	/**
+	 * @return true if nothing was taken for as long as it takes to refill it
+	 */
+	public synchronized boolean isFull() {
+		refill();
+		return tokens >= burst;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+		refilledAt = now;
+	}
+}
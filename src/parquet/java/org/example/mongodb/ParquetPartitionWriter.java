@@ -0,0 +1,210 @@
+package org.example.mongodb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Types;
+
+/******
+ * Writes a partition of an export table as Parquet, Snappy compressed (see
+ * AnalyticsExporter, the default format)
+ *
+ * Only built with the parquet profile, on unless -DnoParquet, which adds
+ * parquet-hadoop and the Hadoop client it needs to webService.jar.
+ *
+ * A Parquet file can only be read once it is closed: its footer holds the
+ * schema and where the row groups are. So every commit closes the current
+ * file, and the next row starts a new one, <prefix>-<n>.parquet. Until it is
+ * closed, a file is named .parquet.inprogress, so readers of *.parquet never
+ * see half a file. The exporter only commits (and checkpoints) once a file
+ * has reached -Dlogistics.export.parquet.fileMB (default 128) or is
+ * -Dlogistics.export.parquet.fileSeconds old (default 900), rather than
+ * closing a small file every checkpoint.
+ ******/
+class ParquetPartitionWriter implements PartitionWriter {
+
+	private static final String EXTENSION = ".parquet";
+	private static final String IN_PROGRESS = ".inprogress";
+	private static final long FILE_BYTES = Long.getLong("logistics.export.parquet.fileMB", 128) * 1024 * 1024;
+	private static final long FILE_MILLIS = Long.getLong("logistics.export.parquet.fileSeconds", 900) * 1000;
+
+	private final File directory;
+	private final String prefix;
+	private final AnalyticsExporter.Table table;
+	private final MessageType schema;
+	private final SimpleGroupFactory groups;
+
+	private ParquetWriter<Group> writer;
+	private File inProgress;
+	private long opened;
+	private int files;
+
+	ParquetPartitionWriter(File directory, String prefix, AnalyticsExporter.Table table) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.table = table;
+
+		// Every column is optional, a missing value is null as in the CSV files
+		Types.MessageTypeBuilder columns = Types.buildMessage();
+		for (int i = 0; i < table.columns.length; i++) {
+			switch (table.types[i]) {
+			case STRING:
+				columns.optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType())
+						.named(table.columns[i]);
+				break;
+			case TIMESTAMP:
+				columns.optional(PrimitiveTypeName.INT64)
+						.as(LogicalTypeAnnotation.timestampType(true, LogicalTypeAnnotation.TimeUnit.MILLIS))
+						.named(table.columns[i]);
+				break;
+			case DOUBLE:
+				columns.optional(PrimitiveTypeName.DOUBLE).named(table.columns[i]);
+				break;
+			case LONG:
+				columns.optional(PrimitiveTypeName.INT64).named(table.columns[i]);
+				break;
+			}
+		}
+		schema = columns.named(table.name);
+		groups = new SimpleGroupFactory(schema);
+	}
+
+	@Override
+	public void write(Object[] row) throws IOException {
+		if (writer == null) {
+			inProgress = new File(directory, prefix + "-" + files++ + EXTENSION + IN_PROGRESS);
+			writer = ExampleParquetWriter.builder(new LocalOutputFile(inProgress)).withType(schema)
+					.withCompressionCodec(CompressionCodecName.SNAPPY)
+					.withWriteMode(ParquetFileWriter.Mode.OVERWRITE).build();
+			opened = System.currentTimeMillis();
+		}
+
+		Group group = groups.newGroup();
+		for (int i = 0; i < row.length; i++) {
+			if (row[i] == null) {
+				continue;
+			}
+			switch (table.types[i]) {
+			case STRING:
+				group.append(table.columns[i], (String) row[i]);
+				break;
+			case TIMESTAMP:
+				group.append(table.columns[i], ((Date) row[i]).getTime());
+				break;
+			case DOUBLE:
+				group.append(table.columns[i], ((Number) row[i]).doubleValue());
+				break;
+			case LONG:
+				group.append(table.columns[i], ((Number) row[i]).longValue());
+				break;
+			}
+		}
+		writer.write(group);
+	}
+
+	@Override
+	public void commit() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		writer.close();
+		writer = null;
+		String name = inProgress.getName();
+		Files.move(inProgress.toPath(),
+				new File(directory, name.substring(0, name.length() - IN_PROGRESS.length())).toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// The size includes the row group still buffered in memory
+	@Override
+	public boolean waitToCommit() {
+		return writer != null && writer.getDataSize() < FILE_BYTES
+				&& System.currentTimeMillis() - opened < FILE_MILLIS;
+	}
+
+	@Override
+	public void close() throws IOException {
+		commit();
+	}
+
+	// A plain local file, without the Hadoop FileSystem (and its .crc files)
+	private static class LocalOutputFile implements OutputFile {
+
+		private final File file;
+
+		LocalOutputFile(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public PositionOutputStream create(long blockSizeHint) throws IOException {
+			return open(StandardOpenOption.CREATE_NEW);
+		}
+
+		@Override
+		public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+			return open(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		private PositionOutputStream open(StandardOpenOption... options) throws IOException {
+			OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath(), options));
+			return new PositionOutputStream() {
+				private long position;
+
+				@Override
+				public long getPos() {
+					return position;
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					position++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					position += len;
+				}
+
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+			};
+		}
+
+		@Override
+		public boolean supportsBlockSize() {
+			return false;
+		}
+
+		@Override
+		public long defaultBlockSize() {
+			return 0;
+		}
+	}
+}
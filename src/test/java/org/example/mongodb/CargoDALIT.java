@@ -0,0 +1,162 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * CargoDAL against the TestDataset, on the local replica set (the handoffs
+ * need transactions)
+ ******/
+public class CargoDALIT {
+
+	private static MongoClient mongoClient;
+	private static MongoCollection<Document> cargoCollection;
+
+	@BeforeClass
+	public static void loadDataset() {
+		mongoClient = TestDataset.connect();
+		TestDataset.load(mongoClient);
+		cargoCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_CARGO);
+	}
+
+	@AfterClass
+	public static void close() {
+		mongoClient.close();
+	}
+
+	private static String create(String location, String destination) {
+		CargoDAL cargo = new CargoDAL(mongoClient);
+		assertTrue(cargo.getLastError(), cargo.createCargo(location, destination));
+		return cargo.getId();
+	}
+
+	private static Document stored(String id) {
+		return cargoCollection.find(eq(Constants._ID, new ObjectId(id))).first();
+	}
+
+	@Test
+	public void createsCargoInProcessAtItsOrigin() {
+		String id = create("London_GB", "Cairo_EG");
+
+		CargoDAL cargo = new CargoDAL(mongoClient, id);
+		assertTrue(cargo.isPopulated());
+		assertEquals("London_GB", cargo.getLocation());
+		assertEquals("Cairo_EG", cargo.getDestination());
+		assertEquals(Constants.STATUS_INPROCESS, cargo.getStatus());
+		assertNotNull(cargo.getReceived());
+		assertEquals("London_GB", stored(id).getString(Constants.ORIGIN));
+	}
+
+	@Test
+	public void refusesCargoForACityThatDoesNotExist() {
+		CargoDAL cargo = new CargoDAL(mongoClient);
+
+		assertFalse(cargo.createCargo("London_GB", "Atlantis_XX"));
+		assertEquals("City Atlantis_XX does not exist", cargo.getLastError());
+	}
+
+	@Test
+	public void movesThroughTheLifecycle() {
+		String id = create("Paris_FR", "Tokyo_JP");
+
+		assertTrue(new CargoDAL(mongoClient, id).assignCourier("CARGO1"));
+		assertEquals("CARGO1", new CargoDAL(mongoClient, id).getCourier());
+
+		assertTrue(new CargoDAL(mongoClient, id).moveCargo("CARGO1"));
+		assertEquals(Constants.STATUS_INTRANSIT, new CargoDAL(mongoClient, id).getStatus());
+
+		assertTrue(new CargoDAL(mongoClient, id).moveCargo("Tokyo_JP"));
+		assertEquals(Constants.STATUS_INPROCESS, new CargoDAL(mongoClient, id).getStatus());
+
+		assertTrue(new CargoDAL(mongoClient, id).markDelivered());
+		Document delivered = stored(id);
+		assertEquals(Constants.STATUS_DELIVERED, delivered.getString(Constants.STATUS));
+		assertNotNull(delivered.getDate(Constants.DELIVERED));
+		assertNotNull(delivered.get(Constants.TRANSIT_TIME));
+
+		// Delivered is final
+		CargoDAL again = new CargoDAL(mongoClient, id);
+		assertFalse(again.moveCargo("Paris_FR"));
+		assertFalse(again.markDelivered());
+	}
+
+	@Test
+	public void handsCargoOffAtomically() {
+		String id = create("Berlin_DE", "Rome_IT");
+
+		assertTrue(new CargoDAL(mongoClient, id).handOff("CARGO2", null));
+		CargoDAL onBoard = new CargoDAL(mongoClient, id);
+		assertEquals("CARGO2", onBoard.getLocation());
+		assertEquals(Constants.STATUS_INTRANSIT, onBoard.getStatus());
+
+		assertTrue(onBoard.handOff("Rome_IT", null));
+		assertEquals(Constants.STATUS_DELIVERED, new CargoDAL(mongoClient, id).getStatus());
+
+		// Delivered is final
+		assertFalse(onBoard.handOff("Berlin_DE", null));
+	}
+
+	@Test
+	public void pagesThroughTheCargoAtACity() {
+		String city = "London_GB";
+		long expected = cargoCollection
+				.countDocuments(and(eq(Constants.LOCATION, city), eq(Constants.STATUS, Constants.STATUS_INPROCESS)));
+		assertTrue(expected > 50);
+
+		Set<ObjectId> seen = new HashSet<ObjectId>();
+		String after = null;
+		ObjectId previous = null;
+		while (true) {
+			ArrayList<RawBsonDocument> page = new CargoDAL(mongoClient).cargoAtLocation(city, after, 50, null, null);
+			if (page.isEmpty()) {
+				break;
+			}
+			for (RawBsonDocument cargo : page) {
+				ObjectId id = cargo.getObjectId(Constants._ID).getValue();
+				assertTrue(previous == null || id.compareTo(previous) > 0);
+				assertEquals(city, cargo.getString(Constants.LOCATION).getValue());
+				seen.add(id);
+				previous = id;
+			}
+			after = previous.toHexString();
+		}
+		assertEquals(expected, seen.size());
+	}
+
+	@Test
+	public void filtersTheCargoOnAPlaneByDestination() {
+		List<String> destinations = new ArrayList<String>();
+		for (RawBsonDocument cargo : new CargoDAL(mongoClient).cargoAtLocation("CARGO3", null, 1000, null, null)) {
+			assertEquals(Constants.STATUS_INTRANSIT, cargo.getString(Constants.STATUS).getValue());
+			destinations.add(cargo.getString(Constants.DESTINATION).getValue());
+		}
+		if (destinations.isEmpty()) {
+			return;
+		}
+		String destination = destinations.get(0);
+		for (RawBsonDocument cargo : new CargoDAL(mongoClient).cargoAtLocation("CARGO3", null, 1000, destination,
+				null)) {
+			assertEquals(destination, cargo.getString(Constants.DESTINATION).getValue());
+		}
+	}
+}
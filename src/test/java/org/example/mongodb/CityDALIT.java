@@ -0,0 +1,90 @@
+package org.example.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.example.mongodb.util.DistanceUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+
+/******
+ * CityDAL against the TestDataset cities, on the local replica set
+ ******/
+public class CityDALIT {
+
+	private static MongoClient mongoClient;
+
+	@BeforeClass
+	public static void loadDataset() {
+		mongoClient = TestDataset.connect();
+		TestDataset.load(mongoClient);
+	}
+
+	@AfterClass
+	public static void close() {
+		mongoClient.close();
+	}
+
+	@Test
+	public void findsACityById() {
+		CityDAL city = new CityDAL(mongoClient, "London_GB");
+
+		assertTrue(city.isPopulated());
+		assertEquals("London_GB", city.getName());
+		assertEquals("United Kingdom", city.getCountry());
+		assertEquals(Arrays.asList(-0.1275, 51.5072), city.getPosition());
+	}
+
+	@Test
+	public void reportsAMissingCity() {
+		CityDAL city = new CityDAL(mongoClient, "Atlantis_XX");
+
+		assertFalse(city.isPopulated());
+		assertEquals("City Atlantis_XX does not exist", city.getLastError());
+	}
+
+	@Test
+	public void listsEveryCity() {
+		assertEquals(48, new CityDAL(mongoClient).getAllCities().size());
+		assertEquals(48, new CityDAL(mongoClient).getAllCityIds().size());
+		assertTrue(new CityDAL(mongoClient).getAllCityIds().contains("Tokyo_JP"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void neighborsAreClosestFirstWithoutTheCityItself() {
+		CityDAL paris = new CityDAL(mongoClient, "Paris_FR");
+		List<Double> from = (List<Double>) paris.getPosition();
+
+		ArrayList<Document> neighbors = paris.getNeighbors("5");
+
+		assertEquals(5, neighbors.size());
+		assertEquals("London_GB", neighbors.get(0).getString(Constants.NAME));
+		double previous = 0.0;
+		for (Document neighbor : neighbors) {
+			assertNotEquals("Paris_FR", neighbor.getString(Constants.NAME));
+			List<Double> to = (List<Double>) neighbor.get(Constants.LOCATION);
+			double distance = DistanceUtil.distance(from.get(0), from.get(1), to.get(0), to.get(1),
+					Constants.UNIT_MILES);
+			assertTrue(distance >= previous);
+			previous = distance;
+		}
+	}
+
+	@Test
+	public void neighborsNeedANumericLimit() {
+		CityDAL paris = new CityDAL(mongoClient, "Paris_FR");
+
+		assertTrue(paris.getNeighbors("five").isEmpty());
+	}
+}
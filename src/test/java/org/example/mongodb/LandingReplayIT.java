@@ -0,0 +1,117 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * Landings are logged at most once per Change Stream event
+ *
+ * Feeds PlaneLandingEventListener a stream of landings of a scratch plane
+ * between a few TestDataset cities, each with its own cluster time, the way
+ * the Change Stream delivers them. Then feeds the same stream again, in order
+ * and shuffled, as a resumed Change Stream would. The Flight Log length, total
+ * distance and total flight time must not change.
+ ******/
+public class LandingReplayIT {
+
+	private static final String CALLSIGN = "REPLAYIT";
+	private static final List<String> CITIES = Arrays.asList("London_GB", "Paris_FR", "Rome_IT", "Cairo_EG");
+	private static final int LANDINGS = 20;
+	// 2020-09-01, one event per landing, a minute apart, like the oplog would order them
+	private static final int FIRST_SECOND = 1598918400;
+
+	private static MongoClient mongoClient;
+	private static MongoCollection<Document> planesCollection;
+
+	@BeforeClass
+	public static void loadDataset() {
+		mongoClient = TestDataset.connect();
+		TestDataset.load(mongoClient);
+		planesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_PLANES);
+	}
+
+	@AfterClass
+	public static void close() {
+		mongoClient.close();
+	}
+
+	@Before
+	public void scratchPlane() {
+		planesCollection.deleteMany(eq(Constants._ID, CALLSIGN));
+		planesCollection.insertOne(new Document(Constants._ID, CALLSIGN)
+				.append(Constants.CURRENT_LOCATION, Arrays.asList(0.0, 0.0)).append(Constants.HEADING, 0.0)
+				.append(Constants.ROUTE, new ArrayList<String>()).append(Constants.LANDED, CITIES.get(0))
+				.append(Constants.SCHEMA_VERSION, PlaneDAL.LATEST_SCHEMA_VERSION)
+				.append(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(CALLSIGN)));
+	}
+
+	private static void feed(PlaneLandingEventListener listener, List<Integer> events) {
+		for (int i : events) {
+			assertTrue(listener.applyLanding(CALLSIGN, CITIES.get(i % CITIES.size()),
+					new BsonTimestamp(FIRST_SECOND + i * 60, 1)));
+		}
+	}
+
+	private static Document totals() {
+		return planesCollection.aggregate(Arrays.asList(
+				new Document("$match", new Document(Constants._ID, CALLSIGN)),
+				new Document("$project", new Document(Constants._ID, 0L)
+						.append("flightLogSize", new Document("$size", "$" + Constants.FLIGHT_LOG))
+						.append(Constants.TOTAL_DISTANCE_FLOWN, 1L).append(Constants.TOTAL_FLIGHT_TIME, 1L))))
+				.first();
+	}
+
+	@Test
+	public void replayedLandingsChangeNothing() {
+		List<Integer> events = new ArrayList<Integer>();
+		for (int i = 0; i < LANDINGS; i++) {
+			events.add(i);
+		}
+		PlaneLandingEventListener listener = new PlaneLandingEventListener(mongoClient);
+
+		feed(listener, events);
+		Document first = totals();
+		assertEquals(LANDINGS, first.getInteger("flightLogSize").intValue());
+		assertEquals(LANDINGS, listener.getApplied());
+
+		feed(listener, events);
+		assertEquals(first, totals());
+
+		List<Integer> shuffled = new ArrayList<Integer>(events);
+		Collections.shuffle(shuffled, new Random(1L));
+		feed(listener, shuffled);
+		assertEquals(first, totals());
+
+		assertEquals(LANDINGS, listener.getApplied());
+		assertEquals(2 * LANDINGS, listener.getDuplicates());
+	}
+
+	@Test
+	public void aLandingInACityThatDoesNotExistIsNotLogged() {
+		PlaneLandingEventListener listener = new PlaneLandingEventListener(mongoClient);
+
+		assertFalse(listener.applyLanding(CALLSIGN, "Atlantis_XX", new BsonTimestamp(FIRST_SECOND, 1)));
+		assertEquals(0, listener.getApplied());
+		assertNull(planesCollection.find(eq(Constants._ID, CALLSIGN)).first().get(Constants.FLIGHT_LOG));
+	}
+}
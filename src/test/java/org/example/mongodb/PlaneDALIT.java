@@ -0,0 +1,217 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.example.mongodb.util.DistanceUtil;
+import org.example.mongodb.util.LatencyHistogram;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+/******
+ * PlaneDAL against the TestDataset, on the local replica set, with a scratch
+ * plane per test so the fleet stays as loaded
+ ******/
+public class PlaneDALIT {
+
+	private static final String CALLSIGN = "PLANEDALIT";
+	private static final String[] CITIES = { "London_GB", "Paris_FR", "Rome_IT", "Cairo_EG", "Nairobi_KE" };
+
+	private static MongoClient mongoClient;
+	private static MongoCollection<Document> planesCollection;
+
+	@BeforeClass
+	public static void loadDataset() {
+		mongoClient = TestDataset.connect();
+		TestDataset.load(mongoClient);
+		planesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_PLANES);
+	}
+
+	@AfterClass
+	public static void close() {
+		mongoClient.close();
+	}
+
+	@Before
+	public void scratchPlane() {
+		planesCollection.deleteMany(eq(Constants._ID, CALLSIGN));
+		planesCollection.deleteMany(eq(Constants._ID, CALLSIGN + "_OLD"));
+		planesCollection.insertOne(plane(CALLSIGN));
+	}
+
+	private static Document plane(String callSign) {
+		return new Document(Constants._ID, callSign).append(Constants.CURRENT_LOCATION, Arrays.asList(0.0, 0.0))
+				.append(Constants.HEADING, 0.0).append(Constants.ROUTE, new ArrayList<String>())
+				.append(Constants.LANDED, CITIES[0]).append(Constants.SCHEMA_VERSION, PlaneDAL.LATEST_SCHEMA_VERSION)
+				.append(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(callSign));
+	}
+
+	private static Document landing(String city, Date date) {
+		return new Document(Constants.LANDING_LOCATION, city).append(Constants.LANDING_DATE, date)
+				.append(Constants.POSITION, new CityDAL(mongoClient, city).getPosition());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static double flightLogDistance(String callSign) {
+		List<Document> flightLog = (List<Document>) planesCollection.find(eq(Constants._ID, callSign)).first()
+				.get(Constants.FLIGHT_LOG);
+		double distance = 0.0;
+		for (int i = 1; i < flightLog.size(); i++) {
+			List<Double> from = (List<Double>) flightLog.get(i - 1).get(Constants.POSITION);
+			List<Double> to = (List<Double>) flightLog.get(i).get(Constants.POSITION);
+			distance += DistanceUtil.distance(from.get(0), from.get(1), to.get(0), to.get(1), Constants.UNIT_MILES);
+		}
+		return distance;
+	}
+
+	@Test
+	public void findsAPlaneOfTheFleet() {
+		PlaneDAL plane = new PlaneDAL(mongoClient, "CARGO7");
+
+		assertTrue(plane.isPopulated());
+		assertEquals("CARGO7", plane.getCallSign());
+		assertEquals(PlaneDAL.LATEST_SCHEMA_VERSION, plane.getDocVersion());
+		assertEquals(200, new PlaneDAL(mongoClient).getAllPlanes().size());
+	}
+
+	@Test
+	public void storesPositionAndHeadingAsNumbers() {
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).updateLocationHeading("2.5,3.5", "240"));
+
+		PlaneDAL plane = new PlaneDAL(mongoClient, CALLSIGN, false);
+		assertEquals(Arrays.asList(2.5, 3.5), plane.getCurrentLocation());
+		assertEquals(Double.valueOf(240.0), plane.getHeading());
+		assertTrue(planesCollection.find(eq(Constants._ID, CALLSIGN)).first().get(Constants.HEADING) instanceof Double);
+	}
+
+	@Test
+	public void refusesAnInvalidHeading() {
+		assertFalse(new PlaneDAL(mongoClient, CALLSIGN).updateLocationHeading("2.5,3.5", "400"));
+		assertFalse(new PlaneDAL(mongoClient, CALLSIGN).updateLocationHeadingLanding("2.5,3.5", "north", "Paris_FR"));
+	}
+
+	@Test
+	public void landsInACityThatExists() {
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).updateLocationHeadingLanding("2.35,48.85", "90", "Paris_FR"));
+		assertEquals("Paris_FR", new PlaneDAL(mongoClient, CALLSIGN, false).getLanded());
+
+		assertFalse(new PlaneDAL(mongoClient, CALLSIGN).updateLocationHeadingLanding("0,0", "90", "Atlantis_XX"));
+	}
+
+	@Test
+	public void editsTheRoute() {
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).addPlaneRoute("Paris_FR", true));
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).addPlaneRoute("Rome_IT", false));
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).addPlaneRoute("Rome_IT", false));
+		assertEquals(Arrays.asList("Paris_FR", "Rome_IT"), new PlaneDAL(mongoClient, CALLSIGN, false).getRoute());
+
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).removeFirstPlaneRoute());
+		assertEquals(Arrays.asList("Rome_IT"), new PlaneDAL(mongoClient, CALLSIGN, false).getRoute());
+
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN).addPlaneRoute("Cairo_EG", true));
+		assertEquals(Arrays.asList("Cairo_EG"), new PlaneDAL(mongoClient, CALLSIGN, false).getRoute());
+	}
+
+	@Test
+	public void logLandingKeepsTheSameTotalsAsUpdateFlightLog() {
+		String old = CALLSIGN + "_OLD";
+		planesCollection.insertOne(plane(old));
+
+		long date = 1598918400000L;
+		for (String city : CITIES) {
+			date += TimeUnit.HOURS.toMillis(3) + 17000L;
+			assertTrue(new PlaneDAL(mongoClient).logLanding(CALLSIGN, landing(city, new Date(date)), null));
+			assertTrue(new PlaneDAL(mongoClient, old, false).updateFlightLog(landing(city, new Date(date)), null));
+		}
+
+		Document logged = planesCollection.find(eq(Constants._ID, CALLSIGN)).first();
+		Document updated = planesCollection.find(eq(Constants._ID, old)).first();
+		assertEquals(updated.getDouble(Constants.TOTAL_DISTANCE_FLOWN), logged.getDouble(Constants.TOTAL_DISTANCE_FLOWN),
+				1e-6);
+		assertEquals(((Number) updated.get(Constants.TOTAL_FLIGHT_TIME)).longValue(),
+				((Number) logged.get(Constants.TOTAL_FLIGHT_TIME)).longValue());
+		assertEquals(flightLogDistance(CALLSIGN), logged.getDouble(Constants.TOTAL_DISTANCE_FLOWN), 1e-6);
+		assertEquals(4 * (TimeUnit.HOURS.toSeconds(3) + 17), ((Number) logged.get(Constants.TOTAL_FLIGHT_TIME))
+				.longValue());
+	}
+
+	@Test
+	public void pushLandingKeepsTheSameTotalsAsThePipeline() {
+		String pushed = CALLSIGN + "_OLD";
+		planesCollection.insertOne(plane(pushed));
+
+		long date = 1598918400000L;
+		try {
+			for (String city : CITIES) {
+				date += TimeUnit.HOURS.toMillis(2) + 31000L;
+				PlaneDAL.setPipelineUpdatesAreDeltas(true);
+				assertTrue(new PlaneDAL(mongoClient).logLanding(CALLSIGN, landing(city, new Date(date)), null));
+				PlaneDAL.setPipelineUpdatesAreDeltas(false);
+				assertTrue(new PlaneDAL(mongoClient).logLanding(pushed, landing(city, new Date(date)), null));
+			}
+		} finally {
+			PlaneDAL.setPipelineUpdatesAreDeltas(null);
+		}
+
+		Document logged = planesCollection.find(eq(Constants._ID, CALLSIGN)).first();
+		Document updated = planesCollection.find(eq(Constants._ID, pushed)).first();
+		assertEquals(logged.getDouble(Constants.TOTAL_DISTANCE_FLOWN), updated.getDouble(Constants.TOTAL_DISTANCE_FLOWN),
+				1e-6);
+		assertEquals(((Number) logged.get(Constants.TOTAL_FLIGHT_TIME)).longValue(),
+				((Number) updated.get(Constants.TOTAL_FLIGHT_TIME)).longValue());
+		assertEquals(CITIES.length, ((List<?>) updated.get(Constants.FLIGHT_LOG)).size());
+	}
+
+	@Test
+	public void concurrentLandingsOfOnePlaneKeepItsTotals() throws InterruptedException {
+		int threads = 8;
+		int landingsPerThread = 50;
+		AtomicInteger failed = new AtomicInteger();
+		LatencyHistogram latency = new LatencyHistogram();
+
+		long start = System.nanoTime();
+		ExecutorService landingexec = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			landingexec.execute(() -> {
+				for (int i = 0; i < landingsPerThread; i++) {
+					String city = CITIES[(thread + i) % CITIES.length];
+					long begin = System.nanoTime();
+					if (!new PlaneDAL(mongoClient).logLanding(CALLSIGN, landing(city, new Date()), null)) {
+						failed.incrementAndGet();
+					}
+					latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+				}
+			});
+		}
+		landingexec.shutdown();
+		assertTrue(landingexec.awaitTermination(2, TimeUnit.MINUTES));
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("logLanding: %.1f landings/s, p50 %d us, p99 %d us",
+				threads * landingsPerThread * 1e9 / elapsed, latency.getValueAtPercentile(50),
+				latency.getValueAtPercentile(99)));
+		assertEquals(0, failed.get());
+		Document plane = planesCollection.find(eq(Constants._ID, CALLSIGN)).first();
+		assertEquals(threads * landingsPerThread, ((List<?>) plane.get(Constants.FLIGHT_LOG)).size());
+		assertEquals(flightLogDistance(CALLSIGN), plane.getDouble(Constants.TOTAL_DISTANCE_FLOWN), 1e-6);
+	}
+}
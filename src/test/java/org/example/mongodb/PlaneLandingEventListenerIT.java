@@ -0,0 +1,185 @@
+package org.example.mongodb;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/******
+ * PlaneLandingEventListener against the TestDataset, on the local replica set
+ * (Change Streams need one): a plane landing through PlaneDAL ends up in its
+ * Flight Log, and so does one landing while the listener was stopped. Events
+ * read late, or read again, log the city of the event, once
+ ******/
+public class PlaneLandingEventListenerIT {
+
+	private static final String CALLSIGN = "LISTENERIT";
+	// Long enough for the listener to see a landing, at one tryNext a second
+	private static final long WAIT_MILLIS = 30000;
+
+	private static MongoClient mongoClient;
+	private static MongoCollection<Document> planesCollection;
+
+	private ExecutorService listenerexec;
+	private PlaneLandingEventListener listener;
+
+	@BeforeClass
+	public static void loadDataset() {
+		mongoClient = TestDataset.connect();
+		TestDataset.load(mongoClient);
+		planesCollection = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS)
+				.getCollection(Constants.COLLECTION_PLANES);
+	}
+
+	@AfterClass
+	public static void close() {
+		mongoClient.close();
+	}
+
+	@Before
+	public void scratchPlane() {
+		planesCollection.deleteMany(eq(Constants._ID, CALLSIGN));
+		planesCollection.insertOne(new Document(Constants._ID, CALLSIGN)
+				.append(Constants.CURRENT_LOCATION, Arrays.asList(0.0, 0.0)).append(Constants.HEADING, 0.0)
+				.append(Constants.ROUTE, new ArrayList<String>()).append(Constants.LANDED, "London_GB")
+				.append(Constants.SCHEMA_VERSION, PlaneDAL.LATEST_SCHEMA_VERSION)
+				.append(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(CALLSIGN)));
+		listenerexec = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void stopListener() throws InterruptedException {
+		if (listener != null) {
+			listener.stop();
+		}
+		listenerexec.shutdown();
+		listenerexec.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	private void listen(PlaneLandingEventListener planeLandingEventListener) throws InterruptedException {
+		listener = planeLandingEventListener;
+		listenerexec.execute(listener);
+		assertTrue(listener.awaitListening(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+	}
+
+	private static void land(String city) {
+		PlaneDAL plane = new PlaneDAL(mongoClient, CALLSIGN, false);
+		assertTrue(plane.getLastError(), plane.updateLocationHeadingLanding("0,0", "90", city));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Document> awaitFlightLog(int landings) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (true) {
+			Document plane = planesCollection.find(eq(Constants._ID, CALLSIGN)).first();
+			List<Document> flightLog = (List<Document>) plane.get(Constants.FLIGHT_LOG);
+			int logged = (flightLog == null) ? 0 : flightLog.size();
+			if (logged >= landings || System.currentTimeMillis() > deadline) {
+				assertEquals(landings, logged);
+				return flightLog;
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	@Test
+	public void logsEveryLanding() throws InterruptedException {
+		listen(new PlaneLandingEventListener(mongoClient));
+
+		land("Paris_FR");
+		land("Rome_IT");
+		land("Cairo_EG");
+
+		List<Document> flightLog = awaitFlightLog(3);
+		assertEquals("Paris_FR", flightLog.get(0).getString(Constants.LANDING_LOCATION));
+		assertEquals("Cairo_EG", flightLog.get(2).getString(Constants.LANDING_LOCATION));
+		assertEquals(new CityDAL(mongoClient, "Rome_IT").getPosition(), flightLog.get(1).get(Constants.POSITION));
+		assertEquals(3, listener.getApplied());
+
+		Document plane = planesCollection.find(eq(Constants._ID, CALLSIGN)).first();
+		assertTrue(plane.getDouble(Constants.TOTAL_DISTANCE_FLOWN) > 0.0);
+	}
+
+	@Test
+	public void ignoresUpdatesThatAreNotLandings() throws InterruptedException {
+		listen(new PlaneLandingEventListener(mongoClient));
+
+		assertTrue(new PlaneDAL(mongoClient, CALLSIGN, false).updateLocationHeading("1,1", "180"));
+		land("Berlin_DE");
+
+		List<Document> flightLog = awaitFlightLog(1);
+		assertEquals("Berlin_DE", flightLog.get(0).getString(Constants.LANDING_LOCATION));
+	}
+
+	@Test
+	public void replaysLandingsMadeBeforeTheStreamIsReadWithTheirOwnCities() throws InterruptedException {
+		// Where the stream is now: every landing below comes after it
+		BsonDocument beforeLandings;
+		try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = planesCollection.watch().cursor()) {
+			beforeLandings = cursor.getResumeToken();
+		}
+
+		// By the time the events are read, the plane is in Cairo
+		land("Paris_FR");
+		land("Rome_IT");
+		land("Cairo_EG");
+
+		listen(new PlaneLandingEventListener(mongoClient, null, beforeLandings));
+		List<Document> flightLog = awaitFlightLog(3);
+		assertEquals("Paris_FR", flightLog.get(0).getString(Constants.LANDING_LOCATION));
+		assertEquals("Rome_IT", flightLog.get(1).getString(Constants.LANDING_LOCATION));
+		assertEquals("Cairo_EG", flightLog.get(2).getString(Constants.LANDING_LOCATION));
+		Document once = planesCollection.find(eq(Constants._ID, CALLSIGN)).first();
+
+		// The same events again, as after a reconnect or a lease handover
+		stopListener();
+		listenerexec = Executors.newSingleThreadExecutor();
+		listen(new PlaneLandingEventListener(mongoClient, null, beforeLandings));
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (listener.getDuplicates() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertEquals(3, listener.getDuplicates());
+		assertEquals(0, listener.getApplied());
+		assertEquals(once, planesCollection.find(eq(Constants._ID, CALLSIGN)).first());
+	}
+
+	@Test
+	public void resumesFromTheCheckpointAfterARestart() throws InterruptedException {
+		listen(new PlaneLandingEventListener(mongoClient));
+		land("Madrid_ES");
+		awaitFlightLog(1);
+
+		PlaneLandingEventListener stopped = listener;
+		stopListener();
+		stopped.saveCheckpoint();
+		listener = null;
+
+		// Nobody is listening
+		land("Tokyo_JP");
+
+		listenerexec = Executors.newSingleThreadExecutor();
+		listen(PlaneLandingEventListener.fromCheckpoint(mongoClient));
+		List<Document> flightLog = awaitFlightLog(2);
+		assertEquals("Tokyo_JP", flightLog.get(1).getString(Constants.LANDING_LOCATION));
+	}
+}
@@ -0,0 +1,306 @@
+package org.example.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.example.mongodb.util.DistanceUtil;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+
+/******
+ * Loads the same cities, planes and cargo on every run, for tests and
+ * benchmarks that need more than an empty database
+ *
+ * Integration tests call load() before they start. To load it by hand, for
+ * the benchmarks (see scripts/local-replica-set.sh seed):
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.example.mongodb.TestDataset \
+ *     -Dexec.args="<mongouri> [seed] [planes] [cargo]"
+ *
+ * Cities are a fixed list of large cities, named like the imported ones
+ * (City_ISO2). Planes (200 by default) are named CARGO0, CARGO1, ... as the
+ * README scripts name them, each landed in a city with a short Flight Log and
+ * its totals. Cargo (10000 by default) is spread over in process, in transit
+ * and delivered. Everything is drawn from a Random with the given seed (1 by
+ * default), dated from a fixed day and given ObjectIds built from that date
+ * and a counter, so the same seed gives the same documents, ids included.
+ *
+ * Creates the indexes listed in the README. Run by hand, it refuses to touch
+ * a database that already has cities, unless run with -Ddataset.replace=true,
+ * which drops the logistics collections first.
+ ******/
+public class TestDataset {
+
+	// 2020-09-01T00:00:00Z
+	private static final long FIRST_DAY = 1598918400000L;
+	private static final long HOUR = 3600000L;
+	private static final int LANDINGS_PER_PLANE = 6;
+
+	private static final Object[][] CITIES = {
+			{ "Tokyo", "JP", "Japan", 139.6922, 35.6897 },
+			{ "Jakarta", "ID", "Indonesia", 106.8275, -6.1750 },
+			{ "Delhi", "IN", "India", 77.2300, 28.6600 },
+			{ "Mumbai", "IN", "India", 72.8333, 18.9667 },
+			{ "Manila", "PH", "Philippines", 120.9833, 14.6000 },
+			{ "Shanghai", "CN", "China", 121.4667, 31.1667 },
+			{ "Beijing", "CN", "China", 116.3914, 39.9050 },
+			{ "Sao Paulo", "BR", "Brazil", -46.6339, -23.5504 },
+			{ "Rio de Janeiro", "BR", "Brazil", -43.2056, -22.9111 },
+			{ "Seoul", "KR", "Korea, South", 126.9900, 37.5600 },
+			{ "Mexico City", "MX", "Mexico", -99.1333, 19.4333 },
+			{ "Cairo", "EG", "Egypt", 31.2358, 30.0444 },
+			{ "New York", "US", "United States", -73.9249, 40.6943 },
+			{ "Los Angeles", "US", "United States", -118.4068, 34.1141 },
+			{ "Chicago", "US", "United States", -87.6866, 41.8375 },
+			{ "Dhaka", "BD", "Bangladesh", 90.3889, 23.7639 },
+			{ "Bangkok", "TH", "Thailand", 100.4942, 13.7525 },
+			{ "Buenos Aires", "AR", "Argentina", -58.3819, -34.5997 },
+			{ "Istanbul", "TR", "Turkey", 28.9603, 41.0136 },
+			{ "Lagos", "NG", "Nigeria", 3.3942, 6.4550 },
+			{ "Karachi", "PK", "Pakistan", 67.0100, 24.8600 },
+			{ "Moscow", "RU", "Russia", 37.6178, 55.7558 },
+			{ "Ho Chi Minh City", "VN", "Vietnam", 106.7019, 10.7756 },
+			{ "Lima", "PE", "Peru", -77.0375, -12.0600 },
+			{ "Tehran", "IR", "Iran", 51.3889, 35.6892 },
+			{ "Paris", "FR", "France", 2.3522, 48.8566 },
+			{ "London", "GB", "United Kingdom", -0.1275, 51.5072 },
+			{ "Bogota", "CO", "Colombia", -74.0722, 4.7111 },
+			{ "Kinshasa", "CD", "Congo (Kinshasa)", 15.3222, -4.3250 },
+			{ "Johannesburg", "ZA", "South Africa", 28.0456, -26.2044 },
+			{ "Nairobi", "KE", "Kenya", 36.8172, -1.2864 },
+			{ "Madrid", "ES", "Spain", -3.7167, 40.4167 },
+			{ "Berlin", "DE", "Germany", 13.3833, 52.5167 },
+			{ "Rome", "IT", "Italy", 12.4828, 41.8931 },
+			{ "Baghdad", "IQ", "Iraq", 44.3661, 33.3153 },
+			{ "Riyadh", "SA", "Saudi Arabia", 46.7167, 24.6333 },
+			{ "Singapore", "SG", "Singapore", 103.8000, 1.3000 },
+			{ "Sydney", "AU", "Australia", 151.2100, -33.8678 },
+			{ "Melbourne", "AU", "Australia", 144.9631, -37.8142 },
+			{ "Toronto", "CA", "Canada", -79.3733, 43.7417 },
+			{ "Santiago", "CL", "Chile", -70.6506, -33.4372 },
+			{ "Addis Ababa", "ET", "Ethiopia", 38.7400, 9.0300 },
+			{ "Kyiv", "UA", "Ukraine", 30.5236, 50.4500 },
+			{ "Warsaw", "PL", "Poland", 21.0122, 52.2300 },
+			{ "Stockholm", "SE", "Sweden", 18.0686, 59.3294 },
+			{ "Auckland", "NZ", "New Zealand", 174.7400, -36.8406 },
+			{ "Anchorage", "US", "United States", -149.8997, 61.1508 },
+			{ "Reykjavik", "IS", "Iceland", -21.9400, 64.1467 } };
+
+	private static final String[] COLLECTIONS = { Constants.COLLECTION_CITIES, Constants.COLLECTION_PLANES,
+			Constants.COLLECTION_CARGO, Constants.COLLECTION_CARGO_ARCHIVE, Constants.COLLECTION_STATS,
+			Constants.COLLECTION_CARGO_SLA, Constants.COLLECTION_LISTENER_LEASES,
+			Constants.COLLECTION_LISTENER_INSTANCES };
+
+	// Where scripts/local-replica-set.sh starts the replica set
+	static final String DEFAULT_URI = "mongodb://localhost:27117/?replicaSet=rs0";
+	static final long DEFAULT_SEED = 1L;
+	static final int DEFAULT_PLANES = 200;
+	static final int DEFAULT_CARGO = 10000;
+
+	private static int idCounter;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: TestDataset <mongouri> [seed] [planes] [cargo]");
+			System.exit(1);
+		}
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+		int planeCount = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PLANES;
+		int cargoCount = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CARGO;
+		boolean replace = Boolean.getBoolean("dataset.replace");
+
+		MongoClient mongoClient = new MongoClient(new MongoClientURI(args[0]));
+		try {
+			if (mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS).getCollection(Constants.COLLECTION_CITIES)
+					.countDocuments() > 0 && !replace) {
+				System.err.println("The logistics database already has cities, run with -Ddataset.replace=true "
+						+ "to drop it and load the test dataset");
+				System.exit(1);
+			}
+			System.out.println(load(mongoClient, seed, planeCount, cargoCount).toJson());
+		} finally {
+			mongoClient.close();
+		}
+	}
+
+	/**
+	 * The replica set of the integration tests: -Dlogistics.test.uri, set by the
+	 * local-rs Maven profile, or the one scripts/local-replica-set.sh starts
+	 */
+	static MongoClient connect() {
+		return new MongoClient(new MongoClientURI(System.getProperty("logistics.test.uri", DEFAULT_URI)));
+	}
+
+	// Loads the default dataset, for a test class to start from
+	static Document load(MongoClient mongoClient) {
+		return load(mongoClient, DEFAULT_SEED, DEFAULT_PLANES, DEFAULT_CARGO);
+	}
+
+	/**
+	 * Drops the logistics collections and loads the dataset drawn from seed
+	 * 
+	 * @return how many cities, planes and cargo were loaded
+	 */
+	static Document load(MongoClient mongoClient, long seed, int planeCount, int cargoCount) {
+		MongoDatabase db = mongoClient.getDatabase(Constants.DB_NAME_LOGISTICS);
+		for (String collection : COLLECTIONS) {
+			db.getCollection(collection).drop();
+		}
+
+		Random random = new Random(seed);
+		idCounter = 0;
+		List<Document> cities = cities();
+		List<Document> planes = planes(random, cities, planeCount);
+		List<Document> cargo = cargo(random, cities, planes, cargoCount);
+
+		db.getCollection(Constants.COLLECTION_CITIES).insertMany(cities);
+		db.getCollection(Constants.COLLECTION_PLANES).insertMany(planes);
+		for (int i = 0; i < cargo.size(); i += 1000) {
+			db.getCollection(Constants.COLLECTION_CARGO)
+					.insertMany(cargo.subList(i, Math.min(i + 1000, cargo.size())));
+		}
+		createIndexes(db);
+
+		return new Document("seed", seed).append("cities", cities.size()).append("planes", planes.size())
+				.append("cargo", cargo.size());
+	}
+
+	private static List<Document> cities() {
+		List<Document> cities = new ArrayList<Document>();
+		for (Object[] city : CITIES) {
+			cities.add(new Document(Constants._ID, city[0] + "_" + city[1])
+					.append(Constants.POSITION, Arrays.asList(city[3], city[4]))
+					.append(Constants.COUNTRY, city[2]));
+		}
+		return cities;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Document> planes(Random random, List<Document> cities, int planeCount) {
+		List<Document> planes = new ArrayList<Document>();
+		for (int i = 0; i < planeCount; i++) {
+			String callSign = "CARGO" + i;
+
+			// A few legs between random cities, a few hours each, ending where the plane is now
+			List<Document> flightLog = new ArrayList<Document>();
+			double distance = 0.0;
+			double flightTime = 0.0;
+			long date = FIRST_DAY + random.nextInt(24) * HOUR;
+			int landings = random.nextInt(LANDINGS_PER_PLANE + 1);
+			for (int l = 0; l < landings; l++) {
+				Document city = cities.get(random.nextInt(cities.size()));
+				List<Double> position = (List<Double>) city.get(Constants.POSITION);
+				if (!flightLog.isEmpty()) {
+					Document last = flightLog.get(flightLog.size() - 1);
+					List<Double> from = (List<Double>) last.get(Constants.POSITION);
+					distance += DistanceUtil.distance(from.get(0), from.get(1), position.get(0), position.get(1),
+							Constants.UNIT_MILES);
+					flightTime += (date - last.getDate(Constants.LANDING_DATE).getTime()) / 1000;
+				}
+				flightLog.add(new Document(Constants.LANDING_LOCATION, city.getString(Constants._ID))
+						.append(Constants.LANDING_DATE, new Date(date)).append(Constants.POSITION, position));
+				date += (2 + random.nextInt(12)) * HOUR;
+			}
+
+			Document landed = flightLog.isEmpty() ? cities.get(random.nextInt(cities.size()))
+					: cities.get(indexOf(cities, flightLog.get(flightLog.size() - 1).getString(Constants.LANDING_LOCATION)));
+			planes.add(new Document(Constants._ID, callSign)
+					.append(Constants.CURRENT_LOCATION, landed.get(Constants.POSITION))
+					.append(Constants.HEADING, 0.0)
+					.append(Constants.ROUTE, new ArrayList<String>())
+					.append(Constants.LANDED, landed.getString(Constants._ID))
+					.append(Constants.FLIGHT_LOG, flightLog)
+					.append(Constants.TOTAL_DISTANCE_FLOWN, distance)
+					.append(Constants.TOTAL_FLIGHT_TIME, flightTime)
+					.append(Constants.REQUIRES_MAINTENANCE, distance > Constants.MAINTENANCE_REQUIRED_LIMIT)
+					.append(Constants.SCHEMA_VERSION, PlaneDAL.LATEST_SCHEMA_VERSION)
+					.append(Constants.PARTITION_KEY, LandingListenerCoordinator.partitionKey(callSign)));
+		}
+		return planes;
+	}
+
+	// Half waiting in a city, a fifth on board a plane, the rest delivered
+	private static List<Document> cargo(Random random, List<Document> cities, List<Document> planes,
+			int cargoCount) {
+		List<Document> cargo = new ArrayList<Document>();
+		for (int i = 0; i < cargoCount; i++) {
+			String origin = cities.get(random.nextInt(cities.size())).getString(Constants._ID);
+			String destination = origin;
+			while (destination.equals(origin)) {
+				destination = cities.get(random.nextInt(cities.size())).getString(Constants._ID);
+			}
+			long received = FIRST_DAY + (long) (random.nextDouble() * 7 * 24 * HOUR);
+			Document doc = new Document(Constants._ID, objectId(received))
+					.append(Constants.ORIGIN, origin)
+					.append(Constants.DESTINATION, destination)
+					.append(Constants.RECEIVED, new Date(received));
+
+			int kind = random.nextInt(10);
+			if (kind < 5) {
+				doc.append(Constants.LOCATION, origin).append(Constants.STATUS, Constants.STATUS_INPROCESS);
+			} else if (kind < 7) {
+				Document plane = planes.get(random.nextInt(planes.size()));
+				doc.append(Constants.LOCATION, plane.getString(Constants._ID))
+						.append(Constants.COURIER, plane.getString(Constants._ID))
+						.append(Constants.STATUS, Constants.STATUS_INTRANSIT);
+			} else {
+				long transitSeconds = (6 + random.nextInt(90)) * HOUR / 1000;
+				doc.append(Constants.LOCATION, destination)
+						.append(Constants.STATUS, Constants.STATUS_DELIVERED)
+						.append(Constants.DELIVERED, new Date(received + transitSeconds * 1000))
+						.append(Constants.TRANSIT_TIME, transitSeconds);
+			}
+			cargo.add(doc);
+		}
+		return cargo;
+	}
+
+	private static int indexOf(List<Document> cities, String name) {
+		for (int i = 0; i < cities.size(); i++) {
+			if (cities.get(i).getString(Constants._ID).equals(name)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	// new ObjectId() mixes in the machine, process and a random counter
+	private static ObjectId objectId(long millis) {
+		return new ObjectId(String.format("%08x%016x", millis / 1000, idCounter++));
+	}
+
+	// Same as "Importing initial data and creating required indexes" in the README
+	private static void createIndexes(MongoDatabase db) {
+		db.getCollection(Constants.COLLECTION_CITIES).createIndex(new Document(Constants.POSITION, "2dsphere"));
+
+		Document inProcess = new Document(Constants.STATUS, Constants.STATUS_INPROCESS);
+		Document inTransit = new Document(Constants.STATUS, Constants.STATUS_INTRANSIT);
+		Document byId = new Document(Constants.LOCATION, 1).append(Constants._ID, 1);
+		Document byDestination = new Document(Constants.LOCATION, 1).append(Constants.DESTINATION, 1)
+				.append(Constants._ID, 1);
+		Document byCourier = new Document(Constants.LOCATION, 1).append(Constants.COURIER, 1).append(Constants._ID, 1);
+		db.getCollection(Constants.COLLECTION_CARGO).createIndex(byId,
+				new IndexOptions().partialFilterExpression(inProcess));
+		db.getCollection(Constants.COLLECTION_CARGO).createIndex(byDestination,
+				new IndexOptions().partialFilterExpression(inProcess));
+		db.getCollection(Constants.COLLECTION_CARGO).createIndex(byCourier,
+				new IndexOptions().partialFilterExpression(inProcess));
+		// Other keys than the in process ones: 4.4 refuses the same keys with another partial filter
+		Document onPlaneById = new Document(Constants.STATUS, 1).append(Constants.LOCATION, 1).append(Constants._ID, 1);
+		Document onPlaneByDestination = new Document(Constants.STATUS, 1).append(Constants.LOCATION, 1)
+				.append(Constants.DESTINATION, 1).append(Constants._ID, 1);
+		db.getCollection(Constants.COLLECTION_CARGO).createIndex(onPlaneById,
+				new IndexOptions().partialFilterExpression(inTransit));
+		db.getCollection(Constants.COLLECTION_CARGO).createIndex(onPlaneByDestination,
+				new IndexOptions().partialFilterExpression(inTransit));
+		db.getCollection(Constants.COLLECTION_CARGO).createIndex(new Document(Constants.DELIVERED, 1),
+				new IndexOptions().partialFilterExpression(new Document(Constants.STATUS, Constants.STATUS_DELIVERED)));
+	}
+}